@@ -0,0 +1,144 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.StreamDecoder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Raw capture as it arrives from the clip: the stream after [STS_DATA:n] split in UART notifications.
+ * <p>
+ * Captures can be loaded from a file with the stream bytes as received, or generated with the same
+ * encoding the firmware uses: samples at rest as a signal count, small movements as 8 bits deltas
+ * and 16 bits absolute values when the delta doesn't fit.
+ * </p>
+ */
+public class CaptureRecording {
+    // Same as UARTProfile.MAX_PACKET_SIZE
+    public static final int NOTIFICATION_SIZE = 20;
+
+    public final int samples;
+    public final byte[] stream;
+    public final byte[][] notifications;
+
+    private CaptureRecording(int samples, byte[] stream, int notificationSize) {
+        this.samples = samples;
+        this.stream = stream;
+
+        List<byte[]> packets = new ArrayList<>();
+        for (int t = 0; t < stream.length; t += notificationSize) {
+            packets.add(Arrays.copyOfRange(stream, t, Math.min(t + notificationSize, stream.length)));
+        }
+        notifications = packets.toArray(new byte[packets.size()][]);
+    }
+
+    /**
+     * @param samples number the clip announced with [STS_DATA:n] for this capture
+     */
+    public static CaptureRecording load(File file, int samples) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] buf = new byte[4096];
+            int read;
+            while ((read = in.read(buf)) > 0) {
+                out.write(buf, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+
+        return new CaptureRecording(samples, out.toByteArray(), NOTIFICATION_SIZE);
+    }
+
+    /**
+     * Generates a gesture: a rest period, a movement and a rest period again.
+     */
+    public static CaptureRecording generate(int samples, long seed) {
+        Random random = new Random(seed);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        int[] previous = new int[StreamDecoder.CHANNELS];
+        int[] current = new int[StreamDecoder.CHANNELS];
+        Arrays.fill(previous, StreamDecoder.CENTRE_SIGNAL);
+
+        int rest = samples / 4;
+        int movement = samples - 2 * rest;
+        // The first sample always goes as an absolute value
+        int block = writeAbsolute(out, -1, previous);
+        int written = 1;
+
+        written += writeRest(out, Math.min(rest, samples - written));
+        block = StreamDecoder.PAYLOAD_SIGNAL;
+
+        for (int t = 0; t < movement && written < samples; t++, written++) {
+            double phase = Math.sin(Math.PI * t / movement);
+            boolean fits = true;
+            for (int c = 0; c < StreamDecoder.CHANNELS; c++) {
+                int target = StreamDecoder.CENTRE_SIGNAL + (int) (phase * (1500 + 400 * c));
+                current[c] = target + random.nextInt(61) - 30;
+                int delta = current[c] - previous[c];
+                if (delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE)
+                    fits = false;
+            }
+
+            // A first delta of 0xFD..0xFF would be read as a block header
+            if (current[0] - previous[0] >= -3 && current[0] - previous[0] <= -1)
+                fits = false;
+
+            if (fits) {
+                if (block != StreamDecoder.PAYLOAD_8BITS) {
+                    out.write(StreamDecoder.PAYLOAD_8BITS);
+                    block = StreamDecoder.PAYLOAD_8BITS;
+                }
+                for (int c = 0; c < StreamDecoder.CHANNELS; c++) {
+                    out.write(current[c] - previous[c]);
+                }
+            } else {
+                block = writeAbsolute(out, block, current);
+            }
+
+            System.arraycopy(current, 0, previous, 0, current.length);
+        }
+
+        // Back to rest, the clip sends an absolute sample before the count
+        if (written < samples) {
+            Arrays.fill(previous, StreamDecoder.CENTRE_SIGNAL);
+            writeAbsolute(out, block, previous);
+            written++;
+            writeRest(out, samples - written);
+        }
+
+        return new CaptureRecording(samples, out.toByteArray(), NOTIFICATION_SIZE);
+    }
+
+    private static int writeAbsolute(ByteArrayOutputStream out, int block, int[] values) {
+        if (block != StreamDecoder.PAYLOAD_16BITS)
+            out.write(StreamDecoder.PAYLOAD_16BITS);
+
+        for (int value : values) {
+            out.write(value >> 8);
+            out.write(value);
+        }
+        return StreamDecoder.PAYLOAD_16BITS;
+    }
+
+    private static int writeRest(ByteArrayOutputStream out, int count) {
+        int left = count;
+        while (left > 0) {
+            // Counts of 0xFD and above would be read as a block header
+            int run = Math.min(left, StreamDecoder.PAYLOAD_16BITS - 1);
+            out.write(StreamDecoder.PAYLOAD_SIGNAL);
+            out.write(run);
+            left -= run;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,39 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.CommandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding side of FlicktekCommands.writeSingleCommand(), the BLE write itself is left out.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CommandEncoderBenchmark {
+
+    private final byte[] mBuffer = new byte[CommandEncoder.COMMAND_SIZE];
+
+    private int mValue;
+
+    // What writeSingleCommand() does, a new buffer for every command
+    @Benchmark
+    public byte[] encode() {
+        mValue = (mValue + 1) & 0x0F;
+        return CommandEncoder.encode('W', mValue);
+    }
+
+    @Benchmark
+    public byte[] encodeInto() {
+        mValue = (mValue + 1) & 0x0F;
+        CommandEncoder.encode('W', mValue, mBuffer, 0);
+        return mBuffer;
+    }
+}
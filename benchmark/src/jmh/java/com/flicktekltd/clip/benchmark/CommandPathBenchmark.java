@@ -0,0 +1,49 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.AsciiBytes;
+import com.flicktekltd.clip.protocol.ClipProtocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ASCII notifications going through FlicktekCommands.onCommandArrived(), which hands them to the
+ * protocol core: channel check, frame parsing and report dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CommandPathBenchmark {
+
+    // What the clip sends while it is connected and detecting gestures, captures are in StreamDecodeBenchmark
+    private static final String[] TRAFFIC = {
+            "[ACK:W2]", "{G1}", "[BT:1]", "{S3}", "[STK:2500]", "{G4}", "[GIT:a1b2c3d]",
+            "[VER:v170615_1739]", "[NAK:W0]", "{O1}"
+    };
+
+    private final byte[][] mNotifications = new byte[TRAFFIC.length][];
+    private final CountingSink mSink = new CountingSink();
+    private final ClipProtocol mProtocol = new ClipProtocol(mSink);
+
+    @Setup
+    public void setup() {
+        for (int t = 0; t < TRAFFIC.length; t++) {
+            mNotifications[t] = AsciiBytes.of(TRAFFIC[t]);
+        }
+    }
+
+    @Benchmark
+    public int commandArrived() {
+        for (byte[] data : mNotifications) {
+            mProtocol.onNotification(data, 0, data.length);
+        }
+        return mSink.value;
+    }
+}
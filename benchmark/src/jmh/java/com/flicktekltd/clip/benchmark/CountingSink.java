@@ -0,0 +1,58 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.CaptureFrame;
+import com.flicktekltd.clip.protocol.ProtocolSink;
+
+/**
+ * Sink that only keeps a running value, so the JIT can't drop the work done by the protocol core.
+ * Log messages are ignored, on Android they end up in logcat.
+ */
+public class CountingSink implements ProtocolSink {
+    public int value;
+    public int captures;
+
+    @Override
+    public void onCommand(byte command, byte value) {
+        this.value += command + value;
+    }
+
+    @Override
+    public void onAcknowledge(boolean ack, byte command, byte value) {
+        this.value += ack ? command + value : value;
+    }
+
+    @Override
+    public void onButton(String value) {
+        this.value += value.length();
+    }
+
+    @Override
+    public void onStreamingTicks(int ticks) {
+        value += ticks;
+    }
+
+    @Override
+    public void onRevision(String revision) {
+        value += revision.length();
+    }
+
+    @Override
+    public void onVersion(String version) {
+        value += version.length();
+    }
+
+    @Override
+    public void onCaptureStarted(int samples) {
+        value += samples;
+    }
+
+    @Override
+    public void onCaptureEnded(CaptureFrame frame, boolean complete) {
+        captures++;
+        value += frame.samples()[0];
+    }
+
+    @Override
+    public void onLog(String message) {
+    }
+}
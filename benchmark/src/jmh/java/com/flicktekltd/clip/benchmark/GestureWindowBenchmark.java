@@ -0,0 +1,56 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.flickgym.GestureWindow;
+import com.flicktekltd.clip.protocol.StreamDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Capture math of MyGLRenderer.cleanupStream() and createEffect(), without the GL objects.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GestureWindowBenchmark {
+
+    @Param({"300", "1200"})
+    public int samples;
+
+    // MyGLRenderer.mSteps
+    private static final int STEPS = 2;
+
+    private int[] mSensor;
+    private int[] mTrimmed;
+    private final GestureWindow mWindow = new GestureWindow();
+
+    @Setup
+    public void setup() {
+        CaptureRecording recording = CaptureRecording.generate(samples, 42);
+        mSensor = new int[samples * StreamDecoder.CHANNELS];
+        new StreamDecoder().decode(recording.stream, 0, recording.stream.length, mSensor, samples);
+        mTrimmed = GestureWindow.trim(mSensor);
+    }
+
+    @Benchmark
+    public int[] cleanupStream() {
+        return GestureWindow.trim(mSensor);
+    }
+
+    @Benchmark
+    public float createEffect() {
+        mWindow.analyse(mTrimmed);
+
+        int length = (mTrimmed.length / GestureWindow.CHANNELS) / STEPS;
+        float position = GestureWindow.position(mWindow.mMaxPos / GestureWindow.CHANNELS, length);
+        return GestureWindow.angle(position, length) + mWindow.mMin + mWindow.mMax;
+    }
+}
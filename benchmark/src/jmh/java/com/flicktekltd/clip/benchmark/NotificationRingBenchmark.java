@@ -0,0 +1,93 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.NotificationRing;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The handoff of UARTProfile between the Binder thread and the decoder thread.
+ * <p>
+ * {@link #roundTrip()} offers and polls a notification on the same thread, the cost of the copies alone.
+ * The <code>handoff</code> group runs the producer and the consumer on two threads; the producer score is
+ * what the Binder thread pays per notification, its <code>offered</code> and <code>dropped</code> counters show
+ * how often the consumer fell behind a producer that never waits.
+ * </p>
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class NotificationRingBenchmark {
+    private static final int MAX_RECORD_SIZE = 514;
+
+    // Notification payload, 20 bytes at the default MTU and 244 with the one we ask for
+    @Param({"20", "244"})
+    public int size;
+
+    @Param({"65536"})
+    public int capacity;
+
+    private NotificationRing mRing;
+    private byte[] mNotification;
+    private final byte[] mOut = new byte[MAX_RECORD_SIZE];
+
+    @Setup
+    public void setup() {
+        mRing = new NotificationRing(capacity, MAX_RECORD_SIZE);
+        mNotification = new byte[size];
+        for (int i = 0; i < size; i++) {
+            mNotification[i] = (byte) i;
+        }
+    }
+
+    // Reported next to the producer score
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class OfferCounters {
+        public long offered;
+        public long dropped;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            offered = 0;
+            dropped = 0;
+        }
+    }
+
+    @Benchmark
+    @Group("roundTrip")
+    public int roundTrip() {
+        mRing.offer(mNotification, 0, mNotification.length);
+        return mRing.poll(mOut);
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public boolean offer(OfferCounters counters) {
+        final boolean offered = mRing.offer(mNotification, 0, mNotification.length);
+        counters.offered++;
+        if (!offered)
+            counters.dropped++;
+        return offered;
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public int poll() {
+        return mRing.poll(mOut);
+    }
+}
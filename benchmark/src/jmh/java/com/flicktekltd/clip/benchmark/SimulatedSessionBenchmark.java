@@ -0,0 +1,105 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.ClipProtocol;
+import com.flicktekltd.clip.protocol.ClipSession;
+import com.flicktekltd.clip.protocol.ClipSimulator;
+import com.flicktekltd.clip.protocol.CommandEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A minute of clip traffic from {@link ClipSimulator} through the protocol core: the handshake, then a gesture
+ * and its capture every half a second. The score is simulated minutes per second, how many times faster than
+ * real time the SDK side keeps up. The captures that arrive incomplete show what the loss rate does to them.
+ * <p>
+ * With <code>sessionFile</code> set the recorded session is replayed instead, once per invocation.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SimulatedSessionBenchmark {
+    private static final long DURATION = 60000;
+    private static final long GESTURE_INTERVAL = 500;
+
+    @Param({"23", "247"})
+    public int mtu;
+
+    @Param({"0", "0.02"})
+    public double lossRate;
+
+    @Param({"30"})
+    public long latency;
+
+    @Param({"200"})
+    public int sampleRate;
+
+    // Session written by ClipSession, replayed instead of the simulated gestures when set
+    @Param({""})
+    public String sessionFile;
+
+    private ClipSession mSession;
+    private ClipSimulator mSimulator;
+
+    private final CountingSink mSink = new CountingSink() {
+        @Override
+        public void onCommand(byte command, byte value) {
+            super.onCommand(command, value);
+
+            // Handshake done, turn the captures on like FlicktekCommands does
+            if (command == 'O' && value == 'K')
+                mSimulator.write(CommandEncoder.encode('s', 1));
+        }
+    };
+
+    private final ClipProtocol mProtocol = new ClipProtocol(mSink);
+
+    @Setup
+    public void setup() throws IOException {
+        if (!sessionFile.isEmpty()) {
+            final FileReader reader = new FileReader(sessionFile);
+            try {
+                mSession = ClipSession.read(reader);
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    @Benchmark
+    public int simulatedMinute() {
+        mSimulator = new ClipSimulator(new ClipSimulator.Listener() {
+            @Override
+            public void onNotification(byte[] data) {
+                mProtocol.onNotification(data, 0, data.length);
+            }
+        }, new Random(42));
+
+        mSimulator.setMtu(mSession != null ? mSession.getMtu() : mtu);
+        mSimulator.setLossRate(lossRate);
+        mSimulator.setLatency(latency, latency / 2);
+        mSimulator.setSampleRate(sampleRate);
+
+        if (mSession != null) {
+            mSimulator.replay(mSession);
+            mSimulator.advanceTo(mSession.getDuration() + latency * 2);
+        } else {
+            mSimulator.setGestureInterval(GESTURE_INTERVAL);
+            mSimulator.write(CommandEncoder.encode('O', 1));
+            mSimulator.advanceTo(DURATION);
+        }
+        return mSink.value + mSink.captures;
+    }
+}
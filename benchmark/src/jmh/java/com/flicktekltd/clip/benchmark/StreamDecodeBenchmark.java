@@ -0,0 +1,162 @@
+package com.flicktekltd.clip.benchmark;
+
+import com.flicktekltd.clip.protocol.CaptureFrame;
+import com.flicktekltd.clip.protocol.CaptureFramePool;
+import com.flicktekltd.clip.protocol.ChannelDemux;
+import com.flicktekltd.clip.protocol.ClipProtocol;
+import com.flicktekltd.clip.protocol.GrowableByteBuffer;
+import com.flicktekltd.clip.protocol.SampleStreamDispatcher;
+import com.flicktekltd.clip.protocol.SampleStreamListener;
+import com.flicktekltd.clip.protocol.StreamDecoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole capture going through the path of FlicktekCommands.onBufferArrived():
+ * channel check, raw copy, decoding into a pooled frame and sample notification.
+ * <p>
+ * {@link #decodeBlocks(Blackhole)} is what the SDK does, {@link #decodeBytes(Blackhole)} is the byte by byte
+ * StreamDecode() path kept as a reference. {@link #captureSession()} feeds the whole session,
+ * reports included, through the protocol core like FlicktekCommands does.
+ * </p>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamDecodeBenchmark {
+
+    // Samples in the generated capture, the clip sends up to a few hundreds per gesture
+    @Param({"300", "1200"})
+    public int samples;
+
+    // Raw stream recorded from a clip, used instead of the generated one when set
+    @Param({""})
+    public String captureFile;
+
+    private CaptureRecording mRecording;
+    private final CaptureFramePool mPool = new CaptureFramePool();
+    private final StreamDecoder mDecoder = new StreamDecoder();
+    private final SampleStreamDispatcher mSampleStream = new SampleStreamDispatcher();
+
+    private int mReceived;
+
+    private final CountingSink mSink = new CountingSink();
+    private final ClipProtocol mProtocol = new ClipProtocol(mSink);
+    private byte[] mStartReport;
+    private byte[] mEndReport;
+
+    @Setup
+    public void setup() throws IOException {
+        mRecording = captureFile.isEmpty()
+                ? CaptureRecording.generate(samples, 42)
+                : CaptureRecording.load(new File(captureFile), samples);
+
+        mStartReport = ("[STS_DATA:" + mRecording.samples + "]").getBytes("US-ASCII");
+        mEndReport = ("[STE_DATA:" + mRecording.samples + "]").getBytes("US-ASCII");
+
+        mSampleStream.addListener(new SampleStreamListener() {
+            @Override
+            public void onStreamStarted(int samples) {
+                mReceived = 0;
+            }
+
+            @Override
+            public void onSamples(int[] data, int start, int count) {
+                mReceived += count;
+            }
+
+            @Override
+            public void onStreamEnded(int decoded, boolean complete) {
+            }
+        });
+    }
+
+    @Benchmark
+    public int decodeBlocks(Blackhole bh) {
+        final CaptureFrame frame = start();
+        final int[] out = frame.samples();
+        final GrowableByteBuffer raw = frame.raw();
+        final int total = mRecording.samples;
+
+        for (byte[] data : mRecording.notifications) {
+            if (ChannelDemux.classify(data, 0, data.length, true, false) != ChannelDemux.CHANNEL_SAMPLES)
+                continue;
+
+            raw.append(data);
+
+            final int position = mDecoder.getPosition();
+            final boolean complete = mDecoder.decode(data, 0, data.length, out, total);
+            mSampleStream.samples(out, position, Math.min(mDecoder.getPosition(), total) - position);
+
+            if (complete)
+                break;
+        }
+
+        return end(frame, bh);
+    }
+
+    @Benchmark
+    public int decodeBytes(Blackhole bh) {
+        final CaptureFrame frame = start();
+        final int[] out = frame.samples();
+        final GrowableByteBuffer raw = frame.raw();
+        final int total = mRecording.samples;
+
+        notifications:
+        for (byte[] data : mRecording.notifications) {
+            if (ChannelDemux.classify(data, 0, data.length, true, false) != ChannelDemux.CHANNEL_SAMPLES)
+                continue;
+
+            for (byte b : data) {
+                raw.append(b);
+
+                final int position = mDecoder.getPosition();
+                final boolean complete = mDecoder.decodeByte(b, out, total);
+                if (mDecoder.getPosition() != position)
+                    mSampleStream.samples(out, position, Math.min(mDecoder.getPosition(), total) - position);
+
+                if (complete)
+                    break notifications;
+            }
+        }
+
+        return end(frame, bh);
+    }
+
+    @Benchmark
+    public int captureSession() {
+        mProtocol.onNotification(mStartReport, 0, mStartReport.length);
+        for (byte[] data : mRecording.notifications) {
+            mProtocol.onNotification(data, 0, data.length);
+        }
+        mProtocol.onNotification(mEndReport, 0, mEndReport.length);
+        return mSink.value;
+    }
+
+    private CaptureFrame start() {
+        final CaptureFrame frame = mPool.obtain(mRecording.samples * StreamDecoder.CHANNELS, 5500);
+        frame.raw().ensureCapacity(mRecording.samples * 8);
+        mDecoder.reset();
+        mSampleStream.started(mRecording.samples);
+        return frame;
+    }
+
+    private int end(CaptureFrame frame, Blackhole bh) {
+        mSampleStream.ended(mDecoder.getPosition(), mDecoder.getPosition() >= mRecording.samples);
+        bh.consume(frame.samples());
+        frame.release();
+        return mReceived;
+    }
+}
@@ -6,18 +6,33 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.os.Vibrator;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.flicktekltd.clip.ble.ConnectionTimeline;
+import com.flicktekltd.clip.ble.LinkPolicy;
 import com.flicktekltd.clip.common.R;
+import com.flicktekltd.clip.protocol.CaptureFrame;
+import com.flicktekltd.clip.protocol.ChannelDemux;
+import com.flicktekltd.clip.protocol.ClipProtocol;
+import com.flicktekltd.clip.protocol.CommandCoalescer;
+import com.flicktekltd.clip.protocol.CommandEncoder;
+import com.flicktekltd.clip.protocol.ProtocolSink;
+import com.flicktekltd.clip.protocol.ReportHandler;
+import com.flicktekltd.clip.protocol.SampleStreamListener;
+import com.flicktekltd.clip.protocol.StreamDecoder;
 
 import org.greenrobot.eventbus.EventBus;
 
 import java.util.ArrayList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import static android.content.Context.VIBRATOR_SERVICE;
 import static android.os.Debug.isDebuggerConnected;
@@ -42,30 +57,188 @@ public class FlicktekCommands {
     public interface UARTInterface {
         public void sendString(final String data);
 
+        // Commands, they are sent ahead of any string waiting in the queue
         public void sendDataBuffer(final byte[] data);
     }
 
+    /**
+     * Optional, for data channels that know about the link underneath. A plain {@link UARTInterface}
+     * gets commands in packets of {@link #DEFAULT_PACKET_SIZE} bytes and no connection priority changes.
+     */
+    public interface UARTLinkInterface extends UARTInterface {
+        // Largest buffer that goes out in a single write
+        public int getMaxPacketSize();
+
+        // One of the LinkPolicy modes
+        public void setConnectionPriority(int priority);
+    }
+
+    // Payload of a BLE write with the default MTU
+    public static final int DEFAULT_PACKET_SIZE = 20;
+
     private UARTInterface mDataChannel = null;
+    private volatile ConnectionTimeline mConnectionTimeline = null;
 
     public void registerDataChannel(UARTInterface data_channel) {
         mDataChannel = data_channel;
+        mCommandCoalescer.clear();
+    }
+
+    private final CommandCoalescer mCommandCoalescer = new CommandCoalescer(new CommandCoalescer.Output() {
+        @Override
+        public void send(byte[] data) {
+            UARTInterface channel = mDataChannel;
+            if (channel != null) {
+                channel.sendDataBuffer(data);
+            } else {
+                Log.v(TAG, "+++++++++++ COMMANDS FAILED " + new String(data) + "+++++++++++++++++");
+            }
+        }
+    }, DEFAULT_PACKET_SIZE, 512);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    /**
+     * Holds the commands written until {@link #endCommandBatch()} and sends them in as few writes as possible.
+     * Batches can be nested, commands go out when the outermost one ends.
+     */
+    public void beginCommandBatch() {
+        mCommandCoalescer.beginBatch();
+    }
+
+    public void endCommandBatch() {
+        mCommandCoalescer.endBatch();
+    }
+
+    // Switches the connection parameters with what we are doing with the clip
+    private final LinkPolicy mLinkPolicy = new LinkPolicy(new LinkPolicy.Listener() {
+        @Override
+        public void onLinkModeChanged(int previousMode, int mode, int activities, long previousDuration) {
+            Log.v(TAG, "+ LINK " + LinkPolicy.modeName(previousMode) + " -> " + LinkPolicy.modeName(mode) +
+                    " after " + previousDuration + " ms, activities " + activities);
+
+            UARTInterface channel = mDataChannel;
+            if (channel instanceof UARTLinkInterface)
+                ((UARTLinkInterface) channel).setConnectionPriority(mode);
+
+            postEvent(new onLinkModeChanged(previousMode, mode, activities, previousDuration, mBatteryLevel));
+        }
+    });
+
+    public LinkPolicy getLinkPolicy() {
+        return mLinkPolicy;
+    }
+
+    // Keeps the high priority connection while the application updates the clip firmware
+    public void setFirmwareTransferActive(boolean active) {
+        mLinkPolicy.setActivity(LinkPolicy.ACTIVITY_FIRMWARE_TRANSFER, active);
+    }
+
+    private static boolean isCalibrationState(int state) {
+        return state == STATUS_CALIB || (state >= STATUS_PRECALIB_AMP && state <= STATUS_PRECALIB_DEB);
     }
 
     // Time for the device to go to sleep after it gets out of focus
     private static final long ALARM_SLEEP_TIME = 60000;
 
-    // Singleton
+    // Singleton, the primary clip. FlicktekManager follows this one.
     private static FlicktekCommands mInstance = null;
 
-    public static FlicktekCommands getInstance() {
+    // Every other clip connected at the same time, by address
+    private static final Map<String, FlicktekCommands> mClips = new HashMap<>();
+
+    public static synchronized FlicktekCommands getInstance() {
         if (mInstance == null)
             mInstance = new FlicktekCommands();
         return mInstance;
     }
 
+    /**
+     * Returns the commands of the given clip. The primary clip gets the singleton, it takes the first address
+     * it sees unless {@link #setDeviceAddress(String)} was called. Every other clip gets its own instance with
+     * its own decoder, command queue and link policy.
+     */
+    public static synchronized FlicktekCommands getInstance(String address) {
+        final FlicktekCommands primary = getInstance();
+        if (address == null || address.equals(primary.mAddress))
+            return primary;
+
+        if (primary.mAddress == null) {
+            primary.mAddress = address;
+            return primary;
+        }
+
+        FlicktekCommands clip = mClips.get(address);
+        if (clip == null) {
+            clip = new FlicktekCommands();
+            clip.mAddress = address;
+            if (primary.mContext != null)
+                clip.init(primary.mContext);
+            mClips.put(address, clip);
+        }
+        return clip;
+    }
+
+    // The primary clip and every other clip we have seen
+    public static synchronized List<FlicktekCommands> getInstances() {
+        final List<FlicktekCommands> clips = new ArrayList<>(mClips.size() + 1);
+        clips.add(getInstance());
+        clips.addAll(mClips.values());
+        return clips;
+    }
+
+    // Forgets a clip that is not used anymore
+    public static synchronized void removeInstance(String address) {
+        mClips.remove(address);
+    }
+
     // Clears the instance so we start fresh
-    public static void onDestroy() {
+    public static synchronized void onDestroy() {
         mInstance = null;
+        mClips.clear();
+    }
+
+    // Address of the clip, null until the primary clip knows which one it is
+    private volatile String mAddress;
+
+    /**
+     * Makes the given clip the primary one, call it before connecting to it.
+     */
+    public void setDeviceAddress(String address) {
+        synchronized (FlicktekCommands.class) {
+            mClips.remove(address);
+            mAddress = address;
+        }
+    }
+
+    public String getDeviceAddress() {
+        return mAddress;
+    }
+
+    public boolean isPrimary() {
+        return this == mInstance;
+    }
+
+    // FlicktekManager only keeps the state of the primary clip, the others keep theirs here
+    private boolean mHandshakeOk = false;
+    private int mBatteryLevel = 0;
+
+    private boolean isHandshakeOk() {
+        return isPrimary() ? FlicktekManager.getInstance().isHandshakeOk() : mHandshakeOk;
+    }
+
+    private void setHandshakeOk(boolean handshakeOk) {
+        mHandshakeOk = handshakeOk;
+        if (isPrimary())
+            FlicktekManager.getInstance().setHandshakeOk(handshakeOk);
+    }
+
+    // The connection to the clip has been released
+    public void onRelease() {
+        mHandshakeOk = false;
+        mBatteryLevel = 0;
+        if (isPrimary())
+            FlicktekManager.getInstance().onRelease();
     }
 
     // Settings command values
@@ -333,8 +506,10 @@ public class FlicktekCommands {
 
     public void onBatteryValueReceived(final int value) {
         Log.v(TAG, "onBatteryValueReceived " + value);
-        FlicktekManager.getInstance().setBatteryLevel(value);
-        EventBus.getDefault().post(new onBatteryEvent(value));
+        mBatteryLevel = value;
+        if (isPrimary())
+            FlicktekManager.getInstance().setBatteryLevel(value);
+        postEvent(new onBatteryEvent(value));
     }
 
     public void init(Context context) {
@@ -367,9 +542,26 @@ public class FlicktekCommands {
     public void onReadyToSendData(boolean ready) {
         Log.v(TAG, "onReadyToSendData " + ready);
         Log.v(TAG, "---------- LETS REPORT WE ARE ALIVE------------");
+        // Bonded clips get a handshake before the notifications are enabled, that one doesn't count
+        if (ready)
+            markConnectionPhase(ConnectionTimeline.PHASE_READY_TO_SEND);
         writeSingleCommand(COMMAND_OK, 1);
     }
 
+    /**
+     * Timeline of the connection in progress, the commands mark the phases of the handshake on it.
+     * Set by whoever owns the connection, null when there is none.
+     */
+    public void setConnectionTimeline(ConnectionTimeline timeline) {
+        mConnectionTimeline = timeline;
+    }
+
+    private void markConnectionPhase(int phase) {
+        ConnectionTimeline timeline = mConnectionTimeline;
+        if (timeline != null)
+            timeline.mark(phase);
+    }
+
     public void onQueryVersions() {
         Log.v(TAG, "------------- REQUEST REVISION ----------------");
         writeSingleCommand(COMMAND_VERSION, VERSION_REVISION);
@@ -382,9 +574,19 @@ public class FlicktekCommands {
 
     public void onDeviceRespondedToConnection() {
         mDevice_State = STATUS_IDLE;
-        onQueryVersions();
-        Log.v(TAG, "----------- REQUEST SAMPLING RATE 200HZ ---------------");
-        setCaptureRate(1);
+
+        // The clip starts idle, nothing from the previous connection is running
+        mLinkPolicy.setActivity(LinkPolicy.ACTIVITY_STREAMING | LinkPolicy.ACTIVITY_CALIBRATION, false);
+        mLinkPolicy.setSleeping(false);
+
+        beginCommandBatch();
+        try {
+            onQueryVersions();
+            Log.v(TAG, "----------- REQUEST SAMPLING RATE 200HZ ---------------");
+            setCaptureRate(1);
+        } finally {
+            endCommandBatch();
+        }
     }
 
     /*
@@ -432,9 +634,9 @@ public class FlicktekCommands {
         SensorState state = consumeGestureState();
 
         if (value == FlicktekManager.GESTURE_NONE) {
-            EventBus.getDefault().post(new onGestureNotClassified(state));
+            postEvent(new onGestureNotClassified(state));
         } else {
-            EventBus.getDefault().post(new onGestureEvent(value, state));
+            postEvent(new onGestureEvent(value, state));
             vibration_patterns(value);
         }
 
@@ -448,22 +650,21 @@ public class FlicktekCommands {
     //---------- Write commands -----------------------------------------------------
 
     public void writeSingleCommand(char command, int value) {
-        byte buf[] = new byte[4];
-        buf[0] = COMMAND_START;
-        buf[1] = (byte) command;
+        UARTInterface channel = mDataChannel;
+        if (channel == null) {
+            Log.v(TAG, "+++++++++++ COMMAND FAILED " + new String(CommandEncoder.encode(command, value)) + "+++++++++++++++++");
+            return;
+        }
 
-        if (value < '0')
-            value += '0';
+        Log.v(TAG, "++++++++++++++++ COMMAND " + new String(CommandEncoder.encode(command, value)) + "++++++++++++++++++");
 
-        buf[2] = (byte) value;
-        buf[3] = COMMAND_END;
+        // The MTU might have changed since the last command
+        mCommandCoalescer.setMaxLength(channel instanceof UARTLinkInterface ?
+                ((UARTLinkInterface) channel).getMaxPacketSize() : DEFAULT_PACKET_SIZE);
 
-        if (mDataChannel != null) {
-            Log.v(TAG, "++++++++++++++++ COMMAND " + new String(buf) + "++++++++++++++++++");
-            mDataChannel.sendDataBuffer(buf);
-        } else {
-            Log.v(TAG, "+++++++++++ COMMAND FAILED " + new String(buf) + "+++++++++++++++++");
-        }
+        // Sent straight away, only the commands of a batch wait for each other
+        mCommandCoalescer.add(command, value);
+        mCommandCoalescer.flush();
     }
 
     public void writeStatus_Ping() {
@@ -534,6 +735,9 @@ public class FlicktekCommands {
         int value = 0;
         if (stream)
             value = 1;
+
+        // Before the command, so the faster connection is requested ahead of the stream
+        mLinkPolicy.setActivity(LinkPolicy.ACTIVITY_STREAMING, stream);
         writeSingleCommand(COMMAND_SENSOR_STREAMING, value);
     }
 
@@ -577,19 +781,27 @@ public class FlicktekCommands {
         gestureStatus = GESTURE_STATUS_NONE;
         currentGestureIndex = 1;
         currentGestureIteration = 1;
-        writeStatus_Calib();
 
-        if (isDebuggerConnected()) {
-            Log.v(TAG, "--------------- DEBUG ACTIVE -------------------");
+        mLinkPolicy.setActivity(LinkPolicy.ACTIVITY_CALIBRATION, true);
+
+        beginCommandBatch();
+        try {
+            writeStatus_Calib();
 
-            // Report all the prints through the BLE UART channel
-            writeSingleCommand(COMMAND_DEBUG, 1);
+            if (isDebuggerConnected()) {
+                Log.v(TAG, "--------------- DEBUG ACTIVE -------------------");
 
-            // Fake calibration!
-            Log.v(TAG, "-----------FAKE CALIBRATION ACTIVE -------------");
-            writeSingleCommand(COMMAND_DEBUG, 2);
-        } else {
-            writeSingleCommand(COMMAND_DEBUG, 0);
+                // Report all the prints through the BLE UART channel
+                writeSingleCommand(COMMAND_DEBUG, 1);
+
+                // Fake calibration!
+                Log.v(TAG, "-----------FAKE CALIBRATION ACTIVE -------------");
+                writeSingleCommand(COMMAND_DEBUG, 2);
+            } else {
+                writeSingleCommand(COMMAND_DEBUG, 0);
+            }
+        } finally {
+            endCommandBatch();
         }
     }
 
@@ -603,7 +815,7 @@ public class FlicktekCommands {
         //This info is only used so far for the calibration therefore I move it to the calibration status only
         calibrationStatus = _value;
         if (_value == STATUS_CALIB) {
-            EventBus.getDefault().post(new onCalibrationWritten(_value));
+            postEvent(new onCalibrationWritten(_value));
             Log.d(TAG, "onCalibrationModeWritten: calibration mode scritto correttamente " + _value);
         }
 
@@ -619,6 +831,7 @@ public class FlicktekCommands {
     public void stopCalibration() {
         Log.d(TAG, "stopCalibration: ");
         //TODO: implement the control on the Calibration_Attribute
+        mLinkPolicy.setActivity(LinkPolicy.ACTIVITY_CALIBRATION, false);
         writeStatus_Exec();
     }
 
@@ -646,7 +859,7 @@ public class FlicktekCommands {
         Log.d(TAG, "onGestureStatusWritten: " + _value + currentGestureIndex + " Iteration " + currentGestureIteration);
         if (_value == GESTURE_STATUS_STARTED) {
             gestureStatus = GESTURE_STATUS_STARTED;
-            EventBus.getDefault().post(new onCalibrationStepStarted(currentGestureIndex, currentGestureIteration));
+            postEvent(new onCalibrationStepStarted(currentGestureIndex, currentGestureIteration));
             return;
         }
     }
@@ -704,10 +917,12 @@ public class FlicktekCommands {
             case COMMAND_CAS_IS_CALIBRATED:
                 if (value == 0) {
                     Log.v(TAG, "Clip is not calibrated!");
-                    FlicktekManager.getInstance().setCalibration(false);
-                    EventBus.getDefault().post(new onNotCalibrated());
+                    if (isPrimary())
+                        FlicktekManager.getInstance().setCalibration(false);
+                    postEvent(new onNotCalibrated());
                 } else {
-                    FlicktekManager.getInstance().setCalibration(true);
+                    if (isPrimary())
+                        FlicktekManager.getInstance().setCalibration(true);
                     writeStatus_Exec();
                 }
                 break;
@@ -733,6 +948,8 @@ public class FlicktekCommands {
                 }
 
                 mDevice_State = value;
+                mLinkPolicy.setSleeping(value == STATUS_SLEEP);
+                mLinkPolicy.setActivity(LinkPolicy.ACTIVITY_CALIBRATION, isCalibrationState(value));
                 return;
             case COMMAND_CAS_GESTURE_STATUS:
                 onGestureStatusFeedback(value);
@@ -742,367 +959,284 @@ public class FlicktekCommands {
                 break;
         }
 
-        EventBus.getDefault().post(new onDeviceACK(true, cmd, value));
+        postEvent(new onDeviceACK(true, cmd, value));
     }
 
     public void responseNAK(byte cmd, byte number) {
         int value = number - '0';
-        EventBus.getDefault().post(new onDeviceACK(false, cmd, value));
+        postEvent(new onDeviceACK(false, cmd, value));
     }
 
-    // Data packages always have the following format [CMD:DATA]
-    public void processReport(String cmd, String response) {
-        switch (cmd) {
-            case "ACK":
-                byte[] bytes = response.getBytes();
-                responseACK(bytes[0], bytes[1]);
-                break;
-            case "NAK":
-                byte[] bytesNAK = response.getBytes();
-                responseNAK(bytesNAK[0], bytesNAK[1]);
-                break;
-            case "BT":
-                if (response.equals("1")) {
-                    Log.v(TAG, "Main Button pressed " + mDevice_State);
-                }
+    // Protocol decoding lives in the Android free core, we only turn its output into events.
+    private final ProtocolSink mProtocolSink = new ProtocolSink() {
+        @Override
+        public void onCommand(byte command, byte value) {
+            processCommand(command, value);
+        }
 
-                if (mDevice_State == STATUS_SLEEP) {
-                    setApplicationPaused(false);
-                }
+        @Override
+        public void onAcknowledge(boolean ack, byte command, byte value) {
+            if (ack) {
+                responseACK(command, value);
+            } else {
+                responseNAK(command, value);
+            }
+        }
 
-                onGestureChanged(FlicktekManager.GESTURE_PHYSICAL_BUTTON);
-                EventBus.getDefault().post(new onButtonPressed(response));
-                break;
-            case "STK":
-                int res = Integer.valueOf(response);
-                FlicktekManager.getInstance().setSamplingRateTicks(res);
-                EventBus.getDefault().post(new onStreamingSpeed(res));
-                break;
-            case "GIT":
-                Log.v(TAG, "+ FIRMWARE REVISION " + response);
-                FlicktekManager.getInstance().setFirmwareRevision(response);
-                EventBus.getDefault().post(new onRevisionRequested(response));
-                break;
-            case "VER":
-                Log.v(TAG, "+ FIRMWARE VERSION " + response);
-                FlicktekManager.getInstance().setFirmwareVersion(response);
-                EventBus.getDefault().post(new onVersionRequested(response));
-                break;
-            case "STS_DATA":
-                Log.v(TAG, "+ STARTING DATA CAPTURING " + response);
-                int data_values = Integer.valueOf(response);
-                DataCaptureModeStart(data_values);
-                break;
-            case "STE_DATA":
-                // Parcial stream, send whatever we have to be displayed
-                if (mDataCapturing) {
-                    mDataCapturing = false;
-                    EventBus.getDefault().post(new onGestureRawData(mLastGesture, u16t_sensor,
-                            toByteArray(sensor_buffer)));
-                    Log.v(TAG, "+ End of stream but we don't have all the data");
-                }
+        @Override
+        public void onButton(String response) {
+            if (response.equals("1")) {
+                Log.v(TAG, "Main Button pressed " + mDevice_State);
+            }
 
-                Log.v(TAG, "+ ENDING DATA CAPTURING " + response);
-                int data_streamed = Integer.valueOf(response);
-                DataCaptureModeEnd(data_streamed);
-                break;
+            if (mDevice_State == STATUS_SLEEP) {
+                setApplicationPaused(false);
+            }
+
+            onGestureChanged(FlicktekManager.GESTURE_PHYSICAL_BUTTON);
+            postEvent(new onButtonPressed(response));
+        }
+
+        @Override
+        public void onStreamingTicks(int ticks) {
+            if (isPrimary())
+                FlicktekManager.getInstance().setSamplingRateTicks(ticks);
+            postEvent(new onStreamingSpeed(ticks));
+        }
+
+        @Override
+        public void onRevision(String revision) {
+            Log.v(TAG, "+ FIRMWARE REVISION " + revision);
+            if (isPrimary())
+                FlicktekManager.getInstance().setFirmwareRevision(revision);
+            postEvent(new onRevisionRequested(revision));
+        }
+
+        @Override
+        public void onVersion(String version) {
+            Log.v(TAG, "+ FIRMWARE VERSION " + version);
+            if (isPrimary())
+                FlicktekManager.getInstance().setFirmwareVersion(version);
+            postEvent(new onVersionRequested(version));
         }
+
+        @Override
+        public void onCaptureStarted(int samples) {
+            mDataSize = samples;
+            mDataCapturing = true;
+        }
+
+        @Override
+        public void onCaptureEnded(CaptureFrame frame, boolean complete) {
+            mDataCapturing = false;
+            postGestureRawData(frame);
+        }
+
+        @Override
+        public void onLog(String message) {
+            Log.v(TAG, message);
+        }
+    };
+
+    private final ClipProtocol mProtocol = new ClipProtocol(mProtocolSink);
+
+    /**
+     * Handles a report type the SDK doesn't know about, or replaces one of the built in handlers.
+     * Handlers run on the thread decoding the notifications, not the main thread.
+     *
+     * @param cmd report name, for example "BT" for [BT:1]
+     */
+    public void registerReportHandler(String cmd, ReportHandler handler) {
+        mProtocol.registerReportHandler(cmd, handler);
     }
 
-    private static final String REPORT_PATTERN = "\\[(\\w+):(.*)\\]";
+    public void unregisterReportHandler(String cmd) {
+        mProtocol.unregisterReportHandler(cmd);
+    }
 
+    // Data packages always have the following format [CMD:DATA]
+    public void processReport(String cmd, String response) {
+        byte[] cmdBytes = cmd.getBytes();
+        byte[] responseBytes = response.getBytes();
+        byte[] frame = new byte[cmdBytes.length + responseBytes.length];
+        System.arraycopy(cmdBytes, 0, frame, 0, cmdBytes.length);
+        System.arraycopy(responseBytes, 0, frame, cmdBytes.length, responseBytes.length);
+        processReport(frame, 0, cmdBytes.length, cmdBytes.length, responseBytes.length);
+    }
+
+    // Same as above but straight from the received bytes
+    public void processReport(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength) {
+        mProtocol.processReport(frame, cmdOffset, cmdLength, dataOffset, dataLength);
+    }
+
+    // Mirrors the state of the protocol core
     public boolean mDataCapturing = false;
     public int mDataSize = 0;
 
     private int mLastGesture = 0;
 
     public void DataCaptureModeStart(int data_values) {
-        mDataSize = data_values;
-        mDataCapturing = true;
-        u16t_sensor = new int[data_values * 4];
-
-        for (int t = 0; t < u16t_sensor.length; t++) {
-            u16t_sensor[t] = 5500;
-        }
-
-        sensor_buffer = new ArrayList<Byte>();
-
-        decoding_state = STREAM_FULL_16BITS;
-        decoding_position = 0;
-        decoding_16bits = -1;
-        decoding_sensor = 0;
-        decoding_total_bytes = 0;
+        mProtocol.startCapture(data_values);
     }
 
     public void DataCaptureModeEnd(int data_values) {
-        if (mDataSize != data_values) {
-            Log.v(TAG, "Failed streaming data!");
-        }
-        mDataCapturing = false;
+        mProtocol.finishCapture(data_values);
+        mDataCapturing = mProtocol.isCapturing();
     }
 
     public static void printHex(byte[] buf) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("Data " + buf.length + " [ ");
-
-        for (byte b : buf) {
-            sb.append(String.format("%02X ", b));
-        }
-
-        sb.append("]");
-        Log.v(TAG, sb.toString());
+        Log.v(TAG, ClipProtocol.hex(buf, 0, buf.length));
     }
 
-    public static final int PAYLOAD_SIGNAL = 0xFF;
-    public static final int PAYLOAD_8BITS = 0xFE;
-    public static final int PAYLOAD_16BITS = 0xFD;
+    public static final int PAYLOAD_SIGNAL = StreamDecoder.PAYLOAD_SIGNAL;
+    public static final int PAYLOAD_8BITS = StreamDecoder.PAYLOAD_8BITS;
+    public static final int PAYLOAD_16BITS = StreamDecoder.PAYLOAD_16BITS;
 
-    public static final int STREAM_FULL_16BITS = 0;
-    public static final int STREAM_SIGNAL_COUNT = 1;
-    public static final int STREAM_INC_8BITS = 2;
+    public static final int STREAM_FULL_16BITS = StreamDecoder.STREAM_FULL_16BITS;
+    public static final int STREAM_SIGNAL_COUNT = StreamDecoder.STREAM_SIGNAL_COUNT;
+    public static final int STREAM_INC_8BITS = StreamDecoder.STREAM_INC_8BITS;
 
-    private int decoding_state = STREAM_FULL_16BITS;
-    private int decoding_position = 0;
-    private int decoding_16bits = -1;
-    private int decoding_sensor = 0;
-    private int decoding_total_bytes = 0;
+    // Picked up by the protocol core on the next notification
     public boolean decoding_debug = false;
 
-    private int u16t_sensor[];
-    private ArrayList<Byte> sensor_buffer;
+    private void postGestureRawData(final CaptureFrame frame) {
+        final onGestureRawData event = new onGestureRawData(mLastGesture, frame);
+        event.samples_decoded = mProtocol.getDecodedSamples();
+        event.samples_lost = mProtocol.getLostSamples();
+        event.resyncs = mProtocol.getResyncCount();
 
-    public static byte[] toByteArray(ArrayList<Byte> in) {
-        final int n = in.size();
-        byte ret[] = new byte[n];
-        for (int i = 0; i < n; i++) {
-            ret[i] = in.get(i);
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            EventBus.getDefault().post(event);
+            return;
         }
-        return ret;
+
+        // The decoder can reuse the frame before the main thread gets to it
+        event.acquire();
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    EventBus.getDefault().post(event);
+                } finally {
+                    event.release();
+                }
+            }
+        });
     }
 
-    private final int centre_signal[] = {5488, 5488, 5488, 5488};
+    // Subscribers always get the events on the main thread, the notifications are decoded on a thread of their own
+    private void postEvent(final Object event) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            EventBus.getDefault().post(event);
+            return;
+        }
+
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                EventBus.getDefault().post(event);
+            }
+        });
+    }
 
     public static int unsignedToBytes(byte b) {
         return b & 0xFF;
     }
 
+    // Byte by byte decoding, onBufferArrived decodes whole notifications instead.
     void StreamDecode(byte data_byte) {
-        int old_value;
-        int unsigned_value = unsignedToBytes(data_byte);
-        int signed_value = data_byte;
-
-        if (decoding_sensor == 0 && decoding_16bits == -1) {
-            switch (unsigned_value) {
-                case PAYLOAD_SIGNAL:
-                    decoding_state = STREAM_SIGNAL_COUNT;
-                    if (decoding_debug)
-                        Log.v(TAG, "---------- STREAM_SIGNAL_COUNT --------- \n");
-                    return;
-                case PAYLOAD_8BITS:
-                    decoding_state = STREAM_INC_8BITS;
-                    if (decoding_debug)
-                        Log.v(TAG, "---------- STREAM_INC_8BITS --------- \n");
-                    return;
-                case PAYLOAD_16BITS:
-                    decoding_state = STREAM_FULL_16BITS;
-                    if (decoding_debug)
-                        Log.v(TAG, "---------- STREAM_FULL_16BITS --------- \n");
-                    return;
-            }
-        }
+        mProtocol.onSampleByte(data_byte);
+    }
 
-        switch (decoding_state) {
-            case STREAM_FULL_16BITS:
-                if (decoding_16bits == -1) {
-                    decoding_16bits = unsigned_value << 8;
-                    return;
-                }
+    // Samples that never made it into the capture, lost notifications or data skipped to resynchronise.
+    public int getLostSamples() {
+        return mProtocol.getLostSamples();
+    }
 
-                unsigned_value += decoding_16bits;
-                decoding_16bits = -1;
-                break;
-            case STREAM_INC_8BITS:
-                old_value = u16t_sensor[(decoding_position - 1) * 4 + decoding_sensor];
-                unsigned_value = old_value + signed_value;
-                break;
-            case STREAM_SIGNAL_COUNT:
-                if (decoding_debug)
-                    Log.v(TAG, "- Repeat " + unsigned_value);
-
-                int pos = (decoding_position) * 4;
-                for (int t = 0; t < unsigned_value; t++) {
-                    for (int c = 0; c < 4; c++) {
-                        u16t_sensor[pos + c] = centre_signal[c];
-                    }
-                    pos += 4;
-                    decoding_position++;
-                }
-                decoding_sensor = 0;
-                return;
-        }
+    // Resynchronise the stream on the next 16 bits block when notifications are lost
+    public void setStreamResyncEnabled(boolean enabled) {
+        mProtocol.setStreamResyncEnabled(enabled);
+    }
 
-        //Log.v(TAG, " " + unsigned_value);
-        int pos = decoding_position * 4 + decoding_sensor;
-        if (pos >= u16t_sensor.length) {
-            Log.v(TAG, "! Problems streaming ");
-            return;
-        }
+    //---------- Streaming of samples ------------------------------------------------
 
-        u16t_sensor[pos] = unsigned_value;
-        decoding_sensor++;
-        if (decoding_sensor == 4) {
-            if (decoding_debug)
-                Log.v(TAG, decoding_position + " " +
-                        u16t_sensor[decoding_position * 4 + 0] + " " +
-                        u16t_sensor[decoding_position * 4 + 1] + " " +
-                        u16t_sensor[decoding_position * 4 + 2] + " " +
-                        u16t_sensor[decoding_position * 4 + 3]);
-
-            decoding_sensor = 0;
-            decoding_position++;
-
-            if (decoding_position == mDataSize) {
-                mDataCapturing = false;
-                EventBus.getDefault().post(new onGestureRawData(mLastGesture, u16t_sensor,
-                        toByteArray(sensor_buffer)));
-                Log.v(TAG, "+ End of stream! " + decoding_total_bytes + " bytes transferred");
-                return;
-            }
-        }
+    // Listeners get the samples as soon as each notification is decoded,
+    // instead of waiting for onGestureRawData at the end of the capture.
+    public boolean addSampleStreamListener(SampleStreamListener listener) {
+        return mProtocol.addSampleStreamListener(listener);
     }
 
-    public boolean onBufferArrived(byte[] data) {
-        if (!mDataCapturing)
-            return false;
-
-        //if (decoding_debug)
-        printHex(data);
+    public boolean removeSampleStreamListener(SampleStreamListener listener) {
+        return mProtocol.removeSampleStreamListener(listener);
+    }
 
-        decoding_total_bytes += data.length;
-        for (byte b : data) {
-            sensor_buffer.add(b);
-            StreamDecode(b);
-        }
-        return true;
+    public boolean onBufferArrived(byte[] data) {
+        mProtocol.setDebug(decoding_debug);
+        return mProtocol.onSamples(data, 0, data.length);
     }
 
     // Basic check to search for binary data on the stream.
     public static boolean isSampleData(byte[] buf) {
-        for (int t = 0; t < buf.length; t++) {
-            if (buf[t] >= 127)
-                return true;
-
-            if (buf[t] < 32 && buf[t] != '\n') {
-                return true;
-            }
-        }
-        return false;
+        return ChannelDemux.isSampleData(buf, 0, buf.length);
     }
 
     public void onCommandArrived(byte[] buf_str) {
-        // Data can be lost so we look at the buffer to evaluate
-        // if the data is binary of not.
-        //
-        // We assume we have at least a byte outside ascii values.
-        if (isSampleData(buf_str)) {
-            onBufferArrived(buf_str);
-            return;
-        }
+        onCommandArrived(buf_str, 0, buf_str.length);
+    }
 
-        // We send an empty package to mark end of stream.
-        if (buf_str.length == 0) {
-            Log.v(TAG, "- Empty package");
-            if (mDataCapturing) {
-                // Parcial stream, send whatever we have to be displayed
-                EventBus.getDefault().post(new onGestureRawData(mLastGesture, u16t_sensor,
-                        toByteArray(sensor_buffer)));
-                mDataCapturing = false;
-            }
-            return;
-        }
+    // The buffer is only read during the call, the decoder thread reuses it for the next notification
+    public void onCommandArrived(byte[] buf, int offset, int length) {
+        mProtocol.setDebug(decoding_debug);
+        mProtocol.onNotification(buf, offset, length);
+    }
 
-        String data = new String(buf_str);
-        Log.v(TAG, "************************** " + data + " **************************");
-        try {
-            String report = new String(buf_str, "UTF-8");
-            Pattern pattern = Pattern.compile(REPORT_PATTERN);
-            Matcher matcher = pattern.matcher(report);
-            if (matcher.matches()) {
-                //Log.v(TAG, "GROUPS " + matcher.groupCount());
-                for (int t = 0; t < matcher.groupCount() + 1; t++) {
-                    Log.v(TAG, matcher.group(t));
-                }
+    // Found single value command {Cv}, ClipProtocol has already ended a capture it interrupted
+    public void processCommand(int cmd, int value) {
+        // If it is a number we like it in digital form.
+        if (value >= '0' && value <= '9') {
+            value -= '0';
+        }
 
-                if (matcher.groupCount() == 2) {
-                    processReport(matcher.group(1), matcher.group(2));
+        switch (cmd) {
+            case COMMAND_CHARGING_STATE:
+                boolean charging;
+                if (value == 1) {
+                    Log.v(TAG, "------------------ CHARGING REPORT! -------------------");
+                    charging = true;
                 } else {
-                    Log.v(TAG, "+ Too many items on report " + data);
+                    charging = false;
+                    Log.v(TAG, "------------------ DISCHARGING REPORT!-----------------");
                 }
-            }
-        } catch (Exception ex) {
-            Log.v(TAG, "+ Exception parsing " + data + " " + ex.toString());
-        }
-
-        // Found single value command
-        if (buf_str[0] == COMMAND_START && buf_str[3] == COMMAND_END) {
-            int cmd = buf_str[1];
-            int value = buf_str[2];
-
-            if (mDataCapturing) {
-                mDataCapturing = false;
-                Log.v(TAG, "+ Found command outside streaming!");
-
-                // Parcial stream, send whatever we have to be displayed
-                EventBus.getDefault().post(new onGestureRawData(mLastGesture, u16t_sensor,
-                        toByteArray(sensor_buffer)));
-            }
-
-            // If it is a number we like it in digital form.
-            if (value >= '0' && value <= '9') {
-                value -= '0';
-            }
-
-            switch (cmd) {
-                case COMMAND_CHARGING_STATE:
-                    boolean charging;
-                    if (value == 1) {
-                        Log.v(TAG, "------------------ CHARGING REPORT! -------------------");
-                        charging = true;
-                    } else {
-                        charging = false;
-                        Log.v(TAG, "------------------ DISCHARGING REPORT!-----------------");
-                    }
 
+                if (isPrimary())
                     FlicktekManager.getInstance().setChargingState(charging);
-                    EventBus.getDefault().post(new onChargingState(charging));
-                    break;
-                case COMMAND_GESTURE:
-                    mLastGesture = value;
-                    onGestureChanged(value);
-                    return;
-                case COMMAND_CAS_GESTURE_STATUS:
-                case COMMAND_CAS_GESTURE_FEEDBACK:
-                    onGestureStatusFeedback(value);
-                    onGestureStatusWritten(value);
-                    EventBus.getDefault().post(new onGestureStatusEvent(value));
-                    return;
-                case COMMAND_CAS_GESTURE_QUALITY:
-                    EventBus.getDefault().post(new onGestureQuality(value));
-                    break;
-                case COMMAND_OK:
-                    if (value == 'K') {
-                        Log.v(TAG, "------------------ OK FOUND! -------------------");
-                        if (!FlicktekManager.getInstance().isHandshakeOk()) {
-                            FlicktekManager.getInstance().setHandshakeOk(true);
-                            onDeviceRespondedToConnection();
-                            EventBus.getDefault().post(new onDeviceReady());
-                        }
+                postEvent(new onChargingState(charging));
+                break;
+            case COMMAND_GESTURE:
+                mLastGesture = value;
+                onGestureChanged(value);
+                return;
+            case COMMAND_CAS_GESTURE_STATUS:
+            case COMMAND_CAS_GESTURE_FEEDBACK:
+                onGestureStatusFeedback(value);
+                onGestureStatusWritten(value);
+                postEvent(new onGestureStatusEvent(value));
+                return;
+            case COMMAND_CAS_GESTURE_QUALITY:
+                postEvent(new onGestureQuality(value));
+                break;
+            case COMMAND_OK:
+                if (value == 'K') {
+                    Log.v(TAG, "------------------ OK FOUND! -------------------");
+                    if (!isHandshakeOk()) {
+                        setHandshakeOk(true);
+                        markConnectionPhase(ConnectionTimeline.PHASE_HANDSHAKE);
+                        onDeviceRespondedToConnection();
+                        postEvent(new onDeviceReady());
                     }
-                    break;
-            }
-            return;
+                }
+                break;
         }
-
         //EventBus.getDefault().post(new CharacterEvent(_value));
     }
 
@@ -1110,10 +1244,19 @@ public class FlicktekCommands {
     // FLICKTEK MESSAGES
     //------------------------------------------------------------------------------
 
-    public class onNotCalibrated {
+    // Every message says which clip it comes from, several can be connected at once
+    public abstract class ClipEvent {
+        public final String address = mAddress;
+
+        public FlicktekCommands getClip() {
+            return FlicktekCommands.this;
+        }
+    }
+
+    public class onNotCalibrated extends ClipEvent {
     }
 
-    public class onCalibrationWritten {
+    public class onCalibrationWritten extends ClipEvent {
         public int status;
 
         public onCalibrationWritten(int status) {
@@ -1121,7 +1264,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onCalibrationStepStarted {
+    public class onCalibrationStepStarted extends ClipEvent {
         public int currentGestureIndex;
         public int currentGestureIteration;
 
@@ -1131,7 +1274,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onGestureStatusEvent {
+    public class onGestureStatusEvent extends ClipEvent {
         public Integer status;
         public Integer value;
         public Integer unit;
@@ -1146,14 +1289,14 @@ public class FlicktekCommands {
         }
     }
 
-    public class onCalibrationStepEvent {
+    public class onCalibrationStepEvent extends ClipEvent {
     }
 
-    public class onDeviceReady {
+    public class onDeviceReady extends ClipEvent {
 
     }
 
-    public class onChargingState {
+    public class onChargingState extends ClipEvent {
         public Boolean isCharging;
 
         public onChargingState(boolean isCharging) {
@@ -1162,7 +1305,7 @@ public class FlicktekCommands {
     }
 
 
-    public class onCalibrationAttributeEvent {
+    public class onCalibrationAttributeEvent extends ClipEvent {
         public Integer quality;
         public Integer unit;
         public Integer decimal;
@@ -1175,7 +1318,26 @@ public class FlicktekCommands {
         }
     }
 
-    public class onBatteryEvent {
+    public class onLinkModeChanged extends ClipEvent {
+        public int previousMode;
+        public int mode;
+        public int activities;
+        // Milliseconds spent in the previous mode
+        public long previousDuration;
+        public int batteryLevel;
+        public long timestamp;
+
+        public onLinkModeChanged(int previousMode, int mode, int activities, long previousDuration, int batteryLevel) {
+            this.previousMode = previousMode;
+            this.mode = mode;
+            this.activities = activities;
+            this.previousDuration = previousDuration;
+            this.batteryLevel = batteryLevel;
+            this.timestamp = SystemClock.elapsedRealtime();
+        }
+    }
+
+    public class onBatteryEvent extends ClipEvent {
         public Integer value;
 
         public onBatteryEvent(int value) {
@@ -1183,7 +1345,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onButtonPressed {
+    public class onButtonPressed extends ClipEvent {
         public String value;
 
         public onButtonPressed(String value) {
@@ -1191,7 +1353,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onVersionRequested {
+    public class onVersionRequested extends ClipEvent {
         public String value;
 
         public onVersionRequested(String version) {
@@ -1199,7 +1361,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onRevisionRequested {
+    public class onRevisionRequested extends ClipEvent {
         public String value;
 
         public onRevisionRequested(String revision) {
@@ -1207,7 +1369,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onStreamingSpeed {
+    public class onStreamingSpeed extends ClipEvent {
         public int ticks;
 
         public onStreamingSpeed(int value) {
@@ -1215,7 +1377,7 @@ public class FlicktekCommands {
         }
     }
 
-    public class onDeviceACK {
+    public class onDeviceACK extends ClipEvent {
         public boolean ACK;  // ACK or NAK
         public byte command;
         public int value;
@@ -1228,7 +1390,7 @@ public class FlicktekCommands {
     }
 
     // We have a gesture which is not classified by the algorithm
-    public class onGestureNotClassified {
+    public class onGestureNotClassified extends ClipEvent {
         @Nullable
         public SensorState sensors_state;
 
@@ -1238,7 +1400,7 @@ public class FlicktekCommands {
     }
 
     // Gestures classified. the could be FlicktekManager.GESTURE_XXXX
-    public class onGestureEvent {
+    public class onGestureEvent extends ClipEvent {
         public Integer status;
         public Integer quality;
         public SensorState sensors_state;
@@ -1259,7 +1421,7 @@ public class FlicktekCommands {
     }
 
     // Quality comes randomly normally after the gesture and it is a value between 0 and 9
-    public class onGestureQuality {
+    public class onGestureQuality extends ClipEvent {
         public Integer quality;
 
         public onGestureQuality(int value) {
@@ -1267,15 +1429,70 @@ public class FlicktekCommands {
         }
     }
 
-    public class onGestureRawData {
+    /**
+     * Raw data of a gesture capture.
+     * <p>
+     * The arrays come from a pool and are reused by later captures, nothing is copied for the event. They stay
+     * valid while the event is delivered on the main thread; a subscriber that needs them for longer calls
+     * {@link #acquire()} while handling the event and {@link #release()} when finished. Subscribers on other
+     * threads (BACKGROUND or ASYNC) may get the event after the arrays have been reused, they call
+     * {@link #tryAcquire()} and skip the event when it returns false, or take their own {@link #copySamples()}
+     * and {@link #copyRaw()}. Only the first {@link #byte_length} bytes of {@link #byte_array} are valid.
+     * </p>
+     */
+    public class onGestureRawData extends ClipEvent {
         public Integer gesture;
         public int u16t_sensor[];
         public byte byte_array[];
+        public int byte_length;
+
+        // Samples decoded, lost on the way and times the decoder had to resynchronise
+        public int samples_decoded;
+        public int samples_lost;
+        public int resyncs;
+
+        @Nullable
+        private final CaptureFrame frame;
 
         public onGestureRawData(int value, int sensor_data[], byte raw[]) {
             this.gesture = value;
             this.u16t_sensor = sensor_data;
             this.byte_array = raw;
+            this.byte_length = raw != null ? raw.length : 0;
+            this.frame = null;
+        }
+
+        public onGestureRawData(int value, CaptureFrame frame) {
+            this.gesture = value;
+            this.u16t_sensor = frame.samples();
+            this.byte_array = frame.raw().array();
+            this.byte_length = frame.raw().length();
+            this.frame = frame;
+        }
+
+        // Keeps the capture arrays out of the pool until release() is called
+        public void acquire() {
+            if (frame != null)
+                frame.acquire();
+        }
+
+        // Like acquire(), but returns false if the arrays have already gone back to the pool
+        public boolean tryAcquire() {
+            return frame == null || frame.tryAcquire();
+        }
+
+        public void release() {
+            if (frame != null)
+                frame.release();
+        }
+
+        // Copies owned by the caller, only while the arrays are valid
+        public int[] copySamples() {
+            return Arrays.copyOf(u16t_sensor, u16t_sensor.length);
+        }
+
+        public byte[] copyRaw() {
+            return Arrays.copyOf(byte_array, byte_length);
         }
     }
 }
@@ -35,15 +35,20 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.flicktekltd.clip.FlicktekCommands;
 import com.flicktekltd.clip.FlicktekSettings;
 import com.flicktekltd.clip.uart.UARTProfile;
 
+import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.Deque;
 import java.util.LinkedList;
-import java.util.Queue;
 import java.util.UUID;
 
 /**
@@ -71,6 +76,36 @@ public class BleManager implements BleProfileApi {
     private final static UUID BATTERY_SERVICE = UUID.fromString("0000180F-0000-1000-8000-00805f9b34fb");
     private final static UUID BATTERY_LEVEL_CHARACTERISTIC = UUID.fromString("00002A19-0000-1000-8000-00805f9b34fb");
 
+    /**
+     * Time a request waits for its callback before the watchdog gives up on it, see {@link #setRequestTimeout(Request.Type, long)}.
+     */
+    public final static long DEFAULT_REQUEST_TIMEOUT = 5000;
+    /**
+     * Bonding waits for the user to accept the pairing dialog.
+     */
+    public final static long BOND_REQUEST_TIMEOUT = 30000;
+    /**
+     * Requests timing out in a row before the connection is considered stuck, see {@link #shouldReconnectOnTimeout(Request, int)}.
+     */
+    public final static int MAX_CONSECUTIVE_TIMEOUTS = 3;
+    /**
+     * Error code given to {@link BleManagerCallbacks#onError(BluetoothDevice, String, int)} when a request times out.
+     */
+    public final static int ERROR_CODE_REQUEST_TIMEOUT = 0x1000;
+    /**
+     * After a timeout Android keeps the GATT busy until the late callback arrives, the queue waits this long for it.
+     */
+    private final static long LATE_CALLBACK_TIMEOUT = 2000;
+    /**
+     * Stands for the MTU exchange, which has no attribute, in {@link #mPendingAttribute}.
+     */
+    private final static Object MTU_EXCHANGE = new Object();
+    /**
+     * gatt.close() finishes asynchronously, device.connectGatt(...) can't be called immediately after it or service discovery
+     * may never finish on some older devices (Nexus 4, Android 5.0.1).
+     */
+    private final static long GATT_CLOSE_DELAY = 200;
+
     private final static UUID GENERIC_ATTRIBUTE_SERVICE = UUID.fromString("00001801-0000-1000-8000-00805f9b34fb");
     private final static UUID SERVICE_CHANGED_CHARACTERISTIC = UUID.fromString("00002A05-0000-1000-8000-00805f9b34fb");
 
@@ -78,6 +113,11 @@ public class BleManager implements BleProfileApi {
 
     protected final BleManagerCallbacks mCallbacks;
     private final Context mContext;
+    /**
+     * Every GATT callback, the request queue, the connection state and the profile run on this thread, nothing else
+     * touches them.
+     */
+    private final HandlerThread mHandlerThread;
     private final Handler mHandler;
     protected BluetoothDevice mBluetoothDevice;
     protected BleProfile mProfile;
@@ -95,14 +135,59 @@ public class BleManager implements BleProfileApi {
      */
     private boolean mInitialConnection = true;
     /**
-     * Flag set to true when the device is connected.
+     * Flag set to true when the device is connected. Changed on the BLE thread only, read from anywhere.
      */
-    private boolean mConnected;
-    private int mConnectionState = BluetoothGatt.STATE_DISCONNECTED;
+    private volatile boolean mConnected;
+    private volatile int mConnectionState = BluetoothGatt.STATE_DISCONNECTED;
     /**
      * Last received battery value or -1 if value wasn't received.
      */
     private int mBatteryValue = -1;
+    /**
+     * ATT MTU of the current connection.
+     */
+    private int mMtu = DEFAULT_MTU;
+    /**
+     * Device we are going to connect to once the previous BluetoothGatt has had time to close, null if there is none.
+     */
+    private BluetoothDevice mPendingDevice;
+    private final Runnable mPendingConnect = new Runnable() {
+        @Override
+        public void run() {
+            final BluetoothDevice device;
+            synchronized (mLock) {
+                device = mPendingDevice;
+                mPendingDevice = null;
+            }
+            if (device != null)
+                connectGatt(device);
+        }
+    };
+    /**
+     * Watchdog timeout of every request type in milliseconds, 0 waits forever.
+     */
+    private final long[] mRequestTimeouts = new long[Request.Type.values().length];
+    private final int[] mTimeoutsByType = new int[Request.Type.values().length];
+    private int mTimeoutCount;
+    private int mForcedReconnectCount;
+    /**
+     * Known GATT layouts and Service Changed timings, used to shorten the wait before the service discovery.
+     */
+    private final GattServiceCache mServiceCache;
+    /**
+     * Timings of every connection, from connectGatt() to the handshake.
+     */
+    private final ConnectionTimeline mTimeline = new ConnectionTimeline();
+    /**
+     * Characteristic or descriptor of the last GATT operation sent, its callback is the one the request waits for.
+     */
+    private Object mPendingAttribute;
+    /**
+     * Characteristic whose notifications skip the BLE thread, see {@link #setDirectNotificationListener(UUID, DirectNotificationListener)}.
+     * The listener is written last and read first, whoever sees it also sees its characteristic.
+     */
+    private volatile UUID mDirectCharacteristic;
+    private volatile DirectNotificationListener mDirectListener;
 
     private final BroadcastReceiver mBluetoothStateBroadcastReceiver = new BroadcastReceiver() {
         @Override
@@ -113,11 +198,17 @@ public class BleManager implements BleProfileApi {
             switch (state) {
                 case BluetoothAdapter.STATE_TURNING_OFF:
                 case BluetoothAdapter.STATE_OFF:
+                    final BluetoothDevice device = mBluetoothDevice;
+                    final boolean wasConnected = mConnected;
                     if (mConnected && previousState != BluetoothAdapter.STATE_TURNING_OFF && previousState != BluetoothAdapter.STATE_OFF) {
                         // The connection is killed by the system, no need to gently disconnect
                         mGattCallback.notifyDeviceDisconnected(mBluetoothDevice);
                     }
                     close();
+
+                    // No state change will come after close(), the callbacks reconnect once Bluetooth is back
+                    if (device != null)
+                        mCallbacks.onConnectionLost(device, BluetoothGatt.GATT_FAILURE, wasConnected);
                     break;
             }
         }
@@ -154,10 +245,16 @@ public class BleManager implements BleProfileApi {
     public BleManager(final Context context, final BleManagerCallbacks callbacks) {
         mCallbacks = callbacks;
         mContext = context;
-        mHandler = new Handler();
+        mHandlerThread = new HandlerThread(TAG, Process.THREAD_PRIORITY_FOREGROUND);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mServiceCache = new GattServiceCache(context);
+
+        Arrays.fill(mRequestTimeouts, DEFAULT_REQUEST_TIMEOUT);
+        mRequestTimeouts[Request.Type.CREATE_BOND.ordinal()] = BOND_REQUEST_TIMEOUT;
 
         // Register bonding broadcast receiver
-        context.registerReceiver(mBondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+        context.registerReceiver(mBondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED), null, mHandler);
     }
 
     /**
@@ -167,6 +264,50 @@ public class BleManager implements BleProfileApi {
         return mProfile;
     }
 
+    /**
+     * Returns the cache of the services of the devices we have connected to.
+     */
+    public GattServiceCache getServiceCache() {
+        return mServiceCache;
+    }
+
+    @Override
+    public ConnectionTimeline getConnectionTimeline() {
+        return mTimeline;
+    }
+
+    @Override
+    public void setDirectNotificationListener(final UUID characteristic, final DirectNotificationListener listener) {
+        mDirectListener = null;
+        mDirectCharacteristic = characteristic;
+        if (characteristic != null)
+            mDirectListener = listener;
+    }
+
+    /**
+     * Returns the handler of the BLE thread.
+     */
+    @Override
+    public Handler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Closes the connection and stops the BLE thread, the manager can't be used afterwards.
+     */
+    public void release() {
+        close();
+        // The profile belongs to the BLE thread, quitSafely() runs it before stopping
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mProfile != null)
+                    mProfile.release();
+            }
+        });
+        mHandlerThread.quitSafely();
+    }
+
     /**
      * Returns the context that the manager was created with.
      *
@@ -200,16 +341,78 @@ public class BleManager implements BleProfileApi {
     }
 
     /**
-     * Connects to the Bluetooth Smart device.
+     * Decides what to do when a request didn't complete in time. The request has already been dropped and
+     * reported through {@link BleManagerCallbacks#onError(BluetoothDevice, String, int)}.
+     * <p>Returning false carries on with the next request, true drops the connection and connects again.
+     * By default we reconnect after {@link #MAX_CONSECUTIVE_TIMEOUTS} requests in a row have timed out.</p>
+     *
+     * @param request             the request that timed out, pooled requests are recycled afterwards so don't keep it
+     * @param consecutiveTimeouts requests that have timed out in a row, including this one
+     * @return true to force a reconnection
+     */
+    protected boolean shouldReconnectOnTimeout(final Request request, final int consecutiveTimeouts) {
+        return consecutiveTimeouts >= MAX_CONSECUTIVE_TIMEOUTS;
+    }
+
+    /**
+     * Sets how long requests of the given type wait for their callback.
+     *
+     * @param type    the request type
+     * @param timeout the timeout in milliseconds, 0 to wait forever
+     */
+    public void setRequestTimeout(final Request.Type type, final long timeout) {
+        mRequestTimeouts[type.ordinal()] = Math.max(0, timeout);
+    }
+
+    public long getRequestTimeout(final Request.Type type) {
+        return mRequestTimeouts[type.ordinal()];
+    }
+
+    /**
+     * Returns how many requests have timed out since the manager was created.
+     */
+    public int getTimeoutCount() {
+        return mTimeoutCount;
+    }
+
+    public int getTimeoutCount(final Request.Type type) {
+        return mTimeoutsByType[type.ordinal()];
+    }
+
+    /**
+     * Returns how many times the watchdog has dropped a stuck connection to connect again.
+     */
+    public int getForcedReconnectCount() {
+        return mForcedReconnectCount;
+    }
+
+    /**
+     * Connects to the Bluetooth Smart device. The connection is started on the BLE thread.
      *
      * @param device a device to connect to
      */
     public void connect(final BluetoothDevice device) {
+        runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                internalConnect(device);
+            }
+        });
+    }
+
+    private void internalConnect(final BluetoothDevice device) {
         Log.v(TAG, "************* Connect device *************");
 //        if (mConnected)
 //            return;
 
         synchronized (mLock) {
+            if (mPendingDevice != null) {
+                // A connection is already on its way, the latest device wins
+                Log.v(TAG, "************* Connection pending *************");
+                mPendingDevice = device;
+                return;
+            }
+
             if (mBluetoothGatt != null) {
                 // There are 2 ways of reconnecting to the same device:
                 // 1. Reusing the same BluetoothGatt object and calling connect() on it or
@@ -224,11 +427,12 @@ public class BleManager implements BleProfileApi {
 
                     mBluetoothGatt.close();
                     mBluetoothGatt = null;
-                    try {
-                        Thread.sleep(200); // Is 200 ms enough?
-                    } catch (final InterruptedException e) {
-                        // Ignore
-                    }
+
+                    // Connect from the handler once the close has finished, instead of blocking the caller
+                    mPendingDevice = device;
+                    mConnectionState = BluetoothGatt.STATE_CONNECTING;
+                    mHandler.postDelayed(mPendingConnect, GATT_CLOSE_DELAY);
+                    return;
                 } else {
                     Log.v(TAG, "************* mInitialConnection *************");
 
@@ -244,34 +448,75 @@ public class BleManager implements BleProfileApi {
                 }
             } else {
                 // Register bonding broadcast receiver
-                mContext.registerReceiver(mBluetoothStateBroadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
-                mContext.registerReceiver(mBondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED));
+                mContext.registerReceiver(mBluetoothStateBroadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED), null, mHandler);
+                mContext.registerReceiver(mBondingBroadcastReceiver, new IntentFilter(BluetoothDevice.ACTION_BOND_STATE_CHANGED), null, mHandler);
             }
         }
 
+        connectGatt(device);
+    }
+
+    private void connectGatt(final BluetoothDevice device) {
         final boolean autoConnect = shouldAutoConnect();
         mUserDisconnected = !autoConnect; // We will receive Linkloss events only when the device is connected with autoConnect=true
         mBluetoothDevice = device;
         mConnectionState = BluetoothGatt.STATE_CONNECTING;
-        mBluetoothGatt = device.connectGatt(mContext, autoConnect, mGattCallback = new BleManagerGattCallback());
+        mTimeline.start();
+        mBluetoothGatt = device.connectGatt(mContext, autoConnect, new GattCallbackForwarder(mGattCallback = new BleManagerGattCallback()));
     }
 
     /**
-     * Disconnects from the device. Does nothing if not connected.
+     * Disconnects from the device. Does nothing if not connected. The disconnection is started on the BLE thread.
      *
-     * @return true if device is to be disconnected. False if it was already disconnected.
+     * @return true if device is to be disconnected. False if it was already disconnected when called.
      */
     public boolean disconnect() {
+        final boolean connected = mConnected;
+        runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                internalDisconnect();
+            }
+        });
+        return connected;
+    }
+
+    private void internalDisconnect() {
         mUserDisconnected = true;
         mInitialConnection = false;
 
+        if (cancelPendingConnect())
+            mConnectionState = BluetoothGatt.STATE_DISCONNECTED;
+
         if (mConnected && mBluetoothGatt != null) {
             mConnectionState = BluetoothGatt.STATE_DISCONNECTING;
             mCallbacks.onDeviceDisconnecting(mBluetoothGatt.getDevice());
             mBluetoothGatt.disconnect();
-            return true;
         }
-        return false;
+    }
+
+    /**
+     * Clears the services Android keeps for the device so the next discovery reads them again from it.
+     * The method is hidden, we call it through reflection.
+     */
+    private boolean refreshDeviceCache(final BluetoothGatt gatt) {
+        try {
+            final Method refresh = gatt.getClass().getMethod("refresh");
+            return (Boolean) refresh.invoke(gatt);
+        } catch (final Exception e) {
+            Log.w(TAG, "Unable to refresh the device cache", e);
+            return false;
+        }
+    }
+
+    // Drops the connection waiting for the GATT close delay, returns true if there was one
+    private boolean cancelPendingConnect() {
+        synchronized (mLock) {
+            mHandler.removeCallbacks(mPendingConnect);
+            final boolean pending = mPendingDevice != null;
+            mPendingDevice = null;
+            return pending;
+        }
     }
 
     /**
@@ -305,14 +550,27 @@ public class BleManager implements BleProfileApi {
 
     /**
      * Closes and releases resources. May be also used to unregister broadcast listeners.
+     * The connection is closed on the BLE thread.
      */
     public void close() {
+        runOnBleThread(new Runnable() {
+            @Override
+            public void run() {
+                internalClose();
+            }
+        });
+    }
+
+    private void internalClose() {
         try {
             mContext.unregisterReceiver(mBluetoothStateBroadcastReceiver);
             mContext.unregisterReceiver(mBondingBroadcastReceiver);
         } catch (Exception e) {
             // the receiver must have been not registered or unregistered before
         }
+        cancelPendingConnect();
+        mTimeline.abort();
+        final BleManagerGattCallback callback;
         synchronized (mLock) {
             if (mBluetoothGatt != null) {
                 mBluetoothGatt.close();
@@ -321,9 +579,22 @@ public class BleManager implements BleProfileApi {
             mConnected = false;
             mInitialConnection = false;
             mConnectionState = BluetoothGatt.STATE_DISCONNECTED;
+            callback = mGattCallback;
             mGattCallback = null;
             mBluetoothDevice = null;
         }
+
+        // Everything still queued is handed back as failed
+        if (callback != null)
+            callback.close();
+    }
+
+    // Runs the code on the BLE thread, straight away if we are already on it
+    private void runOnBleThread(final Runnable runnable) {
+        if (Looper.myLooper() == mHandler.getLooper())
+            runnable.run();
+        else
+            mHandler.post(runnable);
     }
 
     @Override
@@ -397,6 +668,7 @@ public class BleManager implements BleProfileApi {
         final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
         if (descriptor != null) {
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            mPendingAttribute = descriptor;
             return gatt.writeDescriptor(descriptor);
         }
         return false;
@@ -421,6 +693,7 @@ public class BleManager implements BleProfileApi {
         final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID);
         if (descriptor != null) {
             descriptor.setValue(BluetoothGattDescriptor.ENABLE_INDICATION_VALUE);
+            mPendingAttribute = descriptor;
             return gatt.writeDescriptor(descriptor);
         }
         return false;
@@ -441,6 +714,7 @@ public class BleManager implements BleProfileApi {
         if ((properties & BluetoothGattCharacteristic.PROPERTY_READ) == 0)
             return false;
 
+        mPendingAttribute = characteristic;
         return gatt.readCharacteristic(characteristic);
     }
 
@@ -459,6 +733,7 @@ public class BleManager implements BleProfileApi {
         if ((properties & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0)
             return false;
 
+        mPendingAttribute = characteristic;
         return gatt.writeCharacteristic(characteristic);
     }
 
@@ -472,6 +747,7 @@ public class BleManager implements BleProfileApi {
         if (gatt == null || descriptor == null)
             return false;
 
+        mPendingAttribute = descriptor;
         return gatt.readDescriptor(descriptor);
     }
 
@@ -490,6 +766,7 @@ public class BleManager implements BleProfileApi {
         final BluetoothGattCharacteristic parentCharacteristic = descriptor.getCharacteristic();
         final int originalWriteType = parentCharacteristic.getWriteType();
         parentCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+        mPendingAttribute = descriptor;
         final boolean result = gatt.writeDescriptor(descriptor);
         parentCharacteristic.setWriteType(originalWriteType);
         return result;
@@ -556,22 +833,200 @@ public class BleManager implements BleProfileApi {
             } else {
                 descriptor.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
             }
+            mPendingAttribute = descriptor;
             return gatt.writeDescriptor(descriptor);
         }
         return false;
     }
 
+    @Override
+    public final boolean requestMtu(final int mtu) {
+        return enqueue(Request.newMtuRequest(mtu));
+    }
+
+    private boolean internalRequestMtu(final int mtu) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || mtu <= mMtu)
+            return false;
+
+        Log.v(TAG, "Requesting MTU " + mtu);
+        mPendingAttribute = MTU_EXCHANGE;
+        return gatt.requestMtu(mtu);
+    }
+
+    @Override
+    public int getMtu() {
+        return mMtu;
+    }
+
+    @Override
+    public final boolean requestConnectionPriority(final int priority) {
+        return enqueue(Request.newConnectionPriorityRequest(priority));
+    }
+
+    private boolean internalRequestConnectionPriority(final int priority) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null)
+            return false;
+
+        Log.v(TAG, "Requesting connection priority " + priority);
+        return gatt.requestConnectionPriority(priority);
+    }
+
+    @Override
+    public final boolean setPreferredPhy(final int phyMask) {
+        return enqueue(Request.newPreferredPhyRequest(phyMask));
+    }
+
+    private boolean internalSetPreferredPhy(final int phyMask) {
+        final BluetoothGatt gatt = mBluetoothGatt;
+        if (gatt == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.O)
+            return false;
+
+        Log.v(TAG, "Setting preferred PHY " + phyMask);
+        gatt.setPreferredPhy(phyMask, phyMask, BluetoothDevice.PHY_OPTION_NO_PREFERRED);
+        return true;
+    }
+
     @Override
     public boolean enqueue(final Request request) {
-        if (mGattCallback != null) {
-            // Add the new task to the end of the queue
-            mGattCallback.mTaskQueue.add(request);
-            mGattCallback.nextRequest();
+        final BleManagerGattCallback callback = mGattCallback;
+        if (callback == null) {
+            // Not connected, the owner gets the request back straight away
+            request.finish(false);
+            return false;
+        }
+
+        // The queue belongs to the BLE thread
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    callback.enqueue(request);
+                }
+            });
             return true;
         }
-        return false;
+
+        callback.enqueue(request);
+        return true;
     }
 
+    /**
+     * Moves the GATT callbacks from the binder threads to the BLE thread. Notified values are taken here,
+     * the characteristic may already hold the next notification when the handler runs.
+     */
+    private final class GattCallbackForwarder extends BluetoothGattCallback {
+        private final BleManagerGattCallback mCallback;
+
+        private GattCallbackForwarder(final BleManagerGattCallback callback) {
+            mCallback = callback;
+        }
+
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onConnectionStateChange(gatt, status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onServicesDiscovered(gatt, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicRead(gatt, characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicWrite(gatt, characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onDescriptorRead(gatt, descriptor, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onDescriptorWrite(gatt, descriptor, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+            // Android gives every notification a new array, holding the reference is enough
+            final byte[] value = characteristic.getValue();
+
+            // Decoded off the BLE thread, no Runnable and no message for every packet of a capture
+            final DirectNotificationListener listener = mDirectListener;
+            if (listener != null && value != null && characteristic.getUuid().equals(mDirectCharacteristic)) {
+                listener.onNotification(value);
+                return;
+            }
+
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onCharacteristicChanged(gatt, characteristic, value);
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onMtuChanged(gatt, mtu, status);
+                }
+            });
+        }
+
+        @Override
+        public void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mCallback.onPhyUpdate(gatt, txPhy, rxPhy, status);
+                }
+            });
+        }
+    }
+
+    /**
+     * Handles the GATT events on the BLE thread, {@link GattCallbackForwarder} brings them here.
+     */
     private final class BleManagerGattCallback extends BluetoothGattCallback {
         private final static String ERROR_CONNECTION_STATE_CHANGE = "Error on connection state change";
         private final static String ERROR_DISCOVERY_SERVICE = "Error on discovering services";
@@ -580,15 +1035,75 @@ public class BleManager implements BleProfileApi {
         private final static String ERROR_WRITE_CHARACTERISTIC = "Error on writing characteristic";
         private final static String ERROR_READ_DESCRIPTOR = "Error on reading descriptor";
         private final static String ERROR_WRITE_DESCRIPTOR = "Error on writing descriptor";
+        private final static String ERROR_MTU_REQUEST = "Error on MTU request";
+        private final static String ERROR_REQUEST_TIMEOUT = "Request timed out";
 
-        private final Queue<Request> mTaskQueue = new LinkedList<>();
+        private final RequestQueue mTaskQueue = new RequestQueue();
         private Deque<Request> mInitQueue;
+        /**
+         * Packet sized buffer for the slices of pooled write requests. The stack copies the value when the write
+         * is sent, so it can be reused for the next one.
+         */
+        private byte[] mWriteBuffer;
         private boolean mInitInProgress;
         private boolean mOperationInProgress = true;
+        /**
+         * Request waiting for its callback and when it was sent, checked by the watchdog.
+         */
+        private Request mCurrentRequest;
+        private Object mCurrentAttribute;
+        private long mRequestStart;
+        /**
+         * Attribute of the request that timed out, the GATT stays busy until its callback arrives.
+         */
+        private Object mLateAttribute;
+        private int mConsecutiveTimeouts;
+        /**
+         * When the current connection was established, to measure the Service Changed indication.
+         */
+        private long mConnectedTime;
+        /**
+         * Set once the manager has closed this connection, requests still arriving fail straight away.
+         */
+        private boolean mClosed;
+
+        private final Runnable mWatchdog = new Runnable() {
+            @Override
+            public void run() {
+                checkRequestTimeout();
+            }
+        };
+
+        // The late callback never arrived either, try the next request anyway
+        private final Runnable mLateCallbackTimeout = new Runnable() {
+            @Override
+            public void run() {
+                if (mLateAttribute == null)
+                    return;
+
+                Log.w(TAG, "No callback for the timed out request, moving on");
+                mLateAttribute = null;
+                mOperationInProgress = false;
+                nextRequest();
+            }
+        };
+
+        private void enqueue(final Request request) {
+            // Posted before the connection was closed
+            if (mClosed) {
+                request.finish(false);
+                return;
+            }
+
+            // Add the new task to the end of its lane
+            mTaskQueue.add(request);
+            nextRequest();
+        }
 
         private void notifyDeviceDisconnected(final BluetoothDevice device) {
             mConnected = false;
             mConnectionState = BluetoothGatt.STATE_DISCONNECTED;
+            mMtu = DEFAULT_MTU;
             if (mUserDisconnected) {
                 mCallbacks.onDeviceDisconnected(device);
                 close();
@@ -615,6 +1130,7 @@ public class BleManager implements BleProfileApi {
                 // Notify the parent activity/service
                 mConnected = true;
                 mConnectionState = BluetoothGatt.STATE_CONNECTED;
+                mTimeline.mark(ConnectionTimeline.PHASE_CONNECTED);
                 mCallbacks.onDeviceConnected(gatt.getDevice());
 
 				/*
@@ -629,9 +1145,8 @@ public class BleManager implements BleProfileApi {
 				 * as the SC indication wouldn't be received yet.
 				 * Therefore we have to postpone the service discovery operation until we are (almost, as there is no such callback) sure,
 				 * that it has been handled.
-				 * TODO: Please calculate the proper delay that will work in your solution.
-				 * It should be greater than the time from LLCP Feature Exchange to ATT Write for Service Change indication.
-				 * If your device does not use Service Change indication (for example does not have DFU) the delay may be 0.
+				 * The delay should be greater than the time from LLCP Feature Exchange to ATT Write for Service Change indication.
+				 * The GattServiceCache knows it for the clips we have seen before, unknown devices wait the full 1600 ms.
 				 */
 
                 final boolean bonded = gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED;
@@ -644,37 +1159,27 @@ public class BleManager implements BleProfileApi {
                     // createBond();
                 }
 
-                final int delay = bonded ? 1600 : 0; // around 1600 ms is required when connection interval is ~45ms.
-                mHandler.postDelayed(new Runnable() {
-                    @Override
-                    public void run() {
-                        // Some proximity tags (e.g. nRF PROXIMITY) initialize bonding automatically when connected.
-                        if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDING) {
-                            gatt.discoverServices();
-                        }
-                    }
-                }, delay);
+                mConnectedTime = SystemClock.elapsedRealtime();
+                final long delay = bonded ? mServiceCache.getDiscoveryDelay(gatt.getDevice().getAddress()) : 0;
+                Log.v(TAG, "Discovering services in " + delay + " ms");
+                discoverServices(gatt, delay);
             } else {
                 if (newState == BluetoothProfile.STATE_DISCONNECTED) {
                     mOperationInProgress = true; // no more calls are possible
-                    mInitQueue = null;
-                    mTaskQueue.clear();
+                    mTimeline.abort();
+                    clearQueues();
+                    mMtu = DEFAULT_MTU;
                     Log.v(TAG, "-----------------------------------------------------------");
                     Log.v(TAG, "        BluetoothProfile.STATE_DISCONNECTED                ");
                     Log.v(TAG, "-----------------------------------------------------------");
 
+                    final boolean wasConnected = mConnected;
                     if (mConnected) {
                         notifyDeviceDisconnected(gatt.getDevice()); // This sets the mConnected flag to false
                     }
 
-                    // Try to reconnect if the initial connection was lost because of a link loss or timeout, and shouldAutoConnect() returned true during connection attempt.
-                    // This time it will set the autoConnect flag to true (gatt.connect() forces autoConnect true)
-//                    if (mInitialConnection) {
-//                        Log.v(TAG, "Try to connect again manually!");
-                        connect(gatt.getDevice());
-//                    } else {
-//                        Log.v(TAG, "Not initial connection!");
-//                    }
+                    // The callbacks decide when to connect again, see ReconnectScheduler
+                    mCallbacks.onConnectionLost(gatt.getDevice(), status, wasConnected);
                     return;
                 }
 
@@ -683,9 +1188,33 @@ public class BleManager implements BleProfileApi {
             }
         }
 
+        private void discoverServices(final BluetoothGatt gatt, final long delay) {
+            mHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    // Some proximity tags (e.g. nRF PROXIMITY) initialize bonding automatically when connected.
+                    if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_BONDING) {
+                        mTimeline.mark(ConnectionTimeline.PHASE_DISCOVERY);
+                        gatt.discoverServices();
+                    }
+                }
+            }, delay);
+        }
+
         @Override
         public final void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
             if (status == BluetoothGatt.GATT_SUCCESS) {
+                if (!mServiceCache.onServicesDiscovered(gatt)) {
+                    // We didn't wait long enough and Android gave us its old services, read them again from the device
+                    refreshDeviceCache(gatt);
+                    discoverServices(gatt, GattServiceCache.DEFAULT_DISCOVERY_DELAY);
+                    return;
+                }
+                mTimeline.mark(ConnectionTimeline.PHASE_SERVICES_DISCOVERED);
+
+                // Service Changed discovers again, the previous profile still has its decoder running
+                if (mProfile != null)
+                    mProfile.release();
 
                 final BleProfile profile = new UARTProfile();
                 if (profile != null) {
@@ -714,9 +1243,14 @@ public class BleManager implements BleProfileApi {
                     // The device will not send back the Handshake if it was already connected for the first time
                     // when bonding!
                     if (gatt.getDevice().getBondState() == BluetoothDevice.BOND_BONDED)
-                        FlicktekCommands.getInstance().onReadyToSendData(false);
+                        FlicktekCommands.getInstance(gatt.getDevice().getAddress()).onReadyToSendData(false);
 
+                    // Bonding ends here, anything else in progress has been superseded by the discovery
+                    final Request superseded = mCurrentRequest;
+                    stopWatchdog();
                     mOperationInProgress = false;
+                    if (superseded != null)
+                        superseded.finish(false);
                     nextRequest();
                 } else {
                     mCallbacks.onDeviceNotSupported(gatt.getDevice());
@@ -730,6 +1264,9 @@ public class BleManager implements BleProfileApi {
 
         @Override
         public final void onCharacteristicRead(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            if (!isCurrentRequest(characteristic))
+                return;
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 if (isBatteryLevelCharacteristic(characteristic)) {
                     final int batteryValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
@@ -739,81 +1276,114 @@ public class BleManager implements BleProfileApi {
                     // The value has been read. Notify the profile and proceed with the initialization queue.
                     mProfile.onCharacteristicRead(gatt, characteristic);
                 }
-                mOperationInProgress = false;
-                nextRequest();
+                onRequestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
                     Log.w(TAG, ERROR_AUTH_ERROR_WHILE_BONDED);
                     onError(gatt.getDevice(), ERROR_AUTH_ERROR_WHILE_BONDED, status);
+                    onRequestFailed();
                 }
+                // Otherwise Android is bonding and sends the operation again, its callback will follow
             } else {
                 Log.e(TAG, "onCharacteristicRead error " + status);
                 onError(gatt.getDevice(), ERROR_READ_CHARACTERISTIC, status);
+                onRequestFailed();
             }
         }
 
         @Override
         public final void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final int status) {
+            if (!isCurrentRequest(characteristic))
+                return;
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 // The value has been written. Notify the profile and proceed with the initialization queue.
                 mProfile.onCharacteristicWrite(gatt, characteristic);
-                mOperationInProgress = false;
-                nextRequest();
+                onRequestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
                     Log.w(TAG, ERROR_AUTH_ERROR_WHILE_BONDED);
                     onError(gatt.getDevice(), ERROR_AUTH_ERROR_WHILE_BONDED, status);
+                    onRequestFailed();
                 }
+                // Otherwise Android is bonding and sends the operation again, its callback will follow
             } else {
                 Log.e(TAG, "onCharacteristicWrite error " + status);
                 onError(gatt.getDevice(), ERROR_WRITE_CHARACTERISTIC, status);
+                onRequestFailed();
             }
         }
 
         @Override
         public void onDescriptorRead(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            if (!isCurrentRequest(descriptor))
+                return;
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 // The value has been read. Notify the profile and proceed with the initialization queue.
                 mProfile.onDescriptorRead(gatt, descriptor);
-                mOperationInProgress = false;
-                nextRequest();
+                onRequestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
                     Log.w(TAG, ERROR_AUTH_ERROR_WHILE_BONDED);
                     onError(gatt.getDevice(), ERROR_AUTH_ERROR_WHILE_BONDED, status);
+                    onRequestFailed();
                 }
+                // Otherwise Android is bonding and sends the operation again, its callback will follow
             } else {
                 Log.e(TAG, "onDescriptorRead error " + status);
                 onError(gatt.getDevice(), ERROR_READ_DESCRIPTOR, status);
+                onRequestFailed();
             }
         }
 
         @Override
         public final void onDescriptorWrite(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor, final int status) {
+            if (!isCurrentRequest(descriptor))
+                return;
+
             if (status == BluetoothGatt.GATT_SUCCESS) {
                 // The value has been written. Notify the profile and proceed with the initialization queue.
                 mProfile.onDescriptorWrite(gatt, descriptor);
-                mOperationInProgress = false;
-                nextRequest();
+                onRequestCompleted();
             } else if (status == BluetoothGatt.GATT_INSUFFICIENT_AUTHENTICATION) {
                 if (gatt.getDevice().getBondState() != BluetoothDevice.BOND_NONE) {
                     // This should never happen but it used to: http://stackoverflow.com/a/20093695/2115352
                     Log.w(TAG, ERROR_AUTH_ERROR_WHILE_BONDED);
                     onError(gatt.getDevice(), ERROR_AUTH_ERROR_WHILE_BONDED, status);
+                    onRequestFailed();
                 }
+                // Otherwise Android is bonding and sends the operation again, its callback will follow
             } else {
                 Log.e(TAG, "onDescriptorWrite error " + status);
                 onError(gatt.getDevice(), ERROR_WRITE_DESCRIPTOR, status);
+                onRequestFailed();
             }
         }
 
-        @Override
-        public final void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        // The value is the one notified, the characteristic may already hold a newer one
+        public final void onCharacteristicChanged(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) {
+            if (characteristic != null && SERVICE_CHANGED_CHARACTERISTIC.equals(characteristic.getUuid())) {
+                final long delay = SystemClock.elapsedRealtime() - mConnectedTime;
+                Log.v(TAG, "Service Changed indication " + delay + " ms after connecting");
+                mServiceCache.onServiceChanged(gatt.getDevice().getAddress(), delay);
+
+                // Everything queued uses the old handles, start again from the service discovery
+                mOperationInProgress = true;
+                clearQueues();
+                refreshDeviceCache(gatt);
+                discoverServices(gatt, 0);
+                return;
+            }
+
             if (isBatteryLevelCharacteristic(characteristic)) {
-                final int batteryValue = characteristic.getIntValue(BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+                if (value == null || value.length == 0)
+                    return;
+
+                final int batteryValue = value[0] & 0xFF;
                 mBatteryValue = batteryValue;
                 mProfile.onBatteryValueReceived(gatt, batteryValue);
             } else {
@@ -821,13 +1391,180 @@ public class BleManager implements BleProfileApi {
                 final boolean notifications = cccd == null || cccd.getValue() == null || cccd.getValue().length != 2 || cccd.getValue()[0] == 0x01;
 
                 if (notifications) {
-                    mProfile.onCharacteristicNotified(gatt, characteristic);
+                    mProfile.onCharacteristicNotified(gatt, characteristic, value);
                 } else { // indications
-                    mProfile.onCharacteristicIndicated(gatt, characteristic);
+                    mProfile.onCharacteristicIndicated(gatt, characteristic, value);
                 }
             }
         }
 
+        @Override
+        public final void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                Log.v(TAG, "MTU changed to " + mtu);
+                mMtu = mtu;
+                if (mProfile != null)
+                    mProfile.onMtuChanged(gatt, mtu);
+            } else {
+                // Not fatal, we keep going with the MTU we had
+                Log.w(TAG, ERROR_MTU_REQUEST + " " + status);
+            }
+            if (isCurrentRequest(MTU_EXCHANGE))
+                onRequestCompleted();
+        }
+
+        @Override
+        public final void onPhyUpdate(final BluetoothGatt gatt, final int txPhy, final int rxPhy, final int status) {
+            // The request didn't wait for this, we only report it
+            if (status == BluetoothGatt.GATT_SUCCESS)
+                Log.v(TAG, "PHY changed to TX " + txPhy + " RX " + rxPhy);
+            else
+                Log.w(TAG, "PHY update failed " + status);
+        }
+
+        /**
+         * Returns true if the callback belongs to the request in progress. A late callback of a request that has
+         * timed out frees the GATT, the queue carries on; anything else is ignored.
+         */
+        private boolean isCurrentRequest(final Object attribute) {
+            if (mCurrentRequest != null && attribute == mCurrentAttribute)
+                return true;
+
+            if (mLateAttribute != null && attribute == mLateAttribute) {
+                Log.w(TAG, "Late callback of a timed out request");
+                mLateAttribute = null;
+                mHandler.removeCallbacks(mLateCallbackTimeout);
+                mOperationInProgress = false;
+                nextRequest();
+                return false;
+            }
+
+            Log.w(TAG, "Callback of no request in progress ignored");
+            return false;
+        }
+
+        // The request in progress has finished, run the next one
+        private void onRequestCompleted() {
+            finishCurrentRequest(true);
+        }
+
+        // The device answered with an error, the link works so it isn't a timeout
+        private void onRequestFailed() {
+            finishCurrentRequest(false);
+        }
+
+        private void finishCurrentRequest(final boolean success) {
+            final Request request = mCurrentRequest;
+            stopWatchdog();
+            mConsecutiveTimeouts = 0;
+            mOperationInProgress = false;
+            if (request != null)
+                request.finish(success);
+            nextRequest();
+        }
+
+        // The connection has been closed, this callback won't send anything again
+        private void close() {
+            mClosed = true;
+            mOperationInProgress = true;
+            clearQueues();
+        }
+
+        // Drops the request in progress and everything queued, their owners get them back as failed
+        private void clearQueues() {
+            final Request current = mCurrentRequest;
+            stopWatchdog();
+            if (current != null)
+                current.finish(false);
+
+            Request request;
+            if (mInitQueue != null) {
+                while ((request = mInitQueue.poll()) != null)
+                    request.finish(false);
+                mInitQueue = null;
+            }
+            while ((request = mTaskQueue.poll()) != null)
+                request.finish(false);
+        }
+
+        // Whole arrays are written as they are, slices are copied to the packet buffer
+        private byte[] getWriteValue(final Request request) {
+            final byte[] value = request.value;
+            if (value == null || (request.offset == 0 && request.length == value.length))
+                return value;
+
+            byte[] buffer = mWriteBuffer;
+            if (buffer == null || buffer.length != request.length) {
+                buffer = new byte[request.length];
+                // Only full packets are worth keeping, the last one of a transfer is shorter
+                if (request.length == mMtu - ATT_HEADER_SIZE)
+                    mWriteBuffer = buffer;
+            }
+            System.arraycopy(value, request.offset, buffer, 0, request.length);
+            return buffer;
+        }
+
+        private void startWatchdog(final Request request) {
+            mCurrentRequest = request;
+            mCurrentAttribute = mPendingAttribute;
+            mRequestStart = SystemClock.elapsedRealtime();
+
+            mHandler.removeCallbacks(mWatchdog);
+            final long timeout = mRequestTimeouts[request.type.ordinal()];
+            if (timeout > 0)
+                mHandler.postDelayed(mWatchdog, timeout);
+        }
+
+        private void stopWatchdog() {
+            mCurrentRequest = null;
+            mCurrentAttribute = null;
+            mLateAttribute = null;
+            mHandler.removeCallbacks(mWatchdog);
+            mHandler.removeCallbacks(mLateCallbackTimeout);
+        }
+
+        // The callback of the current request never arrived, drop it and apply the timeout policy
+        private void checkRequestTimeout() {
+            final Request request = mCurrentRequest;
+            if (!mOperationInProgress || request == null)
+                return;
+
+            final long elapsed = SystemClock.elapsedRealtime() - mRequestStart;
+            final Object attribute = mCurrentAttribute;
+            mCurrentRequest = null;
+            mCurrentAttribute = null;
+            mConsecutiveTimeouts++;
+            mTimeoutCount++;
+            mTimeoutsByType[request.type.ordinal()]++;
+
+            Log.w(TAG, ERROR_REQUEST_TIMEOUT + " " + request.type + " after " + elapsed + " ms, " + mConsecutiveTimeouts + " in a row");
+            onError(mBluetoothDevice, ERROR_REQUEST_TIMEOUT, ERROR_CODE_REQUEST_TIMEOUT);
+
+            final BluetoothGatt gatt = mBluetoothGatt;
+            final boolean reconnect = gatt != null && shouldReconnectOnTimeout(request, mConsecutiveTimeouts);
+            request.finish(false);
+
+            if (reconnect) {
+                Log.w(TAG, "Connection stuck, reconnecting");
+                mConsecutiveTimeouts = 0;
+                mForcedReconnectCount++;
+
+                // Not a user disconnection, onConnectionStateChange() will connect again
+                gatt.disconnect();
+                return;
+            }
+
+            // Android refuses every operation until the callback of this one arrives, wait for it
+            if (attribute != null) {
+                mLateAttribute = attribute;
+                mHandler.postDelayed(mLateCallbackTimeout, LATE_CALLBACK_TIMEOUT);
+                return;
+            }
+
+            mOperationInProgress = false;
+            nextRequest();
+        }
+
         /**
          * Executes the next request. If the last element from the initialization queue has been executed
          * the {@link BleManagerCallbacks#onDeviceReady(BluetoothDevice)} callback is called.
@@ -844,9 +1581,10 @@ public class BleManager implements BleProfileApi {
                 if (mInitInProgress) {
                     mInitQueue = null; // release the queue
                     mInitInProgress = false;
+                    mTimeline.mark(ConnectionTimeline.PHASE_INITIALIZED);
                     mCallbacks.onDeviceReady(mBluetoothDevice);
                 }
-                // If so, we can continue with the task queue
+                // If so, we can continue with the task queue, most urgent lane first
                 request = mTaskQueue.poll();
                 if (request == null) {
                     // Nothing to be done for now
@@ -855,7 +1593,10 @@ public class BleManager implements BleProfileApi {
             }
 
             mOperationInProgress = true;
+            mPendingAttribute = null;
             boolean result = false;
+            // Requests without a callback to wait for are finished here
+            boolean finished = false;
             switch (request.type) {
                 case CREATE_BOND: {
                     result = internalCreateBond();
@@ -867,7 +1608,7 @@ public class BleManager implements BleProfileApi {
                 }
                 case WRITE: {
                     final BluetoothGattCharacteristic characteristic = request.characteristic;
-                    characteristic.setValue(request.value);
+                    characteristic.setValue(getWriteValue(request));
                     characteristic.setWriteType(request.writeType);
                     result = internalWriteCharacteristic(characteristic);
                     break;
@@ -906,12 +1647,31 @@ public class BleManager implements BleProfileApi {
                     result = ensureServiceChangedEnabled();
                     break;
                 }
+                case REQUEST_MTU: {
+                    result = internalRequestMtu(request.parameter);
+                    break;
+                }
+                case REQUEST_CONNECTION_PRIORITY: {
+                    // There is no callback for these two, move on as soon as they are sent
+                    request.finish(internalRequestConnectionPriority(request.parameter));
+                    finished = true;
+                    break;
+                }
+                case SET_PREFERRED_PHY: {
+                    request.finish(internalSetPreferredPhy(request.parameter));
+                    finished = true;
+                    break;
+                }
             }
             // The result may be false if given characteristic or descriptor were not found on the device.
             // In that case, proceed with next operation and ignore the one that failed.
             if (!result) {
                 mOperationInProgress = false;
+                if (!finished)
+                    request.finish(false);
                 nextRequest();
+            } else {
+                startWatchdog(request);
             }
         }
 
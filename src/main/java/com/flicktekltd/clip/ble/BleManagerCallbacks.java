@@ -84,6 +84,15 @@ public interface BleManagerCallbacks {
 	 */
 	void onLinklossOccur(final BluetoothDevice device);
 
+	/**
+	 * Called after the connection has been lost or a connection attempt has failed. The manager doesn't connect
+	 * again by itself, call {@link BleManager#connect(BluetoothDevice)} when the next attempt should be made.
+	 * @param device target device
+	 * @param status the GATT status of the disconnection
+	 * @param wasConnected true if the device was connected, false if the connection attempt failed
+	 */
+	void onConnectionLost(final BluetoothDevice device, final int status, final boolean wasConnected);
+
 	/**
 	 * Called when an {@link BluetoothGatt#GATT_INSUFFICIENT_AUTHENTICATION} error occurred and the device bond state is NOT_BONDED
 	 * @param device target device
@@ -106,7 +115,8 @@ public interface BleManagerCallbacks {
 	void onBatteryValueReceived(final BluetoothDevice device, final int value);
 
 	/**
-	 * Called when a BLE error has occurred
+	 * Called when a BLE error has occurred, or with {@link BleManager#ERROR_CODE_REQUEST_TIMEOUT}
+	 * when a request didn't get its callback in time. In that case the manager has already moved on or reconnected.
 	 *
 	 * @param device target device
 	 * @param message the error message
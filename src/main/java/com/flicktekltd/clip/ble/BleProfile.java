@@ -79,7 +79,7 @@ public abstract class BleProfile {
 	 * @param value the battery value in percent
 	 */
 	protected void onBatteryValueReceived(final BluetoothGatt gatt, final int value) {
-		FlicktekCommands.getInstance().onBatteryValueReceived(value);
+		FlicktekCommands.getInstance(gatt.getDevice().getAddress()).onBatteryValueReceived(value);
 	}
 
 	/**
@@ -132,20 +132,32 @@ public abstract class BleProfile {
 	}
 
 	/**
-	 * Callback indicating a notification has been received.
+	 * Callback indicating a notification has been received. Called on the BLE thread, unless the characteristic
+	 * has a {@link BleProfileApi.DirectNotificationListener}.
 	 * @param gatt GATT client
 	 * @param characteristic Characteristic from which the notification came.
+	 * @param value the notified value, the characteristic may already hold a newer one
 	 */
-	protected void onCharacteristicNotified(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+	protected void onCharacteristicNotified(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) {
 		// do nothing
 	}
 
 	/**
-	 * Callback indicating an indication has been received.
+	 * Callback indicating an indication has been received. Called on the BLE thread.
 	 * @param gatt GATT client
 	 * @param characteristic Characteristic from which the indication came.
+	 * @param value the indicated value, the characteristic may already hold a newer one
 	 */
-	protected void onCharacteristicIndicated(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+	protected void onCharacteristicIndicated(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic, final byte[] value) {
+		// do nothing
+	}
+
+	/**
+	 * Called when a larger ATT MTU has been negotiated, see {@link BleProfileApi#getMtu()}.
+	 * @param gatt GATT client
+	 * @param mtu the new MTU
+	 */
+	protected void onMtuChanged(final BluetoothGatt gatt, final int mtu) {
 		// do nothing
 	}
 
@@ -25,8 +25,23 @@ package com.flicktekltd.clip.ble;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.content.Context;
+import android.os.Handler;
+
+import java.util.UUID;
 
 public interface BleProfileApi {
+	/**
+	 * ATT MTU used until a larger one has been negotiated, it leaves 20 bytes of payload per packet.
+	 */
+	int DEFAULT_MTU = 23;
+	/**
+	 * Largest ATT MTU allowed by the specification.
+	 */
+	int MAX_MTU = 517;
+	/**
+	 * Bytes of every ATT packet taken by the opcode and the attribute handle.
+	 */
+	int ATT_HEADER_SIZE = 3;
 
 	/**
 	 * On Android, when multiple BLE operations needs to be done, it is required to wait for a proper
@@ -36,7 +51,7 @@ public interface BleProfileApi {
 	 * queue is empty. Use static methods from below to instantiate a request and then enqueue them using {@link #enqueue(Request)}.
 	 */
 	final class Request {
-		enum Type {
+		public enum Type {
 			CREATE_BOND,
 			WRITE,
 			READ,
@@ -48,13 +63,60 @@ public interface BleProfileApi {
 			ENABLE_BATTERY_LEVEL_NOTIFICATIONS,
 			DISABLE_BATTERY_LEVEL_NOTIFICATIONS,
 			ENABLE_SERVICE_CHANGED_INDICATIONS,
+			REQUEST_MTU,
+			REQUEST_CONNECTION_PRIORITY,
+			SET_PREFERRED_PHY,
 		}
 
-		final Type type;
-		final BluetoothGattCharacteristic characteristic;
-		final BluetoothGattDescriptor descriptor;
-		final byte[] value;
-		final int writeType;
+		/**
+		 * Lanes of the task queue. The manager executes the next request from the most urgent lane that has one,
+		 * a lane that has been waiting for too long goes first (see {@link RequestQueue}).
+		 * The initialization queue ignores them and runs in order.
+		 */
+		public enum Priority {
+			/** Commands somebody is waiting for, gestures and clip state changes. */
+			CONTROL,
+			/** Data transfers, they can wait behind a command. */
+			BULK,
+			/** Battery, descriptors and other requests nobody is waiting for. */
+			HOUSEKEEPING,
+		}
+
+		/**
+		 * Called on the BLE thread when a request has been executed, has failed or has been dropped from the queue.
+		 * The slice of a request from {@link #obtainWriteRequest} belongs to the caller again, and the request itself
+		 * goes back to the pool when this returns so it must not be kept. Requests still queued when the manager
+		 * is closed are finished as failed.
+		 */
+		public interface Callback {
+			void onRequestFinished(Request request, boolean success);
+		}
+
+		// Pooled requests kept for reuse, a long transfer needs as many as it keeps in flight
+		private static final int POOL_SIZE = 16;
+		private static final Object sPoolLock = new Object();
+		private static Request sPool;
+		private static int sPoolSize = 0;
+
+		Type type;
+		BluetoothGattCharacteristic characteristic;
+		BluetoothGattDescriptor descriptor;
+		/** The value to be written, only {@link #length} bytes from {@link #offset} are sent. */
+		byte[] value;
+		int offset;
+		int length;
+		int writeType;
+		/** Numeric parameter of the request, the MTU, connection priority or PHY mask depending on the type. */
+		int parameter;
+		Priority priority;
+		Callback callback;
+
+		private boolean pooled;
+		private Request next;
+
+		private Request() {
+			// Filled by obtain...()
+		}
 
 		private Request(final Type type) {
 			this.type = type;
@@ -62,6 +124,18 @@ public interface BleProfileApi {
 			this.descriptor = null;
 			this.value = null;
 			this.writeType = 0;
+			this.parameter = 0;
+			this.priority = defaultPriority(type);
+		}
+
+		private Request(final Type type, final int parameter) {
+			this.type = type;
+			this.characteristic = null;
+			this.descriptor = null;
+			this.value = null;
+			this.writeType = 0;
+			this.parameter = parameter;
+			this.priority = defaultPriority(type);
 		}
 
 		private Request(final Type type, final BluetoothGattCharacteristic characteristic) {
@@ -70,6 +144,8 @@ public interface BleProfileApi {
 			this.descriptor = null;
 			this.value = null;
 			this.writeType = 0;
+			this.parameter = 0;
+			this.priority = defaultPriority(type);
 		}
 
 		private Request(final Type type, final BluetoothGattCharacteristic characteristic, final int writeType, final byte[] value, final int offset, final int length) {
@@ -77,7 +153,10 @@ public interface BleProfileApi {
 			this.characteristic = characteristic;
 			this.descriptor = null;
 			this.value = copy(value, offset, length);
+			this.length = this.value != null ? this.value.length : 0;
 			this.writeType = writeType;
+			this.parameter = 0;
+			this.priority = defaultPriority(type);
 		}
 
 		private Request(final Type type, final BluetoothGattDescriptor descriptor) {
@@ -86,6 +165,8 @@ public interface BleProfileApi {
 			this.descriptor = descriptor;
 			this.value = null;
 			this.writeType = 0;
+			this.parameter = 0;
+			this.priority = defaultPriority(type);
 		}
 
 		private Request(final Type type, final BluetoothGattDescriptor descriptor, final byte[] value, final int offset, final int length) {
@@ -93,7 +174,122 @@ public interface BleProfileApi {
 			this.characteristic = null;
 			this.descriptor = descriptor;
 			this.value = copy(value, offset, length);
+			this.length = this.value != null ? this.value.length : 0;
 			this.writeType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+			this.parameter = 0;
+			this.priority = defaultPriority(type);
+		}
+
+		private Request(final Request request, final Priority priority) {
+			this.type = request.type;
+			this.characteristic = request.characteristic;
+			this.descriptor = request.descriptor;
+			this.value = request.value;
+			this.offset = request.offset;
+			this.length = request.length;
+			this.writeType = request.writeType;
+			this.parameter = request.parameter;
+			this.priority = priority;
+			this.callback = request.callback;
+		}
+
+		// Writes are data, link settings are control, the rest is housekeeping
+		private static Priority defaultPriority(final Type type) {
+			switch (type) {
+				case WRITE:
+					return Priority.BULK;
+				case CREATE_BOND:
+				case REQUEST_MTU:
+				case REQUEST_CONNECTION_PRIORITY:
+				case SET_PREFERRED_PHY:
+					return Priority.CONTROL;
+				default:
+					return Priority.HOUSEKEEPING;
+			}
+		}
+
+		/**
+		 * Returns the same request in another lane of the task queue.
+		 * @param priority the new priority
+		 * @return this request if it already has the given priority or comes from the pool, a copy otherwise
+		 */
+		public Request withPriority(final Priority priority) {
+			if (priority == this.priority)
+				return this;
+			if (pooled) {
+				this.priority = priority;
+				return this;
+			}
+			return new Request(this, priority);
+		}
+
+		public Priority getPriority() {
+			return priority;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		/**
+		 * Returns the array holding the value. For a request from {@link #obtainWriteRequest} this is the caller's buffer.
+		 */
+		public byte[] getValue() {
+			return value;
+		}
+
+		public int getOffset() {
+			return offset;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * Hands the request back to its owner. Called once by the manager, pooled requests are recycled afterwards.
+		 */
+		void finish(final boolean success) {
+			final Callback callback = this.callback;
+			if (callback != null)
+				callback.onRequestFinished(this, success);
+			if (pooled)
+				recycle(this);
+		}
+
+		private static Request obtain() {
+			synchronized (sPoolLock) {
+				final Request request = sPool;
+				if (request != null) {
+					sPool = request.next;
+					request.next = null;
+					sPoolSize--;
+					return request;
+				}
+			}
+			return new Request();
+		}
+
+		private static void recycle(final Request request) {
+			request.type = null;
+			request.characteristic = null;
+			request.descriptor = null;
+			request.value = null;
+			request.offset = 0;
+			request.length = 0;
+			request.writeType = 0;
+			request.parameter = 0;
+			request.priority = null;
+			request.callback = null;
+			request.pooled = false;
+
+			synchronized (sPoolLock) {
+				if (sPoolSize < POOL_SIZE) {
+					request.next = sPool;
+					sPool = request;
+					sPoolSize++;
+				}
+			}
 		}
 
 		private static byte[] copy(final byte[] value, final int offset, final int length) {
@@ -173,6 +369,36 @@ public interface BleProfileApi {
 			return new Request(Type.WRITE, characteristic, writeType, value, offset, length);
 		}
 
+		/**
+		 * Takes a Write Characteristic request from the pool. Unlike {@link #newWriteRequest} the value is not copied,
+		 * the request writes the given slice of the buffer. The slice must not be modified until the callback returns it,
+		 * it is then safe to reuse the buffer. The request can only be enqueued once.
+		 * @param characteristic characteristic to be written
+		 * @param buffer buffer holding the value, owned by the request until the callback is called
+		 * @param offset the offset of the value in the buffer
+		 * @param length number of bytes to be written
+		 * @param writeType write type to be used, one of {@link BluetoothGattCharacteristic#WRITE_TYPE_DEFAULT}, {@link BluetoothGattCharacteristic#WRITE_TYPE_NO_RESPONSE}.
+		 * @param priority lane of the task queue
+		 * @param callback called when the request has finished, may be null
+		 * @return the request that can be enqueued using {@link #enqueue(Request)} method.
+		 */
+		public static Request obtainWriteRequest(final BluetoothGattCharacteristic characteristic, final byte[] buffer, final int offset, final int length,
+												 final int writeType, final Priority priority, final Callback callback) {
+			final Request request = obtain();
+			request.type = Type.WRITE;
+			request.characteristic = characteristic;
+			if (buffer != null && offset <= buffer.length) {
+				request.value = buffer;
+				request.offset = offset;
+				request.length = Math.max(0, Math.min(buffer.length - offset, length));
+			}
+			request.writeType = writeType;
+			request.priority = priority;
+			request.callback = callback;
+			request.pooled = true;
+			return request;
+		}
+
 		/**
 		 * Creates new Read Descriptor request. The request will not be executed if given descriptor
 		 * is null. After the operation is complete a proper callback will be invoked.
@@ -263,6 +489,51 @@ public interface BleProfileApi {
 		static Request newEnableServiceChangedIndicationsRequest() {
 			return new Request(Type.ENABLE_SERVICE_CHANGED_INDICATIONS); // the only Service Changed char is used (if such exists)
 		}
+
+		/**
+		 * Creates new MTU request. The remote device may accept a smaller MTU than requested, the negotiated
+		 * value is available from {@link #getMtu()} once the request has finished. If the request fails the
+		 * connection carries on with the previous MTU.
+		 * @param mtu the MTU to request, between {@link #DEFAULT_MTU} and {@link #MAX_MTU}
+		 * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+		 */
+		public static Request newMtuRequest(final int mtu) {
+			return new Request(Type.REQUEST_MTU, Math.max(DEFAULT_MTU, Math.min(mtu, MAX_MTU)));
+		}
+
+		/**
+		 * Creates new connection priority request. Android has no callback for it, the queue carries on as soon as
+		 * the request has been sent and the new connection parameters apply a few connection events later.
+		 * @param priority one of {@link android.bluetooth.BluetoothGatt#CONNECTION_PRIORITY_BALANCED},
+		 * {@link android.bluetooth.BluetoothGatt#CONNECTION_PRIORITY_HIGH} or {@link android.bluetooth.BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+		 * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+		 */
+		public static Request newConnectionPriorityRequest(final int priority) {
+			return new Request(Type.REQUEST_CONNECTION_PRIORITY, priority);
+		}
+
+		/**
+		 * Creates new preferred PHY request for both directions. It is skipped before Android 8.0, the controller
+		 * may keep the current PHY if the remote device doesn't support the new one.
+		 * @param phyMask one of {@link android.bluetooth.BluetoothDevice#PHY_LE_1M_MASK},
+		 * {@link android.bluetooth.BluetoothDevice#PHY_LE_2M_MASK} or {@link android.bluetooth.BluetoothDevice#PHY_LE_CODED_MASK}
+		 * @return the new request that can be enqueued using {@link #enqueue(Request)} method.
+		 */
+		public static Request newPreferredPhyRequest(final int phyMask) {
+			return new Request(Type.SET_PREFERRED_PHY, phyMask);
+		}
+	}
+
+	/**
+	 * Receives the notifications of a characteristic straight from the Binder thread, see
+	 * {@link #setDirectNotificationListener(UUID, DirectNotificationListener)}.
+	 */
+	interface DirectNotificationListener {
+		/**
+		 * Called on the Binder thread for every notification, it must return quickly and not allocate.
+		 * The array belongs to the notification, copy it out before returning.
+		 */
+		void onNotification(final byte[] value);
 	}
 
 	/**
@@ -270,6 +541,26 @@ public interface BleProfileApi {
 	 */
 	Context getContext();
 
+	/**
+	 * Returns the handler of the BLE thread. The GATT callbacks, the request queue and the profile run there,
+	 * code touching the profile state from other threads has to be posted to it.
+	 */
+	Handler getHandler();
+
+	/**
+	 * Returns the timings of the connection phases, the profile marks the ones it knows about.
+	 */
+	ConnectionTimeline getConnectionTimeline();
+
+	/**
+	 * Hands the notifications of the characteristic to the listener on the Binder thread, instead of posting them
+	 * to the BLE thread and the profile. A single characteristic can be redirected, null restores the default.
+	 *
+	 * @param characteristic UUID of the characteristic
+	 * @param listener       the listener, or null
+	 */
+	void setDirectNotificationListener(final UUID characteristic, final DirectNotificationListener listener);
+
 	/**
 	 * Enqueues creating bond request to the queue.
 	 * @return true if request has been enqueued, false if the device has not been connected
@@ -337,6 +628,36 @@ public interface BleProfileApi {
 	 */
 	boolean setBatteryNotifications(final boolean enable);
 
+	/**
+	 * Requests a larger ATT MTU, see {@link Request#newMtuRequest(int)}.
+	 *
+	 * @param mtu the MTU to request
+	 * @return true if request has been enqueued
+	 */
+	boolean requestMtu(final int mtu);
+
+	/**
+	 * Returns the ATT MTU of the current connection, {@link #DEFAULT_MTU} until a larger one has been negotiated.
+	 * A single write or notification carries up to MTU - {@link #ATT_HEADER_SIZE} bytes.
+	 */
+	int getMtu();
+
+	/**
+	 * Requests new connection parameters, see {@link Request#newConnectionPriorityRequest(int)}.
+	 *
+	 * @param priority the connection priority
+	 * @return true if request has been enqueued
+	 */
+	boolean requestConnectionPriority(final int priority);
+
+	/**
+	 * Sets the preferred PHY, see {@link Request#newPreferredPhyRequest(int)}.
+	 *
+	 * @param phyMask the PHY to use for both directions
+	 * @return true if request has been enqueued
+	 */
+	boolean setPreferredPhy(final int phyMask);
+
 	/**
 	 * Enqueues a new request. The request will be handled immediately if there is no operation in progress,
 	 * or automatically after the last enqueued one will finish.
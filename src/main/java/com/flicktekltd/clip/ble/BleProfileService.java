@@ -32,6 +32,7 @@ import android.content.IntentFilter;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 import android.widget.Toast;
@@ -39,11 +40,19 @@ import android.widget.Toast;
 import com.flicktekltd.clip.FlicktekCommands;
 import com.flicktekltd.clip.FlicktekManager;
 import com.flicktekltd.clip.FlicktekSettings;
+import com.flicktekltd.clip.uart.UARTProfile;
 
 import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class BleProfileService extends Service implements BleManagerCallbacks {
     @SuppressWarnings("unused")
     private static final String TAG = "BleProfileService";
@@ -63,6 +72,10 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
      * The key for the device name that is returned in {@link #BROADCAST_CONNECTION_STATE} with state {@link #STATE_CONNECTED}.
      */
     public static final String EXTRA_DEVICE_NAME = "com.flicktekltd.clip.EXTRA_DEVICE_NAME";
+    /**
+     * Set to <code>true</code> to connect the clip at {@link #EXTRA_DEVICE_ADDRESS} next to the primary one instead of replacing it.
+     */
+    public static final String EXTRA_ADDITIONAL_DEVICE = "com.flicktekltd.clip.EXTRA_ADDITIONAL_DEVICE";
     public static final String EXTRA_DEVICE = "com.flicktekltd.clip.EXTRA_DEVICE";
     public static final String EXTRA_CONNECTION_STATE = "com.flicktekltd.clip.EXTRA_CONNECTION_STATE";
     public static final String EXTRA_BOND_STATE = "com.flicktekltd.clip.EXTRA_BOND_STATE";
@@ -77,11 +90,20 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     public static final int STATE_DISCONNECTING = 3;
 
     private BleManager mBleManager;
+    /**
+     * Managers of the clips connected next to the primary one, by address. Each one has its own GATT connection,
+     * request queue and BLE thread.
+     */
+    private final Map<String, BleManager> mManagers = new HashMap<>();
     private Handler mHandler;
+    /**
+     * Decides when the lost clips are connected again.
+     */
+    private ReconnectScheduler mReconnectScheduler;
 
     protected boolean mBinded;
     private boolean mConnected;
-    private BluetoothDevice mBluetoothDevice;
+    private volatile BluetoothDevice mBluetoothDevice;
     private String mDeviceName;
 
     // Check if the screen is off and we get aria to sleep after a some time so we save energy
@@ -90,10 +112,14 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
         public void onReceive(final Context context, final Intent intent) {
             if (intent.getAction().equals(Intent.ACTION_SCREEN_OFF)) {
                 Log.v(TAG, "---------- Screen is off --------");
-                FlicktekCommands.getInstance().setApplicationPaused(true);
+                for (FlicktekCommands clip : FlicktekCommands.getInstances())
+                    clip.setApplicationPaused(true);
+                mReconnectScheduler.setInteractive(false);
             } else if (intent.getAction().equals(Intent.ACTION_SCREEN_ON)) {
                 Log.v(TAG, "---------- Screen is on --------");
-                FlicktekCommands.getInstance().setApplicationPaused(false);
+                for (FlicktekCommands clip : FlicktekCommands.getInstances())
+                    clip.setApplicationPaused(false);
+                mReconnectScheduler.setInteractive(true);
             }
         }
     };
@@ -105,6 +131,7 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
 
             switch (state) {
                 case BluetoothAdapter.STATE_ON:
+                    mReconnectScheduler.retryAll();
                     onBluetoothEnabled();
                     break;
                 case BluetoothAdapter.STATE_TURNING_OFF:
@@ -122,6 +149,10 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
          * Disconnects from the sensor.
          */
         public void disconnect() {
+            final BluetoothDevice device = mBluetoothDevice;
+            if (device != null)
+                mReconnectScheduler.untrack(device.getAddress());
+
             if (mConnected) {
                 mBleManager.close();
                 onDeviceDisconnected(mBluetoothDevice);
@@ -173,15 +204,90 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
             return mBleManager.getProfile();
         }
 
+        /**
+         * Returns the Profile API of the given clip, the primary one or any other connected clip.
+         */
+        public final BleProfile getProfile(final String address) {
+            final BleManager manager = getManager(address);
+            return manager != null ? manager.getProfile() : null;
+        }
+
+        /**
+         * Returns the connection phase timings of the given clip, pass null for the primary one.
+         */
+        public final ConnectionTimeline getConnectionTimeline(final String address) {
+            final BleManager manager = getManager(address);
+            return manager != null ? manager.getConnectionTimeline() : null;
+        }
+
+        /**
+         * Connects another clip, the primary one stays connected.
+         */
+        public void addDevice(final String address) {
+            final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+            connectAdditionalDevice(adapter.getRemoteDevice(address));
+        }
+
+        /**
+         * Disconnects a clip added with {@link #addDevice(String)} and forgets it.
+         */
+        public void removeDevice(final String address) {
+            final BleManager manager;
+            synchronized (mManagers) {
+                manager = mManagers.get(address);
+            }
+            if (manager == null)
+                return;
+
+            mReconnectScheduler.untrack(address);
+
+            // Reported while the clip is still known, so it doesn't look like the primary one
+            manager.release();
+            onDeviceDisconnected(BluetoothAdapter.getDefaultAdapter().getRemoteDevice(address));
+
+            synchronized (mManagers) {
+                mManagers.remove(address);
+            }
+            FlicktekCommands.removeInstance(address);
+        }
+
+        /**
+         * Returns the addresses of every clip we are connected to, the primary one first.
+         */
+        public final List<String> getConnectedDevices() {
+            final List<String> devices = new ArrayList<>();
+            if (mConnected && mBluetoothDevice != null)
+                devices.add(mBluetoothDevice.getAddress());
+            synchronized (mManagers) {
+                for (Map.Entry<String, BleManager> entry : mManagers.entrySet()) {
+                    if (entry.getValue().isConnected())
+                        devices.add(entry.getKey());
+                }
+            }
+            return devices;
+        }
+
+        /**
+         * Returns the scheduler of the reconnections, to configure the backoff or read the attempt outcomes.
+         */
+        public final ReconnectScheduler getReconnectScheduler() {
+            return mReconnectScheduler;
+        }
+
+        /**
+         * Connects the primary clip again now, unless an attempt is already in progress.
+         */
         public boolean reconnect() {
             if (mConnected) {
                 return true;
             }
 
-            if (mBluetoothDevice == null)
+            final BluetoothDevice device = mBluetoothDevice;
+            if (device == null)
                 return false;
 
-            mBleManager.connect(mBluetoothDevice);
+            mReconnectScheduler.track(device.getAddress());
+            mReconnectScheduler.retryNow(device.getAddress());
             return true;
         }
     }
@@ -199,12 +305,15 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     @Override
     public IBinder onBind(final Intent intent) {
         mBinded = true;
+        // Somebody opened the application, don't make them wait for the backoff
+        mReconnectScheduler.retryAll();
         return getBinder();
     }
 
     @Override
     public final void onRebind(final Intent intent) {
         mBinded = true;
+        mReconnectScheduler.retryAll();
     }
 
     @Override
@@ -224,6 +333,30 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
 
         // initialize the manager
         mBleManager = new BleManager(this, this);
+        mReconnectScheduler = new ReconnectScheduler(mHandler, new ReconnectScheduler.Target() {
+            @Override
+            public boolean reconnect(final String address) {
+                // Bluetooth is off, the attempts start again when it is turned on
+                final BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+                if (mBleManager == null || !adapter.isEnabled())
+                    return false;
+
+                final BleManager manager = findManager(address);
+                if (manager == null)
+                    return false;
+
+                manager.connect(adapter.getRemoteDevice(address));
+                return true;
+            }
+
+            @Override
+            public void onReconnectAbandoned(final String address) {
+                // Only the manager of that clip, never the primary one in its place
+                final BleManager manager = findManager(address);
+                if (manager != null)
+                    manager.close();
+            }
+        });
 
         // Register broadcast receivers
         registerReceiver(mBluetoothStateBroadcastReceiver, new IntentFilter(BluetoothAdapter.ACTION_STATE_CHANGED));
@@ -256,18 +389,87 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
         if (intent == null || !intent.hasExtra(EXTRA_DEVICE_ADDRESS))
             throw new UnsupportedOperationException("No device address at EXTRA_DEVICE_ADDRESS key");
 
-        mDeviceName = intent.getStringExtra(EXTRA_DEVICE_NAME);
-
         final BluetoothManager bluetoothManager = (BluetoothManager) getSystemService(BLUETOOTH_SERVICE);
         final BluetoothAdapter adapter = bluetoothManager.getAdapter();
         final String deviceAddress = intent.getStringExtra(EXTRA_DEVICE_ADDRESS);
-        mBluetoothDevice = adapter.getRemoteDevice(deviceAddress);
+        final BluetoothDevice device = adapter.getRemoteDevice(deviceAddress);
+
+        final BluetoothDevice primary = mBluetoothDevice;
+        if (intent.getBooleanExtra(EXTRA_ADDITIONAL_DEVICE, false) && primary != null && !primary.getAddress().equals(deviceAddress)) {
+            connectAdditionalDevice(device);
+            return START_REDELIVER_INTENT;
+        }
+
+        mDeviceName = intent.getStringExtra(EXTRA_DEVICE_NAME);
+        if (primary != null && !primary.getAddress().equals(deviceAddress))
+            mReconnectScheduler.untrack(primary.getAddress());
+        mBluetoothDevice = device;
+        mReconnectScheduler.track(deviceAddress);
+
+        // The primary clip can't have a second connection
+        final BleManager previous;
+        synchronized (mManagers) {
+            previous = mManagers.remove(deviceAddress);
+        }
+        if (previous != null)
+            previous.release();
+        FlicktekCommands.getInstance().setDeviceAddress(deviceAddress);
         onServiceStarted();
 
         mBleManager.connect(mBluetoothDevice);
         return START_REDELIVER_INTENT;
     }
 
+    // Every clip after the first one gets its own manager
+    private void connectAdditionalDevice(final BluetoothDevice device) {
+        BleManager manager;
+        synchronized (mManagers) {
+            manager = mManagers.get(device.getAddress());
+            if (manager == null) {
+                manager = new BleManager(this, this);
+                mManagers.put(device.getAddress(), manager);
+            }
+        }
+        mReconnectScheduler.track(device.getAddress());
+        manager.connect(device);
+    }
+
+    // Only the primary clip updates FlicktekManager and the binder state
+    private boolean isPrimary(final BluetoothDevice device) {
+        if (device == null)
+            return true;
+
+        synchronized (mManagers) {
+            return !mManagers.containsKey(device.getAddress());
+        }
+    }
+
+    // Manager of the given clip, the primary one unless it has been added
+    private BleManager getManager(final String address) {
+        if (address != null) {
+            synchronized (mManagers) {
+                final BleManager manager = mManagers.get(address);
+                if (manager != null)
+                    return manager;
+            }
+        }
+        return mBleManager;
+    }
+
+    // The manager of exactly this clip, null if we don't have one
+    private BleManager findManager(final String address) {
+        synchronized (mManagers) {
+            final BleManager manager = mManagers.get(address);
+            if (manager != null)
+                return manager;
+        }
+
+        final BluetoothDevice primary = mBluetoothDevice;
+        if (primary != null && primary.getAddress().equals(address))
+            return mBleManager;
+        return null;
+    }
+
     /**
      * Called when the service has been started. The device name and address are set. It nRF Logger is installed than logger was also initialized.
      */
@@ -282,9 +484,17 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
 
         unregisterReceiver(mBluetoothStateBroadcastReceiver);
         unregisterReceiver(mScreenIsOn);
+        mReconnectScheduler.cancelAll();
 
-        // shutdown the manager
-        mBleManager.close();
+        // shutdown the managers and their threads
+        synchronized (mManagers) {
+            for (Map.Entry<String, BleManager> entry : mManagers.entrySet()) {
+                entry.getValue().release();
+                FlicktekCommands.removeInstance(entry.getKey());
+            }
+            mManagers.clear();
+        }
+        mBleManager.release();
         mBleManager = null;
         mBluetoothDevice = null;
         mDeviceName = null;
@@ -316,44 +526,93 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     @Override
     public void onDeviceConnecting(final BluetoothDevice device) {
         final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTING);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
-        FlicktekManager.getInstance().onConnecting(device.getAddress());
+        if (isPrimary(device)) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    FlicktekManager.getInstance().onConnecting(device.getAddress());
+                }
+            });
+        }
     }
 
     @Override
     public void onDeviceConnected(final BluetoothDevice device) {
-        mConnected = true;
+        final boolean primary = isPrimary(device);
+        if (primary) {
+            // Before the broadcast, so its receivers see the new state
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mConnected = true;
+                }
+            });
+        }
+        mReconnectScheduler.onConnected(device.getAddress());
 
         final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
         broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_CONNECTED);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
-        broadcast.putExtra(EXTRA_DEVICE_NAME, mDeviceName);
+        broadcast.putExtra(EXTRA_DEVICE, device);
+        broadcast.putExtra(EXTRA_DEVICE_NAME, primary ? mDeviceName : device.getName());
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
-        mBleManager.setBatteryNotifications(true);
-
-        FlicktekManager.getInstance().onConnected(device.getName(), device.getAddress());
+        final BleManager manager = getManager(device.getAddress());
+        if (manager != null)
+            manager.setBatteryNotifications(true);
+
+        if (primary) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    FlicktekManager.getInstance().onConnected(device.getName(), device.getAddress());
+                }
+            });
+        }
     }
 
     @Override
     public void onDeviceDisconnecting(final BluetoothDevice device) {
         // Notify user about changing the state to DISCONNECTING
         final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTING);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
-        FlicktekManager.getInstance().onDisconnecting();
+        if (isPrimary(device)) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    FlicktekManager.getInstance().onDisconnecting();
+                }
+            });
+        }
     }
 
     @Override
     public void onDeviceDisconnected(final BluetoothDevice device) {
-        mConnected = false;
+        final boolean primary = isPrimary(device);
+        if (primary) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mConnected = false;
+                }
+            });
+        }
 
         final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_DISCONNECTED);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
-        FlicktekManager.getInstance().onDisconnected();
+        if (primary) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    FlicktekManager.getInstance().onDisconnected();
+                }
+            });
+        }
 
         // Disable disconnection and try to connect again.
         // We don't want to close the application if we are disconnected!
@@ -363,27 +622,55 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
 
     @Override
     public void onLinklossOccur(final BluetoothDevice device) {
-        mConnected = false;
+        final boolean primary = isPrimary(device);
+        if (primary) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    mConnected = false;
+                }
+            });
+        }
 
         final Intent broadcast = new Intent(BROADCAST_CONNECTION_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_CONNECTION_STATE, STATE_LINK_LOSS);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
-        FlicktekManager.getInstance().onLinkloss();
+        if (primary) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    FlicktekManager.getInstance().onLinkloss();
+                }
+            });
+        }
+    }
+
+    @Override
+    public void onConnectionLost(final BluetoothDevice device, final int status, final boolean wasConnected) {
+        Log.v(TAG, "Connection to " + device.getAddress() + (wasConnected ? " lost" : " failed") + ", status " + status);
+        mReconnectScheduler.onConnectionLost(device.getAddress(), wasConnected);
     }
 
     @Override
     public void onDeviceReady(final BluetoothDevice device) {
         final Intent broadcast = new Intent(BROADCAST_DEVICE_READY);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
-        FlicktekManager.getInstance().onDeviceReady();
+        if (isPrimary(device)) {
+            runOnMainThread(new Runnable() {
+                @Override
+                public void run() {
+                    FlicktekManager.getInstance().onDeviceReady();
+                }
+            });
+        }
     }
 
     @Override
     public void onDeviceNotSupported(final BluetoothDevice device) {
         final Intent broadcast = new Intent(BROADCAST_DEVICE_NOT_SUPPORTED);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
 
         // no need for disconnecting, it will be disconnected by the manager automatically
@@ -394,7 +681,7 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
         showToast(com.flicktekltd.clip.common.R.string.bonding);
 
         final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDING);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
@@ -402,7 +689,7 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     @Override
     public void onBatteryValueReceived(final BluetoothDevice device, final int value) {
         final Intent broadcast = new Intent(BROADCAST_BATTERY_LEVEL);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_BATTERY_LEVEL, value);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
@@ -412,7 +699,7 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
         showToast(com.flicktekltd.clip.common.R.string.bonded);
 
         final Intent broadcast = new Intent(BROADCAST_BOND_STATE);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_BOND_STATE, BluetoothDevice.BOND_BONDED);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
     }
@@ -420,14 +707,20 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
     @Override
     public void onError(final BluetoothDevice device, final String message, final int errorCode) {
         final Intent broadcast = new Intent(BROADCAST_ERROR);
-        broadcast.putExtra(EXTRA_DEVICE, mBluetoothDevice);
+        broadcast.putExtra(EXTRA_DEVICE, device);
         broadcast.putExtra(EXTRA_ERROR_MESSAGE, message);
         broadcast.putExtra(EXTRA_ERROR_CODE, errorCode);
         LocalBroadcastManager.getInstance(this).sendBroadcast(broadcast);
 
+        // The manager has already skipped the request or reconnected
+        if (errorCode == BleManager.ERROR_CODE_REQUEST_TIMEOUT)
+            return;
+
         // After receiving an error the device will be automatically disconnected.
         // Replace it with other implementation if necessary.
-        mBleManager.disconnect();
+        final BleManager manager = getManager(device != null ? device.getAddress() : null);
+        if (manager != null)
+            manager.disconnect();
 //        if (mBluetoothDevice != null) {
 //            Log.d(TAG, "mBluetoothDevice isn't null");
 //            mBleManager.connect(mBluetoothDevice);
@@ -438,6 +731,19 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
 //        stopSelf();
     }
 
+    /**
+     * The BleManager callbacks come on its BLE thread. FlicktekManager posts its events from the thread that calls
+     * it and, like {@link #mConnected}, is only used on the main thread, so the callbacks hand their updates over.
+     */
+    private void runOnMainThread(final Runnable runnable) {
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            runnable.run();
+            return;
+        }
+
+        mHandler.post(runnable);
+    }
+
     /**
      * Shows a message as a Toast notification. This method is thread safe, you can call it from any thread
      *
@@ -452,6 +758,38 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
         });
     }
 
+    /**
+     * Prints the connection phase timings of every clip and the reconnect outcomes, <code>adb shell dumpsys activity service</code> with the service name.
+     */
+    @Override
+    protected void dump(final FileDescriptor fd, final PrintWriter writer, final String[] args) {
+        final BleManager primary = mBleManager;
+        final BluetoothDevice device = mBluetoothDevice;
+        if (primary != null) {
+            writer.println("Primary clip " + (device != null ? device.getAddress() : "none"));
+            primary.getConnectionTimeline().dump(writer);
+            dumpProfile(primary, writer);
+        }
+
+        synchronized (mManagers) {
+            for (Map.Entry<String, BleManager> entry : mManagers.entrySet()) {
+                writer.println("Clip " + entry.getKey());
+                entry.getValue().getConnectionTimeline().dump(writer);
+                dumpProfile(entry.getValue(), writer);
+            }
+        }
+
+        final ReconnectScheduler scheduler = mReconnectScheduler;
+        if (scheduler != null)
+            scheduler.dump(writer);
+    }
+
+    private static void dumpProfile(final BleManager manager, final PrintWriter writer) {
+        final BleProfile profile = manager.getProfile();
+        if (profile instanceof UARTProfile)
+            writer.println("  DROPPED NOTIFICATIONS " + ((UARTProfile) profile).getDroppedNotificationCount());
+    }
+
     /**
      * Creates an intent filter that filters for all broadcast events sent by this service.
      */
@@ -472,6 +810,9 @@ public class BleProfileService extends Service implements BleManagerCallbacks {
         if (settings.key.equals(FlicktekSettings.CONNECT_DEVICE_KEY)) {
             if (settings.value.equals(FlicktekSettings.CONNECT_DEVICE_PHONE)) {
                 Log.v(TAG, "onSettingsEvent disconnect " + settings.key);
+                // The wearable takes the clip, stop reconnecting to it
+                if (mBluetoothDevice != null)
+                    mReconnectScheduler.untrack(mBluetoothDevice.getAddress());
                 if (mBleManager.isConnected())
                     mBleManager.disconnect();
                 return;
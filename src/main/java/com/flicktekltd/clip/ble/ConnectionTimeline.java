@@ -0,0 +1,166 @@
+package com.flicktekltd.clip.ble;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Times the phases of every connection, from connectGatt() to the <code>{OK}</code> handshake of the clip.
+ * <p>
+ * Each phase is recorded the first time it is reached during a connection. Its latency is the time since
+ * the latest earlier phase we went through, so a phase that didn't happen (no bonding delay, no notification
+ * enabling) adds nothing and the next one carries the wait. The total goes from {@link #PHASE_CONNECT} to
+ * {@link #PHASE_HANDSHAKE}. Connections that end before the handshake only count as aborted.
+ * </p>
+ * <p>
+ * No Android classes here, timestamps are monotonic milliseconds. Thread safe, phases are marked from the
+ * BLE thread and read from anywhere.
+ * </p>
+ */
+public class ConnectionTimeline {
+    /** connectGatt() has been called. */
+    public static final int PHASE_CONNECT = 0;
+    /** onConnectionStateChange() reported the connection. */
+    public static final int PHASE_CONNECTED = 1;
+    /** discoverServices() has been called, after the wait for a bonded device. */
+    public static final int PHASE_DISCOVERY = 2;
+    /** The services have been discovered and match the cache. */
+    public static final int PHASE_SERVICES_DISCOVERED = 3;
+    /** The UART notifications have been enabled. */
+    public static final int PHASE_NOTIFICATIONS_ENABLED = 4;
+    /** FlicktekCommands has been told the UART is ready, the first command goes out. */
+    public static final int PHASE_READY_TO_SEND = 5;
+    /** The initialization queue is empty. */
+    public static final int PHASE_INITIALIZED = 6;
+    /** The clip answered <code>{OK}</code>. */
+    public static final int PHASE_HANDSHAKE = 7;
+
+    public static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "CONNECT", "CONNECTED", "DISCOVERY", "SERVICES_DISCOVERED",
+            "NOTIFICATIONS_ENABLED", "READY_TO_SEND", "INITIALIZED", "HANDSHAKE"
+    };
+
+    // Time every phase was reached in the current connection, -1 if not yet
+    private final long[] mTimes = new long[PHASE_COUNT];
+    // The last connection that reached the handshake
+    private final long[] mLastTimes = new long[PHASE_COUNT];
+
+    private final LatencyHistogram[] mPhases = new LatencyHistogram[PHASE_COUNT];
+    private final LatencyHistogram mTotal = new LatencyHistogram();
+
+    private boolean mInProgress = false;
+    private int mConnections = 0;
+    private int mCompleted = 0;
+    private int mAborted = 0;
+
+    public ConnectionTimeline() {
+        for (int t = 0; t < PHASE_COUNT; t++) {
+            mPhases[t] = new LatencyHistogram();
+        }
+        Arrays.fill(mTimes, -1);
+        Arrays.fill(mLastTimes, -1);
+    }
+
+    /**
+     * A new connection attempt starts, the previous one is aborted if it didn't reach the handshake.
+     */
+    public synchronized void start() {
+        abort();
+        Arrays.fill(mTimes, -1);
+        mTimes[PHASE_CONNECT] = now();
+        mInProgress = true;
+        mConnections++;
+    }
+
+    public synchronized void mark(int phase) {
+        if (!mInProgress || phase <= PHASE_CONNECT || phase >= PHASE_COUNT || mTimes[phase] >= 0)
+            return;
+
+        final long time = now();
+        mTimes[phase] = time;
+
+        int previous = phase - 1;
+        while (mTimes[previous] < 0)
+            previous--;
+        mPhases[phase].record(time - mTimes[previous]);
+
+        if (phase == PHASE_HANDSHAKE) {
+            mTotal.record(time - mTimes[PHASE_CONNECT]);
+            System.arraycopy(mTimes, 0, mLastTimes, 0, PHASE_COUNT);
+            mInProgress = false;
+            mCompleted++;
+        }
+    }
+
+    // The connection has been lost or closed
+    public synchronized void abort() {
+        if (!mInProgress)
+            return;
+
+        mInProgress = false;
+        mAborted++;
+    }
+
+    /**
+     * Returns the latencies of the given phase, measured from the phase before it.
+     */
+    public LatencyHistogram getHistogram(int phase) {
+        return mPhases[phase];
+    }
+
+    /**
+     * Returns the latencies from connectGatt() to the handshake.
+     */
+    public LatencyHistogram getTotalHistogram() {
+        return mTotal;
+    }
+
+    /**
+     * Returns the milliseconds from connectGatt() to every phase of the last connection that reached the handshake,
+     * -1 for the phases it skipped.
+     */
+    public synchronized long[] getLastConnection() {
+        final long[] times = new long[PHASE_COUNT];
+        for (int t = 0; t < PHASE_COUNT; t++) {
+            times[t] = mLastTimes[t] >= 0 ? mLastTimes[t] - mLastTimes[PHASE_CONNECT] : -1;
+        }
+        return times;
+    }
+
+    public synchronized int getConnectionCount() {
+        return mConnections;
+    }
+
+    public synchronized int getCompletedCount() {
+        return mCompleted;
+    }
+
+    public synchronized int getAbortedCount() {
+        return mAborted;
+    }
+
+    public static String phaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Connections " + mConnections + ", completed " + mCompleted + ", aborted " + mAborted);
+        writer.println("  TOTAL " + mTotal);
+        for (int t = PHASE_CONNECT + 1; t < PHASE_COUNT; t++) {
+            writer.println("  " + PHASE_NAMES[t] + " " + mPhases[t]);
+        }
+
+        final long[] last = getLastConnection();
+        final StringBuilder builder = new StringBuilder("  Last connection");
+        for (int t = PHASE_CONNECT + 1; t < PHASE_COUNT; t++) {
+            if (last[t] >= 0)
+                builder.append(' ').append(PHASE_NAMES[t]).append('=').append(last[t]);
+        }
+        writer.println(builder);
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
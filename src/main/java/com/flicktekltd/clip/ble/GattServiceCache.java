@@ -0,0 +1,164 @@
+package com.flicktekltd.clip.ble;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Remembers the GATT layout of every clip we have connected to, keyed by MAC address.
+ * <p>
+ * Bonded devices wait before discovering the services so a Service Changed indication can arrive first,
+ * otherwise Android returns its cached services. We only need the full 1600 ms until we know the device:
+ * once its layout has been seen unchanged we use the measured Service Changed time, or a short delay if
+ * it never sent one. A layout that doesn't match the cache means the shortcut was wrong, the caller
+ * refreshes the services and discovers again with the full delay.
+ * </p>
+ */
+public class GattServiceCache {
+    private static final String TAG = "GattServiceCache";
+
+    private static final String PREFERENCES = "gatt_service_cache";
+
+    // Wait used when we know nothing about the device, around 1600 ms is required when connection interval is ~45ms.
+    public static final long DEFAULT_DISCOVERY_DELAY = 1600;
+    // Wait for a known device that has never sent a Service Changed indication
+    public static final long FAST_DISCOVERY_DELAY = 300;
+    // Added to the measured Service Changed time
+    public static final long SERVICE_CHANGED_MARGIN = 200;
+    // Connections with the same layout before we trust the cache
+    public static final int MIN_STABLE_CONNECTIONS = 2;
+
+    private final SharedPreferences mPreferences;
+
+    private int mHits;
+    private int mMisses;
+
+    public GattServiceCache(final Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns how long to wait after connecting to a bonded device before discovering its services.
+     */
+    public long getDiscoveryDelay(final String address) {
+        final Entry entry = load(address);
+        if (entry == null || entry.stableConnections < MIN_STABLE_CONNECTIONS)
+            return DEFAULT_DISCOVERY_DELAY;
+
+        if (entry.serviceChangedDelay >= 0)
+            return Math.min(DEFAULT_DISCOVERY_DELAY, entry.serviceChangedDelay + SERVICE_CHANGED_MARGIN);
+
+        return FAST_DISCOVERY_DELAY;
+    }
+
+    /**
+     * Checks the discovered services against the cache and stores them.
+     *
+     * @return false if the layout changed since the last connection, the services have to be discovered again
+     */
+    public boolean onServicesDiscovered(final BluetoothGatt gatt) {
+        final String address = gatt.getDevice().getAddress();
+        final long layout = layoutHash(gatt);
+        final Entry entry = load(address);
+        final boolean known = entry != null && entry.layout != 0;
+
+        if (known && entry.layout != layout) {
+            Log.w(TAG, "Services of " + address + " have changed, discarding the cache");
+            mMisses++;
+
+            // Keep the Service Changed timing, the layout has to be learnt again
+            entry.layout = 0;
+            entry.stableConnections = 0;
+            save(address, entry);
+            return false;
+        }
+
+        final Entry updated = entry != null ? entry : new Entry();
+        updated.layout = layout;
+        updated.stableConnections++;
+        save(address, updated);
+
+        if (known)
+            mHits++;
+        return true;
+    }
+
+    /**
+     * A Service Changed indication has arrived, the given time after the connection was established.
+     * We keep the longest time seen so the next connections wait for it.
+     */
+    public void onServiceChanged(final String address, final long delay) {
+        final Entry entry = new Entry();
+        final Entry old = load(address);
+        entry.serviceChangedDelay = old != null ? Math.max(old.serviceChangedDelay, delay) : delay;
+
+        // The layout has to be learnt again
+        save(address, entry);
+    }
+
+    public void invalidate(final String address) {
+        mPreferences.edit().remove(address).apply();
+    }
+
+    // Connections that found the layout they expected
+    public int getHitCount() {
+        return mHits;
+    }
+
+    // Connections that had to discover the services again
+    public int getMissCount() {
+        return mMisses;
+    }
+
+    // Services, characteristics and their properties, the handles are not exposed by the API.
+    private static long layoutHash(final BluetoothGatt gatt) {
+        long hash = 1125899906842597L;
+        for (final BluetoothGattService service : gatt.getServices()) {
+            hash = 31 * hash + service.getUuid().hashCode();
+            hash = 31 * hash + service.getInstanceId();
+            for (final BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                hash = 31 * hash + characteristic.getUuid().hashCode();
+                hash = 31 * hash + characteristic.getProperties();
+            }
+        }
+        return hash;
+    }
+
+    private static class Entry {
+        long layout;
+        int stableConnections;
+        long serviceChangedDelay = -1;
+    }
+
+    // Stored as "layout:stable connections:service changed delay"
+    private Entry load(final String address) {
+        final String value = mPreferences.getString(address, null);
+        if (value == null)
+            return null;
+
+        final String[] fields = value.split(":");
+        if (fields.length != 3)
+            return null;
+
+        try {
+            final Entry entry = new Entry();
+            entry.layout = Long.parseLong(fields[0]);
+            entry.stableConnections = Integer.parseInt(fields[1]);
+            entry.serviceChangedDelay = Long.parseLong(fields[2]);
+
+            // A cleared layout only keeps the timing
+            if (entry.layout == 0)
+                entry.stableConnections = 0;
+            return entry;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void save(final String address, final Entry entry) {
+        mPreferences.edit().putString(address, entry.layout + ":" + entry.stableConnections + ":" + entry.serviceChangedDelay).apply();
+    }
+}
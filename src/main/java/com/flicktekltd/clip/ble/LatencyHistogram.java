@@ -0,0 +1,86 @@
+package com.flicktekltd.clip.ble;
+
+/**
+ * Counts latencies in fixed millisecond buckets, from a few milliseconds to the 30 seconds of a bonding.
+ * <p>
+ * Percentiles return the upper bound of the bucket holding them, never more than the largest value seen,
+ * so they are as precise as the buckets around the value. Thread safe.
+ * </p>
+ */
+public class LatencyHistogram {
+    // Upper bounds of the buckets, the last bucket takes everything above
+    private static final long[] BOUNDS = {
+            5, 10, 20, 50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000, 7500, 10000, 15000, 30000
+    };
+
+    private final int[] mCounts = new int[BOUNDS.length + 1];
+    private int mCount = 0;
+    private long mSum = 0;
+    private long mMin = Long.MAX_VALUE;
+    private long mMax = 0;
+
+    public synchronized void record(long millis) {
+        if (millis < 0)
+            millis = 0;
+
+        int bucket = 0;
+        while (bucket < BOUNDS.length && millis > BOUNDS[bucket])
+            bucket++;
+
+        mCounts[bucket]++;
+        mCount++;
+        mSum += millis;
+        mMin = Math.min(mMin, millis);
+        mMax = Math.max(mMax, millis);
+    }
+
+    /**
+     * Returns the latency under which the given fraction of the values are, 0.95 for the p95.
+     * Returns 0 when nothing has been recorded.
+     */
+    public synchronized long getPercentile(double fraction) {
+        if (mCount == 0)
+            return 0;
+
+        final int rank = Math.max(1, (int) Math.ceil(fraction * mCount));
+        int seen = 0;
+        for (int t = 0; t < BOUNDS.length; t++) {
+            seen += mCounts[t];
+            if (seen >= rank)
+                return Math.min(BOUNDS[t], mMax);
+        }
+        return mMax;
+    }
+
+    public synchronized int getCount() {
+        return mCount;
+    }
+
+    public synchronized long getMean() {
+        return mCount > 0 ? mSum / mCount : 0;
+    }
+
+    public synchronized long getMin() {
+        return mCount > 0 ? mMin : 0;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized void clear() {
+        for (int t = 0; t < mCounts.length; t++) {
+            mCounts[t] = 0;
+        }
+        mCount = 0;
+        mSum = 0;
+        mMin = Long.MAX_VALUE;
+        mMax = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + mCount + " p50=" + getPercentile(0.5) + " p95=" + getPercentile(0.95) +
+                " p99=" + getPercentile(0.99) + " max=" + mMax + " ms";
+    }
+}
@@ -0,0 +1,177 @@
+package com.flicktekltd.clip.ble;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Chooses the connection parameters from what the SDK is doing with the clip.
+ * <p>
+ * Streaming, calibration and firmware transfers need the shortest connection interval we can get,
+ * an idle clip is fine with the balanced parameters and a sleeping one only has to keep the link alive.
+ * The policy only decides, the listener applies the mode to the connection and reports it.
+ * </p>
+ * <p>
+ * No Android classes here, the modes use the same values as BluetoothGatt.CONNECTION_PRIORITY_*.
+ * </p>
+ */
+public class LinkPolicy {
+    public static final int MODE_BALANCED = 0;
+    public static final int MODE_HIGH = 1;
+    public static final int MODE_LOW_POWER = 2;
+
+    // Activities that need the high priority mode, they can be combined
+    public static final int ACTIVITY_STREAMING = 1;
+    public static final int ACTIVITY_CALIBRATION = 1 << 1;
+    public static final int ACTIVITY_FIRMWARE_TRANSFER = 1 << 2;
+
+    public interface Listener {
+        /**
+         * Called without the policy lock held, from the thread that changed the mode or from one changing it at the
+         * same time. Transitions always arrive one at a time and in order.
+         *
+         * @param activities       activities running when the mode changed
+         * @param previousDuration milliseconds spent in the previous mode
+         */
+        void onLinkModeChanged(int previousMode, int mode, int activities, long previousDuration);
+    }
+
+    private static class Transition {
+        final int previousMode;
+        final int mode;
+        final int activities;
+        final long previousDuration;
+
+        Transition(int previousMode, int mode, int activities, long previousDuration) {
+            this.previousMode = previousMode;
+            this.mode = mode;
+            this.activities = activities;
+            this.previousDuration = previousDuration;
+        }
+    }
+
+    private final Listener mListener;
+
+    // Transitions waiting for the listener, only one thread delivers them at a time
+    private final Queue<Transition> mPending = new ArrayDeque<>();
+    private boolean mNotifying = false;
+
+    private int mActivities = 0;
+    private boolean mSleeping = false;
+
+    private int mMode = MODE_BALANCED;
+    private long mModeStart = now();
+
+    // Time spent on every mode before the current one started
+    private final long[] mTimeInMode = new long[3];
+    private int mTransitions = 0;
+
+    public LinkPolicy(Listener listener) {
+        mListener = listener;
+    }
+
+    public void setActivity(int activity, boolean active) {
+        synchronized (this) {
+            if (active)
+                mActivities |= activity;
+            else
+                mActivities &= ~activity;
+            update();
+        }
+        notifyListener();
+    }
+
+    // The clip has been told to sleep, or woke up
+    public void setSleeping(boolean sleeping) {
+        synchronized (this) {
+            mSleeping = sleeping;
+            update();
+        }
+        notifyListener();
+    }
+
+    public synchronized boolean isActive(int activity) {
+        return (mActivities & activity) != 0;
+    }
+
+    public synchronized int getActivities() {
+        return mActivities;
+    }
+
+    public synchronized int getMode() {
+        return mMode;
+    }
+
+    public synchronized int getTransitionCount() {
+        return mTransitions;
+    }
+
+    // Milliseconds spent on the given mode since the policy was created
+    public synchronized long getTimeInMode(int mode) {
+        long time = mTimeInMode[mode];
+        if (mode == mMode)
+            time += now() - mModeStart;
+        return time;
+    }
+
+    public static String modeName(int mode) {
+        switch (mode) {
+            case MODE_HIGH:
+                return "HIGH";
+            case MODE_LOW_POWER:
+                return "LOW_POWER";
+            default:
+                return "BALANCED";
+        }
+    }
+
+    private void update() {
+        final int mode;
+        if (mActivities != 0)
+            mode = MODE_HIGH;
+        else if (mSleeping)
+            mode = MODE_LOW_POWER;
+        else
+            mode = MODE_BALANCED;
+
+        if (mode == mMode)
+            return;
+
+        final long time = now();
+        final long duration = time - mModeStart;
+        final int previous = mMode;
+
+        mTimeInMode[previous] += duration;
+        mMode = mode;
+        mModeStart = time;
+        mTransitions++;
+
+        if (mListener != null)
+            mPending.add(new Transition(previous, mode, mActivities, duration));
+    }
+
+    // Delivers the pending transitions outside the lock, unless another thread is already doing it
+    private void notifyListener() {
+        synchronized (this) {
+            if (mNotifying || mPending.isEmpty())
+                return;
+            mNotifying = true;
+        }
+
+        while (true) {
+            final Transition transition;
+            synchronized (this) {
+                transition = mPending.poll();
+                if (transition == null) {
+                    mNotifying = false;
+                    return;
+                }
+            }
+            mListener.onLinkModeChanged(transition.previousMode, transition.mode, transition.activities,
+                    transition.previousDuration);
+        }
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
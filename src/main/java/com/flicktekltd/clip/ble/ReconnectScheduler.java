@@ -0,0 +1,392 @@
+package com.flicktekltd.clip.ble;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides when to connect again to the clips we want connected.
+ * <p>
+ * A link loss is retried a few times almost straight away, the clip is usually just a bit too far.
+ * After that, and for connection attempts that fail, the delay grows exponentially up to a cap. The cap is short
+ * while the screen is on so the clip comes back quickly when somebody is looking, and much longer while the screen
+ * is off so a clip that has gone stops costing radio and CPU. Every delay gets a random jitter so several clips,
+ * or several phones, don't retry in lockstep.
+ * </p>
+ * <p>
+ * Only tracked devices are reconnected, untrack a device when the user disconnects it. Attempts run on the given
+ * handler, the other methods can be called from any thread.
+ * </p>
+ */
+public class ReconnectScheduler {
+    private static final String TAG = "ReconnectScheduler";
+
+    public interface Target {
+        /**
+         * Starts a connection attempt, the outcome comes back through {@link #onConnected(String)}
+         * or {@link #onConnectionLost(String, boolean)}.
+         *
+         * @return false if no attempt could be made, Bluetooth is off, the device waits for {@link #retryAll()}
+         */
+        boolean reconnect(String address);
+
+        /**
+         * The device reached the maximum number of attempts, nothing else is scheduled until it is tracked again.
+         * Called on the handler.
+         */
+        void onReconnectAbandoned(String address);
+    }
+
+    public static final long DEFAULT_INITIAL_DELAY = 1000;
+    public static final double DEFAULT_MULTIPLIER = 2;
+    // Caps of the delay with the screen on and off
+    public static final long DEFAULT_MAX_DELAY = 30000;
+    public static final long DEFAULT_BACKGROUND_MAX_DELAY = 300000;
+    // Fraction of the delay added or removed at random
+    public static final double DEFAULT_JITTER = 0.2;
+    // Attempts made right after a link loss, before the backoff starts
+    public static final int DEFAULT_FAST_RETRIES = 2;
+    public static final long DEFAULT_FAST_RETRY_DELAY = 250;
+    // An attempt without an outcome after this long has failed. A background connection never reports a failure,
+    // and a connection cancelled or closed before it started reports nothing at all.
+    public static final long DEFAULT_ATTEMPT_TIMEOUT = 35000;
+
+    private static class Device {
+        final String address;
+        // Attempts since the connection was lost
+        int attempt;
+        boolean linkLoss;
+        // connect() has been called, waiting for the outcome
+        boolean attempting;
+        // When the connection was lost, 0 while connected
+        long lostTime;
+        // When the next attempt runs, 0 if none is scheduled
+        long dueTime;
+        String lastOutcome = "none";
+        Runnable pending;
+        Runnable timeout;
+
+        Device(String address) {
+            this.address = address;
+        }
+    }
+
+    private final Handler mHandler;
+    private final Target mTarget;
+    private final Random mRandom = new Random();
+    private final Map<String, Device> mDevices = new HashMap<>();
+
+    private long mInitialDelay = DEFAULT_INITIAL_DELAY;
+    private double mMultiplier = DEFAULT_MULTIPLIER;
+    private long mMaxDelay = DEFAULT_MAX_DELAY;
+    private long mBackgroundMaxDelay = DEFAULT_BACKGROUND_MAX_DELAY;
+    private double mJitter = DEFAULT_JITTER;
+    private int mFastRetries = DEFAULT_FAST_RETRIES;
+    private long mFastRetryDelay = DEFAULT_FAST_RETRY_DELAY;
+    // 0 never gives up
+    private int mMaxAttempts = 0;
+    // 0 waits for the outcome forever
+    private long mAttemptTimeout = DEFAULT_ATTEMPT_TIMEOUT;
+
+    private boolean mInteractive = true;
+
+    private int mAttempts = 0;
+    private int mFailures = 0;
+    private int mRecoveries = 0;
+    private int mAbandoned = 0;
+    // From the connection loss to the connection
+    private final LatencyHistogram mRecoveryTime = new LatencyHistogram();
+
+    public ReconnectScheduler(Handler handler, Target target) {
+        mHandler = handler;
+        mTarget = target;
+    }
+
+    public synchronized void setBackoff(long initialDelay, double multiplier, long maxDelay, long backgroundMaxDelay) {
+        mInitialDelay = Math.max(0, initialDelay);
+        mMultiplier = Math.max(1, multiplier);
+        mMaxDelay = Math.max(mInitialDelay, maxDelay);
+        mBackgroundMaxDelay = Math.max(mMaxDelay, backgroundMaxDelay);
+    }
+
+    public synchronized void setJitter(double jitter) {
+        mJitter = Math.max(0, Math.min(1, jitter));
+    }
+
+    public synchronized void setFastRetries(int retries, long delay) {
+        mFastRetries = Math.max(0, retries);
+        mFastRetryDelay = Math.max(0, delay);
+    }
+
+    public synchronized void setMaxAttempts(int maxAttempts) {
+        mMaxAttempts = Math.max(0, maxAttempts);
+    }
+
+    public synchronized void setAttemptTimeout(long timeout) {
+        mAttemptTimeout = Math.max(0, timeout);
+    }
+
+    /**
+     * We want this device connected, reconnect it whenever it is lost.
+     */
+    public synchronized void track(String address) {
+        if (!mDevices.containsKey(address))
+            mDevices.put(address, new Device(address));
+    }
+
+    /**
+     * The user doesn't want this device anymore, cancel anything scheduled.
+     */
+    public synchronized void untrack(String address) {
+        final Device device = mDevices.remove(address);
+        if (device != null)
+            cancel(device);
+    }
+
+    public synchronized boolean isTracked(String address) {
+        return mDevices.containsKey(address);
+    }
+
+    public synchronized void onConnected(String address) {
+        final Device device = mDevices.get(address);
+        if (device == null)
+            return;
+
+        if (device.lostTime > 0) {
+            final long recovery = now() - device.lostTime;
+            mRecoveryTime.record(recovery);
+            mRecoveries++;
+            Log.v(TAG, address + " back after " + recovery + " ms and " + device.attempt + " attempts");
+        }
+
+        cancel(device);
+        device.attempt = 0;
+        device.attempting = false;
+        device.lostTime = 0;
+        device.lastOutcome = "connected";
+    }
+
+    /**
+     * The connection has been lost, or an attempt has failed if we were not connected.
+     */
+    public synchronized void onConnectionLost(String address, boolean wasConnected) {
+        final Device device = mDevices.get(address);
+        if (device == null)
+            return;
+
+        if (wasConnected || device.lostTime == 0) {
+            device.attempt = 0;
+            device.linkLoss = wasConnected;
+            device.lostTime = now();
+            device.lastOutcome = wasConnected ? "link loss" : "connection failed";
+        } else if (device.attempting) {
+            mFailures++;
+            device.lastOutcome = "attempt " + device.attempt + " failed";
+        }
+        device.attempting = false;
+        schedule(device);
+    }
+
+    /**
+     * Runs the next attempt of the device now, unless one is already in progress.
+     */
+    public synchronized void retryNow(String address) {
+        final Device device = mDevices.get(address);
+        if (device == null || device.attempting)
+            return;
+
+        cancel(device);
+        post(device, 0);
+    }
+
+    // Something changed that may bring the clips back, Bluetooth was turned on or the application opened
+    public synchronized void retryAll() {
+        for (Device device : mDevices.values()) {
+            if (device.lostTime > 0 && !device.attempting) {
+                cancel(device);
+                post(device, 0);
+            }
+        }
+    }
+
+    /**
+     * The screen has been turned on or off. Turning it on brings forward the attempts waiting longer than the short cap.
+     */
+    public synchronized void setInteractive(boolean interactive) {
+        mInteractive = interactive;
+        if (!interactive)
+            return;
+
+        final long time = now();
+        for (Device device : mDevices.values()) {
+            if (device.dueTime - time > mMaxDelay) {
+                cancel(device);
+                post(device, jitter(mInitialDelay, mMaxDelay));
+            }
+        }
+    }
+
+    public synchronized void cancelAll() {
+        for (Device device : mDevices.values()) {
+            cancel(device);
+        }
+        mDevices.clear();
+    }
+
+    public synchronized int getAttemptCount() {
+        return mAttempts;
+    }
+
+    public synchronized int getFailureCount() {
+        return mFailures;
+    }
+
+    public synchronized int getRecoveryCount() {
+        return mRecoveries;
+    }
+
+    public LatencyHistogram getRecoveryHistogram() {
+        return mRecoveryTime;
+    }
+
+    public synchronized void dump(PrintWriter writer) {
+        writer.println("Reconnect attempts " + mAttempts + ", failed " + mFailures + ", recovered " + mRecoveries +
+                ", abandoned " + mAbandoned + (mInteractive ? "" : ", screen off"));
+        writer.println("  RECOVERY " + mRecoveryTime);
+
+        final long time = now();
+        for (Device device : mDevices.values()) {
+            writer.println("  " + device.address + " " + device.lastOutcome + ", attempt " + device.attempt +
+                    (device.attempting ? ", connecting" : "") +
+                    (device.dueTime > 0 ? ", next in " + (device.dueTime - time) + " ms" : ""));
+        }
+    }
+
+    /**
+     * Returns the delay before the given attempt, counting from 0, without the jitter.
+     */
+    public synchronized long getDelay(int attempt, boolean linkLoss) {
+        if (linkLoss) {
+            if (attempt < mFastRetries)
+                return mFastRetryDelay;
+            attempt -= mFastRetries;
+        }
+
+        final long cap = mInteractive ? mMaxDelay : mBackgroundMaxDelay;
+        final double delay = mInitialDelay * Math.pow(mMultiplier, Math.min(attempt, 30));
+        return (long) Math.min(delay, cap);
+    }
+
+    private void schedule(Device device) {
+        cancel(device);
+
+        if (mMaxAttempts > 0 && device.attempt >= mMaxAttempts) {
+            Log.w(TAG, "Giving up on " + device.address + " after " + device.attempt + " attempts");
+            mDevices.remove(device.address);
+            mAbandoned++;
+
+            // Not with our lock held, the target closes the connection
+            final String address = device.address;
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mTarget.onReconnectAbandoned(address);
+                }
+            });
+            return;
+        }
+
+        final long delay = getDelay(device.attempt, device.linkLoss);
+        final long cap = mInteractive ? mMaxDelay : mBackgroundMaxDelay;
+        post(device, jitter(delay, cap));
+    }
+
+    private long jitter(long delay, long cap) {
+        final double factor = 1 - mJitter + mRandom.nextDouble() * 2 * mJitter;
+        return Math.min((long) (delay * factor), cap);
+    }
+
+    private void post(final Device device, long delay) {
+        Log.v(TAG, "Reconnecting " + device.address + " in " + delay + " ms");
+        device.dueTime = now() + delay;
+        device.pending = new Runnable() {
+            @Override
+            public void run() {
+                attempt(device, this);
+            }
+        };
+        mHandler.postDelayed(device.pending, delay);
+    }
+
+    private void attempt(Device device, Runnable runnable) {
+        synchronized (this) {
+            // Cancelled or replaced since it was posted
+            if (device.pending != runnable || mDevices.get(device.address) != device)
+                return;
+
+            device.pending = null;
+            device.dueTime = 0;
+            device.attempting = true;
+            device.attempt++;
+            mAttempts++;
+        }
+
+        if (!mTarget.reconnect(device.address)) {
+            synchronized (this) {
+                device.attempting = false;
+                device.attempt--;
+                mAttempts--;
+                device.lastOutcome = "waiting for Bluetooth";
+            }
+            return;
+        }
+
+        synchronized (this) {
+            // The outcome may have arrived already
+            if (device.attempting && mAttemptTimeout > 0 && mDevices.get(device.address) == device)
+                startTimeout(device);
+        }
+    }
+
+    private void startTimeout(final Device device) {
+        device.timeout = new Runnable() {
+            @Override
+            public void run() {
+                onAttemptTimeout(device, this);
+            }
+        };
+        mHandler.postDelayed(device.timeout, mAttemptTimeout);
+    }
+
+    // Nothing came back from the attempt, count it as failed and schedule the next one
+    private synchronized void onAttemptTimeout(Device device, Runnable runnable) {
+        if (device.timeout != runnable || !device.attempting || mDevices.get(device.address) != device)
+            return;
+
+        Log.w(TAG, "Attempt " + device.attempt + " of " + device.address + " timed out");
+        device.timeout = null;
+        device.attempting = false;
+        device.lastOutcome = "attempt " + device.attempt + " timed out";
+        mFailures++;
+        schedule(device);
+    }
+
+    private void cancel(Device device) {
+        if (device.pending != null)
+            mHandler.removeCallbacks(device.pending);
+        if (device.timeout != null)
+            mHandler.removeCallbacks(device.timeout);
+        device.pending = null;
+        device.timeout = null;
+        device.dueTime = 0;
+    }
+
+    private static long now() {
+        return SystemClock.elapsedRealtime();
+    }
+}
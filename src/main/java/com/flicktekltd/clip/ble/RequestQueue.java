@@ -0,0 +1,84 @@
+package com.flicktekltd.clip.ble;
+
+import java.util.LinkedList;
+
+/**
+ * Task queue of the {@link BleManager}, one FIFO lane per {@link BleProfileApi.Request.Priority}.
+ * <p>
+ * Requests are taken from the most urgent lane that has one, so a command doesn't wait behind a long transfer
+ * or a battery read. A lane that has been passed over {@link #STARVATION_LIMIT} times in a row is served next,
+ * a busy lane can slow the others down but never stop them.
+ * </p>
+ */
+/* package */ class RequestQueue {
+    // Requests a waiting lane lets through before it goes first
+    public static final int STARVATION_LIMIT = 8;
+
+    private static final int LANES = BleProfileApi.Request.Priority.values().length;
+
+    @SuppressWarnings("unchecked")
+    private final LinkedList<BleProfileApi.Request>[] mLanes = new LinkedList[LANES];
+    private final int[] mSkipped = new int[LANES];
+    private int mSize = 0;
+
+    RequestQueue() {
+        for (int t = 0; t < mLanes.length; t++) {
+            mLanes[t] = new LinkedList<>();
+        }
+    }
+
+    public void add(final BleProfileApi.Request request) {
+        mLanes[request.priority.ordinal()].add(request);
+        mSize++;
+    }
+
+    /**
+     * Returns the next request to execute or null if the queue is empty.
+     */
+    public BleProfileApi.Request poll() {
+        if (mSize == 0)
+            return null;
+
+        // Most urgent lane that has waited long enough, otherwise the most urgent one with requests
+        int lane = -1;
+        for (int t = 0; t < mLanes.length && lane < 0; t++) {
+            if (mSkipped[t] >= STARVATION_LIMIT && !mLanes[t].isEmpty())
+                lane = t;
+        }
+
+        for (int t = 0; t < mLanes.length && lane < 0; t++) {
+            if (!mLanes[t].isEmpty())
+                lane = t;
+        }
+
+        for (int t = 0; t < mLanes.length; t++) {
+            if (t == lane || mLanes[t].isEmpty())
+                mSkipped[t] = 0;
+            else
+                mSkipped[t]++;
+        }
+
+        mSize--;
+        return mLanes[lane].poll();
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int size(final BleProfileApi.Request.Priority priority) {
+        return mLanes[priority.ordinal()].size();
+    }
+
+    public void clear() {
+        for (int t = 0; t < mLanes.length; t++) {
+            mLanes[t].clear();
+            mSkipped[t] = 0;
+        }
+        mSize = 0;
+    }
+}
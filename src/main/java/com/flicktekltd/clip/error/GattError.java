@@ -24,6 +24,8 @@ package com.flicktekltd.clip.error;
 
 import android.bluetooth.BluetoothGatt;
 
+import com.flicktekltd.clip.ble.BleManager;
+
 /**
  * Parses the error numbers according to the <b>gatt_api.h</b> file from bluedroid stack.
  * See: https://android.googlesource.com/platform/external/bluetooth/bluedroid/+/android-5.1.0_r1/stack/include/gatt_api.h (and other versions) for details.
@@ -143,6 +145,8 @@ public class GattError {
 				return "GATT VALUE OUT OF RANGE";
 			case 0x0101:
 				return "TOO MANY OPEN CONNECTIONS";
+			case BleManager.ERROR_CODE_REQUEST_TIMEOUT:
+				return "REQUEST TIMEOUT";
 			default:
 				return "UNKNOWN (" + error + ")";
 		}
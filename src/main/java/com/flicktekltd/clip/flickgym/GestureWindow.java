@@ -0,0 +1,102 @@
+package com.flicktekltd.clip.flickgym;
+
+import java.util.Arrays;
+
+/**
+ * Sample math used by {@link MyGLRenderer} to prepare a capture for display.
+ * Kept free of Android and GL classes so it can be benchmarked on a plain JVM.
+ */
+public class GestureWindow {
+    public static final int CHANNELS = 4;
+
+    // Value of every channel when the sensor is at rest
+    public static final int CENTRE_SIGNAL = 5488;
+
+    // Sum of the distances to the centre above which a sample is considered movement
+    public static final int ACTIVITY_THRESHOLD = 412;
+
+    // Filled by analyse()
+    public float mMin;
+    public float mMax;
+    public int mMaxPos;
+
+    // Check if we have empty samples at the beginning and at the end
+    public static boolean notDiscardSample(int sensor[], int pos) {
+        int value = 0;
+        pos *= CHANNELS;
+        for (int t = 0; t < CHANNELS; t++) {
+            value += Math.abs(sensor[pos++] - CENTRE_SIGNAL);
+        }
+
+        return value > ACTIVITY_THRESHOLD;
+    }
+
+    // First sample with movement, we only look at the first third of the capture
+    public static int findStart(int sensor[]) {
+        int nsamples = (sensor.length / CHANNELS);
+        int start = 0;
+        while (start < nsamples / 3 && !notDiscardSample(sensor, start)) {
+            start++;
+        }
+        return start;
+    }
+
+    // Last sample with movement, we only look at the last third of the capture
+    public static int findEnd(int sensor[]) {
+        int nsamples = (sensor.length / CHANNELS);
+        int end = nsamples - 1;
+        while (end > nsamples - (nsamples / 3) && !notDiscardSample(sensor, end)) {
+            end--;
+        }
+        return end;
+    }
+
+    public static int[] trim(int sensor[], int start, int end) {
+        return Arrays.copyOfRange(sensor, start * CHANNELS, end * CHANNELS);
+    }
+
+    public static int[] trim(int sensor[]) {
+        return trim(sensor, findStart(sensor), findEnd(sensor));
+    }
+
+    // Finds the range of the values and where the maximum is
+    public void analyse(int sensor[]) {
+        int min = 65535;
+        int max = -65535;
+        int max_pos = 0;
+
+        for (int t = 0; t < sensor.length; t++) {
+            int value = sensor[t];
+            if (value < min)
+                min = value;
+
+            if (value > max) {
+                max = value;
+                max_pos = t;
+            }
+        }
+
+        mMin = min;
+        mMax = max;
+        mMaxPos = max_pos;
+    }
+
+    // Position of the maximum inside a window of the given length
+    public static float position(int max_point, int length) {
+        float position = (max_point % length);
+
+        // Temporal invert to check if we are doing the equations right
+        if (max_point >= length) {
+            position = (length - max_point);
+        }
+        return position;
+    }
+
+    // Rotation that puts the maximum at the top of the window
+    public static float angle(float position, int length) {
+        if (position != 0)
+            return 90 - (float) (360.0f) * (position / length);
+
+        return 0;
+    }
+}
@@ -7,8 +7,6 @@ import android.util.Log;
 
 import com.flicktekltd.clip.FlicktekCommands;
 
-import java.util.Arrays;
-
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 
@@ -68,62 +66,30 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
 
     // Check if we have empty samples at the beginning and at the end
     boolean notDiscardSample(int sensor[], int pos) {
-        int value = 0;
-        pos *= 4;
-        for (int t = 0; t < 4; t++) {
-            value += Math.abs(sensor[pos++] - 5488);
-        }
-
-        if (value > 412)
-            return true;
-
-        return false;
+        return GestureWindow.notDiscardSample(sensor, pos);
     }
 
     public int[] cleanupStream(int sensor[]) {
-        int nsamples = (sensor.length / 4);
-        int start = 0;
-        int end = nsamples - 1;
-
-        boolean discard = false;
-        while (start < nsamples / 3 && !discard) {
-            discard = notDiscardSample(sensor, start);
-            if (!discard)
-                start++;
-        }
-
-        discard = false;
-        while (end > nsamples - (nsamples / 3) && !discard) {
-            discard = notDiscardSample(sensor, end);
-            if (!discard)
-                end--;
-        }
+        int start = GestureWindow.findStart(sensor);
+        int end = GestureWindow.findEnd(sensor);
 
         Log.v(TAG, "Start (" + start + "," + end + ")");
-        return Arrays.copyOfRange(sensor, start * 4, end * 4);
+        return GestureWindow.trim(sensor, start, end);
     }
 
     // We need a function to center the window with the maximum value
 
     int mCurrentSensor[];
 
-    public void createEffect(int sensor[]) {
-        float min = 65535;
-        float max = -65535;
+    private final GestureWindow mWindow = new GestureWindow();
 
+    public void createEffect(int sensor[]) {
         mCurrentSensor = sensor;
 
-        int max_pos = 0;
-        for (int t = 0; t < sensor.length; t++) {
-            int value = sensor[t];
-            if (value < min)
-                min = value;
-
-            if (value > max) {
-                max = value;
-                max_pos = t;
-            }
-        }
+        mWindow.analyse(sensor);
+        float min = mWindow.mMin;
+        float max = mWindow.mMax;
+        int max_pos = mWindow.mMaxPos;
 
         //sensor[max_pos] = 0;
 
@@ -137,18 +103,8 @@ public class MyGLRenderer implements GLSurfaceView.Renderer {
         if (length == 0)
             return;
 
-        float position = (mMaxPoint % length);
-
-        // Temporal invert to check if we are doing the equations right
-        if (mMaxPoint >= length) {
-            position = (length - mMaxPoint);
-        }
-
-        if (position != 0) {
-            mAngle = 90 - (float) (360.0f) * (position / length);
-        } else {
-            mAngle = 0;
-        }
+        float position = GestureWindow.position(mMaxPoint, length);
+        mAngle = GestureWindow.angle(position, length);
 
         Log.v(TAG, " Max point = " + mMaxPoint +
                 " Position " + position + " Length " + length +
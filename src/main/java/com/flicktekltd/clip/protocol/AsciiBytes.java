@@ -0,0 +1,66 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Helpers to work with ASCII protocol fields directly on the received bytes,
+ * so we don't have to create Strings to compare or parse them.
+ */
+public final class AsciiBytes {
+
+    private AsciiBytes() {
+    }
+
+    // Converts a protocol keyword into its byte form, only used to build constants.
+    public static byte[] of(String ascii) {
+        final byte[] out = new byte[ascii.length()];
+        for (int t = 0; t < out.length; t++) {
+            out[t] = (byte) ascii.charAt(t);
+        }
+        return out;
+    }
+
+    public static boolean equals(byte[] buf, int offset, int length, byte[] ascii) {
+        if (length != ascii.length)
+            return false;
+
+        for (int t = 0; t < length; t++) {
+            if (buf[offset + t] != ascii[t])
+                return false;
+        }
+        return true;
+    }
+
+    // Same as Integer.parseInt but working on a range of bytes
+    public static int parseInt(byte[] buf, int offset, int length) {
+        if (length <= 0)
+            throw new NumberFormatException("Empty number");
+
+        int pos = offset;
+        final int end = offset + length;
+        boolean negative = false;
+
+        if (buf[pos] == '-' || buf[pos] == '+') {
+            negative = buf[pos] == '-';
+            pos++;
+            if (pos == end)
+                throw new NumberFormatException("No digits");
+        }
+
+        int value = 0;
+        while (pos < end) {
+            final int digit = buf[pos++] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Invalid digit");
+
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    public static String toString(byte[] buf, int offset, int length) {
+        final char[] chars = new char[length];
+        for (int t = 0; t < length; t++) {
+            chars[t] = (char) (buf[offset + t] & 0xFF);
+        }
+        return new String(chars);
+    }
+}
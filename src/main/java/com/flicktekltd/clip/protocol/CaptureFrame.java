@@ -0,0 +1,78 @@
+package com.flicktekltd.clip.protocol;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Storage for one raw gesture capture: the decoded samples (4 channels interleaved)
+ * and the raw bytes received from the clip.
+ * <p>
+ * Frames come from a {@link CaptureFramePool} and are reference counted.
+ * Whoever wants to keep the data calls {@link #acquire()} and has to call {@link #release()}
+ * once done with it. When the last reference is released the frame goes back to the pool
+ * and its content will be overwritten by a future capture.
+ * </p>
+ */
+public class CaptureFrame {
+    private final CaptureFramePool mPool;
+    private final AtomicInteger mReferences = new AtomicInteger(0);
+
+    private int[] mSamples;
+    private final GrowableByteBuffer mRaw = new GrowableByteBuffer();
+
+    CaptureFrame(CaptureFramePool pool, int values) {
+        mPool = pool;
+        mSamples = new int[values];
+    }
+
+    // Decoded values, its length is the number of samples times 4 channels
+    public int[] samples() {
+        return mSamples;
+    }
+
+    public GrowableByteBuffer raw() {
+        return mRaw;
+    }
+
+    public boolean isReleased() {
+        return mReferences.get() == 0;
+    }
+
+    public void acquire() {
+        if (!tryAcquire())
+            throw new IllegalStateException("Capture frame already released");
+    }
+
+    // Like acquire(), but returns false instead of throwing when the frame is already back in the pool
+    public boolean tryAcquire() {
+        while (true) {
+            final int references = mReferences.get();
+            if (references == 0)
+                return false;
+
+            if (mReferences.compareAndSet(references, references + 1))
+                return true;
+        }
+    }
+
+    public void release() {
+        final int references = mReferences.decrementAndGet();
+        if (references < 0) {
+            mReferences.set(0);
+            throw new IllegalStateException("Capture frame released too many times");
+        }
+
+        if (references == 0 && mPool != null)
+            mPool.recycle(this);
+    }
+
+    // Called by the pool when the frame is handed out again
+    void reuse(int values, int fill) {
+        if (mSamples.length != values)
+            mSamples = new int[values];
+
+        Arrays.fill(mSamples, fill);
+        mRaw.clear();
+        mReferences.set(1);
+    }
+}
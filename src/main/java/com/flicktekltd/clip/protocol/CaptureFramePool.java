@@ -0,0 +1,76 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Small pool of {@link CaptureFrame} so gesture captures don't allocate new arrays every time.
+ * <p>
+ * A gesture always has the same number of samples for a given firmware, so in steady state
+ * a released frame of the right size is found and no allocation happens. Frames that are never
+ * released are simply left to the garbage collector and the pool creates new ones.
+ * </p>
+ */
+public class CaptureFramePool {
+    public static final int DEFAULT_SIZE = 3;
+
+    private final CaptureFrame[] mFree;
+    private int mFreeCount = 0;
+
+    private int mAllocations = 0;
+    private int mReuses = 0;
+
+    public CaptureFramePool() {
+        this(DEFAULT_SIZE);
+    }
+
+    public CaptureFramePool(int size) {
+        mFree = new CaptureFrame[size];
+    }
+
+    /**
+     * Returns a frame holding exactly the given number of values, all set to fill.
+     * The caller owns the only reference and has to release it.
+     */
+    public synchronized CaptureFrame obtain(int values, int fill) {
+        CaptureFrame frame = null;
+
+        // Prefer a frame with the same size so we don't have to allocate its samples
+        for (int t = mFreeCount - 1; t >= 0; t--) {
+            if (mFree[t].samples().length == values) {
+                frame = removeFree(t);
+                break;
+            }
+        }
+
+        if (frame == null && mFreeCount > 0)
+            frame = removeFree(mFreeCount - 1);
+
+        if (frame == null) {
+            frame = new CaptureFrame(this, values);
+            mAllocations++;
+        } else {
+            mReuses++;
+        }
+
+        frame.reuse(values, fill);
+        return frame;
+    }
+
+    synchronized void recycle(CaptureFrame frame) {
+        if (mFreeCount < mFree.length)
+            mFree[mFreeCount++] = frame;
+    }
+
+    private CaptureFrame removeFree(int index) {
+        final CaptureFrame frame = mFree[index];
+        mFree[index] = mFree[--mFreeCount];
+        mFree[mFreeCount] = null;
+        return frame;
+    }
+
+    public synchronized int getAllocationCount() {
+        return mAllocations;
+    }
+
+    public synchronized int getReuseCount() {
+        return mReuses;
+    }
+}
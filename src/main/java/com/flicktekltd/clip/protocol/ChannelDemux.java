@@ -0,0 +1,61 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Decides whether a notification belongs to the ASCII command channel or to the binary sample stream.
+ * <p>
+ * The capture state tells us what to expect: outside a [STS_DATA] ... [STE_DATA] capture the clip only
+ * sends frames, during a capture it sends samples and the occasional report. In most cases the first byte
+ * of the notification is enough to decide. When it is not, we fall back to scanning the bytes
+ * for non ASCII values, which is what older firmware needs.
+ * </p>
+ */
+public final class ChannelDemux {
+    // Empty packet, the clip uses it to mark the end of a stream
+    public static final int CHANNEL_END_OF_STREAM = 0;
+    public static final int CHANNEL_COMMAND = 1;
+    public static final int CHANNEL_SAMPLES = 2;
+
+    private ChannelDemux() {
+    }
+
+    /**
+     * @param capturing       true between [STS_DATA] and the end of the capture
+     * @param frameInProgress true if the frame parser is waiting for the rest of a frame
+     */
+    public static int classify(byte[] buf, int offset, int length, boolean capturing, boolean frameInProgress) {
+        if (length == 0)
+            return CHANNEL_END_OF_STREAM;
+
+        final byte first = buf[offset];
+        final byte last = buf[offset + length - 1];
+
+        if (capturing) {
+            // Reports during a capture (STE_DATA, commands) always come in a notification of their own
+            final boolean frame = (first == '[' && last == ']') || (first == '{' && last == '}');
+            if ((frame || frameInProgress) && length <= FrameParser.MAX_FRAME_SIZE && !isSampleData(buf, offset, length))
+                return CHANNEL_COMMAND;
+
+            return CHANNEL_SAMPLES;
+        }
+
+        if (first == '[' || first == '{' || frameInProgress)
+            return CHANNEL_COMMAND;
+
+        // Old firmware, look for binary data on the whole buffer
+        return isSampleData(buf, offset, length) ? CHANNEL_SAMPLES : CHANNEL_COMMAND;
+    }
+
+    // Basic check to search for binary data on the stream.
+    public static boolean isSampleData(byte[] buf, int offset, int length) {
+        final int end = offset + length;
+        for (int t = offset; t < end; t++) {
+            if (buf[t] >= 127)
+                return true;
+
+            if (buf[t] < 32 && buf[t] != '\n') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,397 @@
+package com.flicktekltd.clip.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Receiving side of the clip UART protocol without any Android dependency.
+ * <p>
+ * Feed it the notifications as they arrive with {@link #onNotification(byte[], int, int)}: it routes them
+ * between the frame parser and the sample decoder, handles the reports and the captures and hands the results
+ * to a {@link ProtocolSink}. Nothing here logs, posts events or touches a Context, so the same code runs
+ * in the SDK and on a plain JVM replaying recorded sessions.
+ * </p>
+ * <p>
+ * Not thread safe, notifications have to be fed from one thread at a time.
+ * </p>
+ */
+public class ClipProtocol {
+    public static final String REPORT_ACK = "ACK";
+    public static final String REPORT_NAK = "NAK";
+    public static final String REPORT_BUTTON = "BT";
+    public static final String REPORT_STREAMING_TICKS = "STK";
+    public static final String REPORT_REVISION = "GIT";
+    public static final String REPORT_VERSION = "VER";
+    public static final String REPORT_START_DATA = "STS_DATA";
+    public static final String REPORT_END_DATA = "STE_DATA";
+
+    // Capture arrays are filled with this before decoding, missing samples keep it
+    public static final int CAPTURE_FILL_VALUE = 5500;
+
+    private final ProtocolSink mSink;
+
+    private final ReportDispatcher mReports = new ReportDispatcher();
+    private final StreamDecoder mStreamDecoder = new StreamDecoder();
+    private final SampleStreamDispatcher mSampleStream = new SampleStreamDispatcher();
+    private final CaptureFramePool mCaptureFramePool = new CaptureFramePool();
+
+    private boolean mDebug = false;
+
+    private boolean mCapturing = false;
+    private int mDataSize = 0;
+
+    // Samples reported by [STE_DATA:n] or -1 if we didn't get it yet
+    private int mDataStreamed = -1;
+
+    private CaptureFrame mCaptureFrame = null;
+
+    // Frames are parsed as they arrive, they can be split between notifications.
+    private final FrameParser mFrameParser = new FrameParser(new FrameParser.Listener() {
+        @Override
+        public void onReport(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength) {
+            try {
+                processReport(frame, cmdOffset, cmdLength, dataOffset, dataLength);
+            } catch (Exception ex) {
+                mSink.onLog("+ Exception parsing " + AsciiBytes.toString(frame, cmdOffset, cmdLength) + " " + ex.toString());
+            }
+        }
+
+        @Override
+        public void onCommand(byte command, byte value) {
+            if (mCapturing) {
+                mSink.onLog("+ Found command outside streaming!");
+
+                // Parcial stream, send whatever we have to be displayed
+                endCapture(false);
+            }
+
+            mSink.onCommand(command, value);
+        }
+    });
+
+    public ClipProtocol(ProtocolSink sink) {
+        mSink = sink;
+        registerReports();
+    }
+
+    private void registerReports() {
+        mReports.register(REPORT_ACK, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                if (dataLength >= 2)
+                    mSink.onAcknowledge(true, frame[dataOffset], frame[dataOffset + 1]);
+            }
+        });
+
+        mReports.register(REPORT_NAK, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                if (dataLength >= 2)
+                    mSink.onAcknowledge(false, frame[dataOffset], frame[dataOffset + 1]);
+            }
+        });
+
+        mReports.register(REPORT_BUTTON, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                mSink.onButton(AsciiBytes.toString(frame, dataOffset, dataLength));
+            }
+        });
+
+        mReports.register(REPORT_STREAMING_TICKS, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                mSink.onStreamingTicks(AsciiBytes.parseInt(frame, dataOffset, dataLength));
+            }
+        });
+
+        mReports.register(REPORT_REVISION, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                mSink.onRevision(AsciiBytes.toString(frame, dataOffset, dataLength));
+            }
+        });
+
+        mReports.register(REPORT_VERSION, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                mSink.onVersion(AsciiBytes.toString(frame, dataOffset, dataLength));
+            }
+        });
+
+        mReports.register(REPORT_START_DATA, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                int data_values = AsciiBytes.parseInt(frame, dataOffset, dataLength);
+                mSink.onLog("+ STARTING DATA CAPTURING " + data_values);
+                startCapture(data_values);
+            }
+        });
+
+        mReports.register(REPORT_END_DATA, new ReportHandler() {
+            @Override
+            public void onReport(byte[] frame, int dataOffset, int dataLength) {
+                // Number of samples the clip really sent, used to work out what we lost
+                int data_streamed = AsciiBytes.parseInt(frame, dataOffset, dataLength);
+                mDataStreamed = data_streamed;
+
+                // Parcial stream, send whatever we have to be displayed
+                if (mCapturing) {
+                    placeLostSamples();
+                    endCapture(false);
+                    mSink.onLog("+ End of stream but we don't have all the data");
+                }
+
+                mSink.onLog("+ ENDING DATA CAPTURING " + data_streamed);
+                finishCapture(data_streamed);
+            }
+        });
+    }
+
+    //---------- Configuration -------------------------------------------------------
+
+    // Logs every notification, expensive
+    public void setDebug(boolean debug) {
+        mDebug = debug;
+    }
+
+    public boolean isDebug() {
+        return mDebug;
+    }
+
+    // Resynchronise the stream on the next 16 bits block when notifications are lost
+    public void setStreamResyncEnabled(boolean enabled) {
+        mStreamDecoder.setResyncEnabled(enabled);
+    }
+
+    /**
+     * Handles a report type the core doesn't know about, or replaces one of the built in handlers.
+     *
+     * @param cmd report name, for example "BT" for [BT:1]
+     */
+    public void registerReportHandler(String cmd, ReportHandler handler) {
+        mReports.register(cmd, handler);
+    }
+
+    public void unregisterReportHandler(String cmd) {
+        mReports.unregister(cmd);
+    }
+
+    public boolean addSampleStreamListener(SampleStreamListener listener) {
+        return mSampleStream.addListener(listener);
+    }
+
+    public boolean removeSampleStreamListener(SampleStreamListener listener) {
+        return mSampleStream.removeListener(listener);
+    }
+
+    //---------- Input ---------------------------------------------------------------
+
+    public void onNotification(byte[] buf) {
+        onNotification(buf, 0, buf.length);
+    }
+
+    public void onNotification(byte[] buf, int offset, int length) {
+        // The capture state and the frame delimiters tell us where the data goes,
+        // we only scan the whole buffer when they are not enough (older firmware).
+        switch (ChannelDemux.classify(buf, offset, length, mCapturing, mFrameParser.isFrameInProgress())) {
+            case ChannelDemux.CHANNEL_SAMPLES:
+                onSamples(buf, offset, length);
+                return;
+
+            case ChannelDemux.CHANNEL_END_OF_STREAM:
+                // We send an empty package to mark end of stream.
+                mSink.onLog("- Empty package");
+                if (mCapturing) {
+                    // Parcial stream, send whatever we have to be displayed
+                    endCapture(false);
+                }
+                return;
+        }
+
+        if (mDebug)
+            mSink.onLog("************************** " + AsciiBytes.toString(buf, offset, length) + " **************************");
+
+        mFrameParser.parse(buf, offset, length);
+    }
+
+    // Data packages always have the following format [CMD:DATA]
+    public void processReport(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength) {
+        if (!mReports.dispatch(frame, cmdOffset, cmdLength, dataOffset, dataLength) && mDebug)
+            mSink.onLog("+ Unknown report " + AsciiBytes.toString(frame, cmdOffset, cmdLength));
+    }
+
+    /**
+     * Decodes a notification of the sample stream.
+     *
+     * @return false if there is no capture going on
+     */
+    public boolean onSamples(byte[] data, int offset, int length) {
+        if (!mCapturing)
+            return false;
+
+        if (mDebug)
+            mSink.onLog(hex(data, offset, length));
+
+        final int[] samples = mCaptureFrame.samples();
+        mCaptureFrame.raw().append(data, offset, length);
+
+        final int decoded = getDecodedSamples();
+        final boolean complete = mStreamDecoder.decode(data, offset, length, samples, mDataSize);
+        mSampleStream.samples(samples, decoded, getDecodedSamples() - decoded);
+        if (complete) {
+            onStreamCompleted();
+        }
+        return true;
+    }
+
+    // Byte by byte decoding, onSamples() decodes whole notifications instead.
+    public void onSampleByte(byte data_byte) {
+        if (!mCapturing)
+            return;
+
+        final int[] samples = mCaptureFrame.samples();
+        mCaptureFrame.raw().append(data_byte);
+
+        final int decoded = getDecodedSamples();
+        final boolean complete = mStreamDecoder.decodeByte(data_byte, samples, mDataSize);
+        mSampleStream.samples(samples, decoded, getDecodedSamples() - decoded);
+        if (complete) {
+            onStreamCompleted();
+        }
+    }
+
+    //---------- Captures ------------------------------------------------------------
+
+    public void startCapture(int data_values) {
+        mDataSize = data_values;
+        mDataStreamed = -1;
+        mCapturing = true;
+
+        // The previous capture stays valid until now, subscribers that need it
+        // for longer have acquired their own reference.
+        if (mCaptureFrame != null)
+            mCaptureFrame.release();
+
+        mCaptureFrame = mCaptureFramePool.obtain(data_values * StreamDecoder.CHANNELS, CAPTURE_FILL_VALUE);
+
+        // Worst case is every sample sent as 16 bits
+        mCaptureFrame.raw().ensureCapacity(data_values * StreamDecoder.CHANNELS * 2);
+
+        mStreamDecoder.reset();
+        mSampleStream.started(data_values);
+        mSink.onCaptureStarted(data_values);
+    }
+
+    // [STE_DATA:n] has arrived, checks how the capture went
+    public void finishCapture(int data_values) {
+        if (mDataSize != data_values) {
+            mSink.onLog("Failed streaming data!");
+        }
+
+        if (mStreamDecoder.getOverflows() > 0) {
+            mSink.onLog("! Problems streaming " + mStreamDecoder.getOverflows());
+        }
+
+        if (mStreamDecoder.getResyncCount() > 0) {
+            mSink.onLog("! Stream resynchronised " + mStreamDecoder.getResyncCount() + " times, " +
+                    getLostSamples() + " samples lost");
+        }
+        mCapturing = false;
+    }
+
+    // Stops the capture and delivers whatever we have
+    public void endCapture(boolean complete) {
+        mCapturing = false;
+        mSampleStream.ended(getDecodedSamples(), complete);
+
+        if (mCaptureFrame != null)
+            mSink.onCaptureEnded(mCaptureFrame, complete);
+    }
+
+    /**
+     * Moves the samples decoded after each gap to where they belong, now that we know how many are missing.
+     * The lost samples are shared evenly between the gaps, which is exact for a single one, and keep
+     * {@link #CAPTURE_FILL_VALUE}.
+     */
+    private void placeLostSamples() {
+        final int gaps = mStreamDecoder.getGapCount();
+        final int lost = Math.min(getLostSamples(), mDataSize - getDecodedSamples());
+        if (gaps == 0 || lost <= 0)
+            return;
+
+        final int[] samples = mCaptureFrame.samples();
+        final int channels = StreamDecoder.CHANNELS;
+        int end = getDecodedSamples();
+
+        // From the last gap backwards so nothing is overwritten before it has been moved
+        for (int g = gaps - 1; g >= 0; g--) {
+            final int gap = Math.min(mStreamDecoder.getGapPosition(g), end);
+            final int shift = lost * (g + 1) / gaps;
+            final int previousShift = lost * g / gaps;
+
+            System.arraycopy(samples, gap * channels, samples, (gap + shift) * channels, (end - gap) * channels);
+            Arrays.fill(samples, (gap + previousShift) * channels, (gap + shift) * channels, CAPTURE_FILL_VALUE);
+            end = gap;
+        }
+
+        mSink.onLog("+ " + lost + " lost samples placed in " + gaps + " gaps");
+    }
+
+    private void onStreamCompleted() {
+        endCapture(true);
+        mSink.onLog("+ End of stream! " + mStreamDecoder.getTotalBytes() + " bytes transferred");
+    }
+
+    public boolean isCapturing() {
+        return mCapturing;
+    }
+
+    // Samples announced by the last [STS_DATA:n]
+    public int getCaptureSize() {
+        return mDataSize;
+    }
+
+    /**
+     * Last capture, or null if there wasn't any.
+     * The frame stays valid until the next capture starts, call {@link CaptureFrame#acquire()} to keep it longer.
+     */
+    public CaptureFrame getCaptureFrame() {
+        return mCaptureFrame;
+    }
+
+    public int getDecodedSamples() {
+        return Math.min(mStreamDecoder.getPosition(), mDataSize);
+    }
+
+    // Samples that never made it into the capture, lost notifications or data skipped to resynchronise.
+    public int getLostSamples() {
+        int expected = mDataStreamed >= 0 ? mDataStreamed : mDataSize;
+        return Math.max(0, expected - getDecodedSamples());
+    }
+
+    public int getResyncCount() {
+        return mStreamDecoder.getResyncCount();
+    }
+
+    // Places in the last capture where samples were lost, see placeLostSamples()
+    public int getGapCount() {
+        return mStreamDecoder.getGapCount();
+    }
+
+    public int getTotalBytes() {
+        return mStreamDecoder.getTotalBytes();
+    }
+
+    public static String hex(byte[] buf, int offset, int length) {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        StringBuilder sb = new StringBuilder();
+        sb.append("Data ").append(length).append(" [ ");
+
+        for (int t = offset; t < offset + length; t++) {
+            sb.append(digits[(buf[t] >> 4) & 0x0F]).append(digits[buf[t] & 0x0F]).append(' ');
+        }
+
+        sb.append("]");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,163 @@
+package com.flicktekltd.clip.protocol;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * UART traffic of a clip session, recorded in the field or by {@link ClipSimulator}, to be replayed later.
+ * <p>
+ * Stored as text so sessions can be diffed and trimmed by hand, one packet per line:
+ * <pre>
+ * # clip session 1
+ * mtu 23
+ * 0 &gt; 7B4F317D
+ * 41 &lt; 7B4F4B7D
+ * </pre>
+ * Milliseconds since the start of the session, the direction (<code>&gt;</code> written by the phone,
+ * <code>&lt;</code> notified by the clip) and the bytes in hex, <code>-</code> for an empty packet.
+ * Lines starting with <code>#</code> are comments.
+ * </p>
+ */
+public class ClipSession {
+    public static final String HEADER = "# clip session 1";
+
+    private static final char TO_CLIP = '>';
+    private static final char FROM_CLIP = '<';
+    private static final String EMPTY = "-";
+    private static final String MTU = "mtu";
+
+    public static class Packet {
+        // Milliseconds since the start of the session
+        public final long time;
+        // Notified by the clip, written by the phone otherwise
+        public final boolean fromClip;
+        public final byte[] data;
+
+        public Packet(long time, boolean fromClip, byte[] data) {
+            this.time = time;
+            this.fromClip = fromClip;
+            this.data = data;
+        }
+    }
+
+    private final List<Packet> mPackets = new ArrayList<>();
+    private int mMtu = ClipSimulator.DEFAULT_MTU;
+
+    public synchronized void setMtu(int mtu) {
+        mMtu = mtu;
+    }
+
+    public synchronized int getMtu() {
+        return mMtu;
+    }
+
+    /**
+     * Records a packet, the bytes are copied.
+     */
+    public synchronized void add(long time, boolean fromClip, byte[] data, int offset, int length) {
+        final byte[] copy = new byte[length];
+        System.arraycopy(data, offset, copy, 0, length);
+        mPackets.add(new Packet(time, fromClip, copy));
+    }
+
+    public synchronized List<Packet> getPackets() {
+        return Collections.unmodifiableList(new ArrayList<>(mPackets));
+    }
+
+    public synchronized int size() {
+        return mPackets.size();
+    }
+
+    public synchronized long getDuration() {
+        return mPackets.isEmpty() ? 0 : mPackets.get(mPackets.size() - 1).time - mPackets.get(0).time;
+    }
+
+    public synchronized void clear() {
+        mPackets.clear();
+    }
+
+    public synchronized void write(Writer writer) throws IOException {
+        writer.write(HEADER + "\n");
+        writer.write(MTU + " " + mMtu + "\n");
+
+        final StringBuilder line = new StringBuilder();
+        for (Packet packet : mPackets) {
+            line.setLength(0);
+            line.append(packet.time).append(' ').append(packet.fromClip ? FROM_CLIP : TO_CLIP).append(' ');
+            if (packet.data.length == 0) {
+                line.append(EMPTY);
+            } else {
+                appendHex(line, packet.data);
+            }
+            writer.write(line.append('\n').toString());
+        }
+        writer.flush();
+    }
+
+    /**
+     * Reads a session written by {@link #write(Writer)}.
+     *
+     * @throws IOException if a line can't be parsed, the message says which one
+     */
+    public static ClipSession read(Reader reader) throws IOException {
+        final ClipSession session = new ClipSession();
+        final BufferedReader lines = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader);
+
+        String line;
+        int number = 0;
+        while ((line = lines.readLine()) != null) {
+            number++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            final String[] fields = line.split("\\s+");
+            try {
+                if (fields[0].equals(MTU) && fields.length == 2) {
+                    session.mMtu = Integer.parseInt(fields[1]);
+                    continue;
+                }
+
+                if (fields.length != 3 || fields[1].length() != 1)
+                    throw new IOException("Line " + number + ": expected <time> <direction> <data>");
+
+                final char direction = fields[1].charAt(0);
+                if (direction != TO_CLIP && direction != FROM_CLIP)
+                    throw new IOException("Line " + number + ": unknown direction " + direction);
+
+                final byte[] data = fields[2].equals(EMPTY) ? new byte[0] : parseHex(fields[2]);
+                session.mPackets.add(new Packet(Long.parseLong(fields[0]), direction == FROM_CLIP, data));
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + number + ": " + e.getMessage());
+            }
+        }
+        return session;
+    }
+
+    private static void appendHex(StringBuilder builder, byte[] data) {
+        final char[] digits = "0123456789ABCDEF".toCharArray();
+        for (byte b : data) {
+            builder.append(digits[(b >> 4) & 0x0F]).append(digits[b & 0x0F]);
+        }
+    }
+
+    private static byte[] parseHex(String hex) {
+        if ((hex.length() & 1) != 0)
+            throw new NumberFormatException("odd number of hex digits");
+
+        final byte[] data = new byte[hex.length() / 2];
+        for (int t = 0; t < data.length; t++) {
+            final int high = Character.digit(hex.charAt(t * 2), 16);
+            final int low = Character.digit(hex.charAt(t * 2 + 1), 16);
+            if (high < 0 || low < 0)
+                throw new NumberFormatException("not hex " + hex.substring(t * 2, t * 2 + 2));
+            data[t] = (byte) ((high << 4) | low);
+        }
+        return data;
+    }
+}
@@ -0,0 +1,486 @@
+package com.flicktekltd.clip.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Random;
+
+/**
+ * Plays the firmware side of the clip UART, so the SDK can run without a clip.
+ * <p>
+ * The phone writes <code>{Cv}</code> commands with {@link #write(byte[], int, int)} and gets back what the firmware
+ * would answer: <code>{OK}</code> to the handshake, <code>[ACK:Cv]</code> to the other commands, the versions and
+ * the streaming ticks. Gestures come as <code>{Gv}</code> followed, while streaming is enabled with
+ * <code>{s1}</code>, by a capture between <code>[STS_DATA:n]</code> and <code>[STE_DATA:n]</code> paced at the
+ * sample rate. A {@link ClipSession} recorded in the field can be replayed instead.
+ * </p>
+ * <p>
+ * Time is virtual: nothing happens until {@link #advanceTo(long)} is called, which delivers every notification
+ * due by then. A JVM test can run minutes of traffic in milliseconds, on Android a driver advances it with the
+ * real clock. The link has a latency, an optional random extra latency and a loss rate for the sample
+ * notifications. Notifications are delivered in order, as on a BLE link. Not thread safe.
+ * </p>
+ */
+public class ClipSimulator {
+
+    public interface Listener {
+        // A notification reaches the phone, the array is not reused
+        void onNotification(byte[] data);
+    }
+
+    public static final int DEFAULT_MTU = 23;
+    public static final int DEFAULT_SAMPLE_RATE = 200;
+    public static final int DEFAULT_CAPTURE_SAMPLES = 120;
+    public static final int DEFAULT_STREAMING_TICKS = 5;
+    public static final long DEFAULT_LATENCY = 30;
+    public static final String DEFAULT_VERSION = "v170615_1739";
+    public static final String DEFAULT_REVISION = "simulated";
+
+    // Same letters as FlicktekCommands
+    private static final byte COMMAND_OK = 'O';
+    private static final byte COMMAND_VERSION = 'V';
+    private static final byte COMMAND_REQUEST_SAMPLE_RATIO = 'r';
+    private static final byte COMMAND_CAS_IS_CALIBRATED = 'C';
+    private static final byte COMMAND_CAS_WRITE = 'W';
+    private static final byte COMMAND_SENSOR_STREAMING = 's';
+    private static final byte COMMAND_CHARGING_STATE = 't';
+    private static final byte COMMAND_GESTURE = 'G';
+
+    private static class Packet {
+        final long time;
+        final byte[] data;
+        // Sample data, the only packets the link can lose
+        final boolean samples;
+
+        Packet(long time, byte[] data, boolean samples) {
+            this.time = time;
+            this.data = data;
+            this.samples = samples;
+        }
+    }
+
+    private final Listener mListener;
+    private final Random mRandom;
+
+    private final FrameParser mParser = new FrameParser(new FrameParser.Listener() {
+        @Override
+        public void onReport(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength) {
+            // The phone only sends commands
+        }
+
+        @Override
+        public void onCommand(byte command, byte value) {
+            onCommandReceived(command, value);
+        }
+    });
+
+    // Captures and replayed packets waiting for their time, in time order
+    private final ArrayDeque<Packet> mOutgoing = new ArrayDeque<>();
+    // On the link, in delivery order
+    private final ArrayDeque<Packet> mLink = new ArrayDeque<>();
+
+    private long mNow = 0;
+    private long mLastDelivery = 0;
+
+    private int mMtu = DEFAULT_MTU;
+    private int mSampleRate = DEFAULT_SAMPLE_RATE;
+    private int mCaptureSamples = DEFAULT_CAPTURE_SAMPLES;
+    private int mStreamingTicks = DEFAULT_STREAMING_TICKS;
+    private long mLatency = DEFAULT_LATENCY;
+    private long mLatencyJitter = 0;
+    private double mLossRate = 0;
+    private String mVersion = DEFAULT_VERSION;
+    private String mRevision = DEFAULT_REVISION;
+
+    private boolean mCalibrated = true;
+    private boolean mCharging = false;
+    private boolean mStreaming = false;
+    private int mState = 0;
+    private int[] mCapture = null;
+
+    // Gestures made by themselves, 0 for none
+    private long mGestureInterval = 0;
+    private long mNextGesture = Long.MAX_VALUE;
+    private int mGestureCount = 0;
+
+    // Answers are not made up while a recorded session plays
+    private boolean mReplaying = false;
+    private ClipSession mRecording = null;
+
+    private int mCommands = 0;
+    private int mNotifications = 0;
+    private int mBytes = 0;
+    private int mLost = 0;
+    private int mCaptures = 0;
+
+    public ClipSimulator(Listener listener) {
+        this(listener, new Random());
+    }
+
+    // A seeded Random makes the losses and latencies repeatable
+    public ClipSimulator(Listener listener, Random random) {
+        mListener = listener;
+        mRandom = random;
+    }
+
+    //---------- Configuration -------------------------------------------------------
+
+    // Notifications carry up to MTU - 3 bytes
+    public void setMtu(int mtu) {
+        mMtu = Math.max(DEFAULT_MTU, mtu);
+    }
+
+    public int getMtu() {
+        return mMtu;
+    }
+
+    public int getMaxPacketSize() {
+        return mMtu - 3;
+    }
+
+    // Samples per second of the captures, they take samples / rate seconds to stream
+    public void setSampleRate(int sampleRate) {
+        mSampleRate = Math.max(1, sampleRate);
+    }
+
+    public void setCaptureSamples(int samples) {
+        mCaptureSamples = Math.max(1, samples);
+        mCapture = null;
+    }
+
+    /**
+     * Streams these values instead of the synthetic gesture, 4 channels interleaved, for example the
+     * {@link CaptureFrame#samples()} of a real capture.
+     */
+    public void setCapture(int[] samples) {
+        mCapture = samples;
+        if (samples != null)
+            mCaptureSamples = samples.length / StreamDecoder.CHANNELS;
+    }
+
+    public void setStreamingTicks(int ticks) {
+        mStreamingTicks = ticks;
+    }
+
+    /**
+     * @param latency time from the clip sending a notification to the phone receiving it
+     * @param jitter  random extra latency, up to this many milliseconds
+     */
+    public void setLatency(long latency, long jitter) {
+        mLatency = Math.max(0, latency);
+        mLatencyJitter = Math.max(0, jitter);
+    }
+
+    // Fraction of the sample notifications lost on the way, from 0 to 1
+    public void setLossRate(double lossRate) {
+        mLossRate = Math.max(0, Math.min(1, lossRate));
+    }
+
+    public void setVersions(String version, String revision) {
+        mVersion = version;
+        mRevision = revision;
+    }
+
+    public void setCalibrated(boolean calibrated) {
+        mCalibrated = calibrated;
+    }
+
+    public void setCharging(boolean charging) {
+        mCharging = charging;
+    }
+
+    // The clip makes a gesture every interval milliseconds, 0 stops
+    public void setGestureInterval(long interval) {
+        mGestureInterval = Math.max(0, interval);
+        mNextGesture = interval > 0 ? mNow + interval : Long.MAX_VALUE;
+    }
+
+    /**
+     * Records every packet in both directions into the session, null stops.
+     */
+    public void setRecording(ClipSession session) {
+        mRecording = session;
+        if (session != null)
+            session.setMtu(mMtu);
+    }
+
+    //---------- Phone side ----------------------------------------------------------
+
+    /**
+     * The phone writes to the UART, the commands are answered now and the answers arrive after the latency.
+     */
+    public void write(byte[] data, int offset, int length) {
+        // Whatever the clip sent before this write goes first
+        flushOutgoing(mNow);
+
+        if (mRecording != null)
+            mRecording.add(mNow, false, data, offset, length);
+        mParser.parse(data, offset, length);
+    }
+
+    public void write(byte[] data) {
+        write(data, 0, data.length);
+    }
+
+    //---------- Clip side -----------------------------------------------------------
+
+    // The main button is pressed
+    public void pressButton() {
+        send("[BT:1]");
+    }
+
+    // A gesture is recognised, followed by its capture if streaming is on
+    public void performGesture(int gesture) {
+        mGestureCount++;
+        send(new byte[]{'{', COMMAND_GESTURE, (byte) ('0' + gesture), '}'});
+        if (mStreaming)
+            streamCapture();
+    }
+
+    /**
+     * Plays the notifications of a recorded session from now on, at their recorded times. What the phone
+     * wrote in the session is ignored and the commands written during the replay are not answered.
+     */
+    public void replay(ClipSession session) {
+        mReplaying = true;
+
+        final long start = getOutgoingEnd();
+        long first = -1;
+        for (ClipSession.Packet packet : session.getPackets()) {
+            if (!packet.fromClip)
+                continue;
+
+            if (first < 0)
+                first = packet.time;
+            queue(start + packet.time - first, packet.data, ChannelDemux.isSampleData(packet.data, 0, packet.data.length));
+        }
+    }
+
+    public boolean isReplaying() {
+        return mReplaying;
+    }
+
+    //---------- Time ----------------------------------------------------------------
+
+    public long getTime() {
+        return mNow;
+    }
+
+    /**
+     * Time of the next notification or gesture, Long.MAX_VALUE if nothing is going to happen by itself.
+     */
+    public long getNextEventTime() {
+        long next = mNextGesture;
+        if (!mOutgoing.isEmpty())
+            next = Math.min(next, mOutgoing.peekFirst().time);
+        if (!mLink.isEmpty())
+            next = Math.min(next, mLink.peekFirst().time);
+        return next;
+    }
+
+    /**
+     * Moves the clock forward and delivers every notification due by then. The listener may write
+     * to the simulator from its callback.
+     */
+    public void advanceTo(long time) {
+        while (true) {
+            final long next = getNextEventTime();
+            if (next > time)
+                break;
+
+            mNow = Math.max(mNow, next);
+            if (mNextGesture <= mNow) {
+                mNextGesture = mNow + mGestureInterval;
+                performGesture(1 + mGestureCount % 4);
+                continue;
+            }
+
+            if (!mOutgoing.isEmpty() && mOutgoing.peekFirst().time <= mNow)
+                transmit(mOutgoing.pollFirst());
+
+            if (!mLink.isEmpty() && mLink.peekFirst().time <= mNow)
+                deliver(mLink.pollFirst());
+        }
+
+        mNow = Math.max(mNow, time);
+        if (mReplaying && mOutgoing.isEmpty() && mLink.isEmpty())
+            mReplaying = false;
+    }
+
+    public void advanceBy(long millis) {
+        advanceTo(mNow + millis);
+    }
+
+    //---------- Statistics ----------------------------------------------------------
+
+    public int getCommandCount() {
+        return mCommands;
+    }
+
+    public int getNotificationCount() {
+        return mNotifications;
+    }
+
+    public int getByteCount() {
+        return mBytes;
+    }
+
+    public int getLostCount() {
+        return mLost;
+    }
+
+    public int getCaptureCount() {
+        return mCaptures;
+    }
+
+    // Last value written with {Wv}
+    public int getState() {
+        return mState;
+    }
+
+    //---------- Firmware ------------------------------------------------------------
+
+    private void onCommandReceived(byte command, byte value) {
+        mCommands++;
+        if (mReplaying)
+            return;
+
+        switch (command) {
+            case COMMAND_OK:
+                send("{OK}");
+                return;
+
+            case COMMAND_VERSION:
+                // {V1} asks for the revision, {V0} for the compilation
+                if (value == '1') {
+                    send("[" + ClipProtocol.REPORT_REVISION + ":" + mRevision + "]");
+                } else {
+                    send("[" + ClipProtocol.REPORT_VERSION + ":" + mVersion + "]");
+                }
+                return;
+
+            case COMMAND_REQUEST_SAMPLE_RATIO:
+                send("[" + ClipProtocol.REPORT_STREAMING_TICKS + ":" + mStreamingTicks + "]");
+                return;
+
+            case COMMAND_CAS_IS_CALIBRATED:
+                acknowledge(command, (byte) (mCalibrated ? '1' : '0'));
+                return;
+
+            case COMMAND_CHARGING_STATE:
+                send(new byte[]{'{', COMMAND_CHARGING_STATE, (byte) (mCharging ? '1' : '0'), '}'});
+                return;
+
+            case COMMAND_CAS_WRITE:
+                mState = value - '0';
+                break;
+
+            case COMMAND_SENSOR_STREAMING:
+                mStreaming = value != '0';
+                break;
+        }
+
+        acknowledge(command, value);
+    }
+
+    private void acknowledge(byte command, byte value) {
+        send(new byte[]{'[', 'A', 'C', 'K', ':', command, value, ']'});
+    }
+
+    private void send(String frame) {
+        send(frame.getBytes());
+    }
+
+    // Frames go out in a notification of their own, right away, between the packets of a capture
+    private void send(byte[] frame) {
+        flushOutgoing(mNow);
+        transmit(new Packet(mNow, frame, false));
+    }
+
+    private void queue(long time, byte[] data, boolean samples) {
+        mOutgoing.add(new Packet(time, data, samples));
+    }
+
+    // Captures don't overlap, the next one starts when the queued one has been sent
+    private long getOutgoingEnd() {
+        return mOutgoing.isEmpty() ? mNow : Math.max(mNow, mOutgoing.peekLast().time);
+    }
+
+    // The capture is streamed in MTU sized notifications, paced at the sample rate
+    private void streamCapture() {
+        final int samples = mCaptureSamples;
+        final int[] values = mCapture != null ? mCapture : synthesizeCapture(samples);
+
+        final GrowableByteBuffer encoded = new GrowableByteBuffer(samples * StreamDecoder.CHANNELS * 2);
+        StreamEncoder.encode(values, samples, encoded);
+
+        mCaptures++;
+        final long start = getOutgoingEnd();
+        queue(start, ("[" + ClipProtocol.REPORT_START_DATA + ":" + samples + "]").getBytes(), false);
+
+        final int packetSize = getMaxPacketSize();
+        final int packets = (encoded.length() + packetSize - 1) / packetSize;
+        final long duration = samples * 1000L / mSampleRate;
+        final byte[] bytes = encoded.array();
+
+        long time = start;
+        for (int t = 0; t < packets; t++) {
+            final int offset = t * packetSize;
+            final int length = Math.min(packetSize, encoded.length() - offset);
+            final byte[] packet = new byte[length];
+            System.arraycopy(bytes, offset, packet, 0, length);
+
+            time = start + duration * (t + 1) / packets;
+            queue(time, packet, true);
+        }
+
+        queue(time, ("[" + ClipProtocol.REPORT_END_DATA + ":" + samples + "]").getBytes(), false);
+    }
+
+    // Rest, a swing on every channel and back to rest, it goes through the three block types
+    private int[] synthesizeCapture(int samples) {
+        final int[] values = new int[samples * StreamDecoder.CHANNELS];
+        final int rest = samples / 4;
+
+        for (int pos = 0; pos < samples; pos++) {
+            for (int c = 0; c < StreamDecoder.CHANNELS; c++) {
+                int value = StreamDecoder.CENTRE_SIGNAL;
+                if (pos >= rest && pos < samples - rest) {
+                    final double phase = Math.PI * (pos - rest) / (samples - 2 * rest);
+                    value += (int) (Math.sin(phase) * (600 + 400 * c) + mRandom.nextInt(9) - 4);
+                }
+                values[pos * StreamDecoder.CHANNELS + c] = value;
+            }
+        }
+        return values;
+    }
+
+    // Moves what the clip has sent by now onto the link
+    private void flushOutgoing(long time) {
+        while (!mOutgoing.isEmpty() && mOutgoing.peekFirst().time <= time) {
+            transmit(mOutgoing.pollFirst());
+        }
+    }
+
+    private void transmit(Packet packet) {
+        if (packet.samples && mLossRate > 0 && mRandom.nextDouble() < mLossRate) {
+            mLost++;
+            return;
+        }
+
+        long delivery = packet.time + mLatency;
+        if (mLatencyJitter > 0)
+            delivery += (long) (mRandom.nextDouble() * mLatencyJitter);
+
+        // The link never reorders notifications
+        delivery = Math.max(delivery, mLastDelivery);
+        mLastDelivery = delivery;
+        mLink.add(new Packet(delivery, packet.data, packet.samples));
+    }
+
+    private void deliver(Packet packet) {
+        mNotifications++;
+        mBytes += packet.data.length;
+        if (mRecording != null)
+            mRecording.add(mNow, true, packet.data, 0, packet.data.length);
+        mListener.onNotification(packet.data);
+    }
+}
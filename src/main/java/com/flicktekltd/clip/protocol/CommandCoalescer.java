@@ -0,0 +1,111 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Packs <code>{Cv}</code> commands written close together into a single UART write.
+ * <p>
+ * Commands are appended to a pending packet that is sent when {@link #flush()} is called, when the next
+ * command doesn't fit in it anymore, or when the outermost batch started with {@link #beginBatch()} ends.
+ * The clip parses the UART as a stream so <code>{O1}{V1}{V0}</code> is the same as three separate writes,
+ * but it takes a single radio round trip.
+ * </p>
+ * <p>
+ * Timing is left to the caller, FlicktekCommands flushes every command straight away unless a batch is open.
+ * All methods are thread safe, the output is called with the lock held so it must not block.
+ * </p>
+ */
+public class CommandCoalescer {
+
+    public interface Output {
+        // Called with a packet of one or more commands, the array is not reused
+        void send(byte[] data);
+    }
+
+    private final Output mOutput;
+    private final byte[] mPending;
+    private int mLength = 0;
+    private int mMaxLength;
+    private int mBatchDepth = 0;
+
+    private int mCommands = 0;
+    private int mPackets = 0;
+
+    /**
+     * @param maxLength largest packet we can send, MTU - 3 for a BLE write
+     */
+    public CommandCoalescer(Output output, int maxLength, int capacity) {
+        mOutput = output;
+        mPending = new byte[Math.max(capacity, CommandEncoder.COMMAND_SIZE)];
+        setMaxLength(maxLength);
+    }
+
+    // Packets never grow past this, it can change when a new MTU is negotiated
+    public synchronized void setMaxLength(int maxLength) {
+        mMaxLength = Math.max(CommandEncoder.COMMAND_SIZE, Math.min(maxLength, mPending.length));
+    }
+
+    /**
+     * Adds a command to the pending packet.
+     *
+     * @return true if this is the first command of a new packet, the caller should schedule a {@link #flush()}
+     */
+    public synchronized boolean add(char command, int value) {
+        if (mLength + CommandEncoder.COMMAND_SIZE > mMaxLength)
+            sendPending();
+
+        final boolean first = mLength == 0;
+        mLength += CommandEncoder.encode(command, value, mPending, mLength);
+        mCommands++;
+        return first && mBatchDepth == 0;
+    }
+
+    // Sends the pending packet unless we are inside a batch
+    public synchronized void flush() {
+        if (mBatchDepth == 0)
+            sendPending();
+    }
+
+    /**
+     * Holds every command until the matching {@link #endBatch()}, batches can be nested.
+     */
+    public synchronized void beginBatch() {
+        mBatchDepth++;
+    }
+
+    public synchronized void endBatch() {
+        if (mBatchDepth == 0)
+            return;
+
+        mBatchDepth--;
+        flush();
+    }
+
+    public synchronized boolean isBatching() {
+        return mBatchDepth > 0;
+    }
+
+    // Drops the pending commands, used when the connection is lost
+    public synchronized void clear() {
+        mLength = 0;
+        mBatchDepth = 0;
+    }
+
+    public synchronized int getCommandCount() {
+        return mCommands;
+    }
+
+    public synchronized int getPacketCount() {
+        return mPackets;
+    }
+
+    // Sent while holding the lock so packets can't overtake each other
+    private void sendPending() {
+        if (mLength == 0)
+            return;
+
+        final byte[] packet = new byte[mLength];
+        System.arraycopy(mPending, 0, packet, 0, mLength);
+        mLength = 0;
+        mPackets++;
+        mOutput.send(packet);
+    }
+}
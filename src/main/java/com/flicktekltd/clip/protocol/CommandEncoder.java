@@ -0,0 +1,37 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Builds the <code>{Cv}</code> single value commands sent to the clip.
+ */
+public final class CommandEncoder {
+    public static final int COMMAND_SIZE = 4;
+
+    private static final byte COMMAND_START = '{';
+    private static final byte COMMAND_END = '}';
+
+    private CommandEncoder() {
+    }
+
+    public static byte[] encode(char command, int value) {
+        final byte[] buf = new byte[COMMAND_SIZE];
+        encode(command, value, buf, 0);
+        return buf;
+    }
+
+    /**
+     * Writes the command into an existing buffer.
+     * Values below '0' are sent as their digit, so both 1 and '1' end up as '1'.
+     *
+     * @return number of bytes written
+     */
+    public static int encode(char command, int value, byte[] out, int offset) {
+        if (value < '0')
+            value += '0';
+
+        out[offset] = COMMAND_START;
+        out[offset + 1] = (byte) command;
+        out[offset + 2] = (byte) value;
+        out[offset + 3] = COMMAND_END;
+        return COMMAND_SIZE;
+    }
+}
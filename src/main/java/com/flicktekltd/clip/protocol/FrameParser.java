@@ -0,0 +1,153 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Incremental parser for the ASCII side of the clip UART protocol.
+ * <p>
+ * It recognises the two frame types the firmware sends back:
+ * <ul>
+ * <li><code>[CMD:DATA]</code> reports, for example <code>[ACK:W2]</code> or <code>[STS_DATA:120]</code></li>
+ * <li><code>{Cv}</code> single value commands, for example <code>{G1}</code> or <code>{OK}</code></li>
+ * </ul>
+ * The parser works on the raw notification bytes, without creating Strings or running regular expressions,
+ * and keeps its state between calls so a frame split across two notifications is still delivered.
+ * Bytes outside a frame are ignored, and a frame start in the middle of a frame drops the truncated one.
+ * </p>
+ */
+public class FrameParser {
+
+    public interface Listener {
+        /**
+         * A report has been received. The ranges index into the frame buffer,
+         * which is reused once this call returns.
+         */
+        void onReport(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength);
+
+        /**
+         * A single value command has been received.
+         */
+        void onCommand(byte command, byte value);
+    }
+
+    // Longest report we accept, anything longer is dropped as garbage.
+    public static final int MAX_FRAME_SIZE = 64;
+
+    private static final byte COMMAND_START = '{';
+    private static final byte COMMAND_END = '}';
+    private static final byte REPORT_START = '[';
+    private static final byte REPORT_END = ']';
+    private static final byte REPORT_SEPARATOR = ':';
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_REPORT_CMD = 1;
+    private static final int STATE_REPORT_DATA = 2;
+    private static final int STATE_COMMAND = 3;
+
+    private final Listener mListener;
+    private final byte[] mFrame = new byte[MAX_FRAME_SIZE];
+
+    private int mState = STATE_IDLE;
+    private int mLength = 0;
+    private int mCmdLength = 0;
+
+    public FrameParser(Listener listener) {
+        mListener = listener;
+    }
+
+    // Drops any partial frame
+    public void reset() {
+        mState = STATE_IDLE;
+        mLength = 0;
+        mCmdLength = 0;
+    }
+
+    // True if we are half way through a frame and waiting for the rest of it
+    public boolean isFrameInProgress() {
+        return mState != STATE_IDLE;
+    }
+
+    public void parse(byte[] buf) {
+        parse(buf, 0, buf.length);
+    }
+
+    public void parse(byte[] buf, int offset, int length) {
+        final int end = offset + length;
+        for (int t = offset; t < end; t++) {
+            parseByte(buf[t]);
+        }
+    }
+
+    private void parseByte(byte b) {
+        // A new frame starts, the one we were in has been cut short. Drop it rather than swallow the new one.
+        if (mState != STATE_IDLE && (b == REPORT_START || b == COMMAND_START)) {
+            reset();
+            start(b);
+            return;
+        }
+
+        switch (mState) {
+            case STATE_IDLE:
+                start(b);
+                return;
+
+            case STATE_COMMAND:
+                // {Cv} has always two bytes between the delimiters, anything but a frame start.
+                if (mLength < 2) {
+                    mFrame[mLength++] = b;
+                    return;
+                }
+
+                if (b == COMMAND_END) {
+                    mListener.onCommand(mFrame[0], mFrame[1]);
+                    reset();
+                } else {
+                    reset();
+                    start(b);
+                }
+                return;
+
+            case STATE_REPORT_CMD:
+                if (b == REPORT_SEPARATOR && mLength > 0) {
+                    mCmdLength = mLength;
+                    mState = STATE_REPORT_DATA;
+                    return;
+                }
+
+                if (!isWordCharacter(b) || mLength == MAX_FRAME_SIZE) {
+                    reset();
+                    start(b);
+                    return;
+                }
+
+                mFrame[mLength++] = b;
+                return;
+
+            case STATE_REPORT_DATA:
+                if (b == REPORT_END) {
+                    mListener.onReport(mFrame, 0, mCmdLength, mCmdLength, mLength - mCmdLength);
+                    reset();
+                    return;
+                }
+
+                if (b == '\n' || mLength == MAX_FRAME_SIZE) {
+                    reset();
+                    start(b);
+                    return;
+                }
+
+                mFrame[mLength++] = b;
+                return;
+        }
+    }
+
+    private void start(byte b) {
+        if (b == REPORT_START) {
+            mState = STATE_REPORT_CMD;
+        } else if (b == COMMAND_START) {
+            mState = STATE_COMMAND;
+        }
+    }
+
+    private static boolean isWordCharacter(byte b) {
+        return (b >= 'a' && b <= 'z') || (b >= 'A' && b <= 'Z') || (b >= '0' && b <= '9') || b == '_';
+    }
+}
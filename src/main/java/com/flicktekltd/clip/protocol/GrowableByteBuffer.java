@@ -0,0 +1,72 @@
+package com.flicktekltd.clip.protocol;
+
+import java.util.Arrays;
+
+/**
+ * Growable array of primitive bytes.
+ * Used to accumulate the raw capture stream without boxing every byte.
+ * The backing array is kept between captures, call {@link #clear()} to start again.
+ */
+public class GrowableByteBuffer {
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private byte[] mBuffer;
+    private int mLength = 0;
+
+    public GrowableByteBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public GrowableByteBuffer(int capacity) {
+        mBuffer = new byte[Math.max(capacity, 1)];
+    }
+
+    public void clear() {
+        mLength = 0;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    // Makes sure we can hold at least this many bytes without growing again
+    public void ensureCapacity(int capacity) {
+        if (capacity <= mBuffer.length)
+            return;
+
+        final int size = Math.max(mBuffer.length + (mBuffer.length >> 1), capacity);
+        mBuffer = Arrays.copyOf(mBuffer, size);
+    }
+
+    public void append(byte value) {
+        ensureCapacity(mLength + 1);
+        mBuffer[mLength++] = value;
+    }
+
+    public void append(byte[] data) {
+        append(data, 0, data.length);
+    }
+
+    public void append(byte[] data, int offset, int length) {
+        ensureCapacity(mLength + length);
+        System.arraycopy(data, offset, mBuffer, mLength, length);
+        mLength += length;
+    }
+
+    /**
+     * Returns the backing array. Only the first {@link #length()} bytes are valid
+     * and the array is replaced when the buffer grows.
+     */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    // Trimmed copy of the valid bytes
+    public byte[] toByteArray() {
+        return Arrays.copyOf(mBuffer, mLength);
+    }
+}
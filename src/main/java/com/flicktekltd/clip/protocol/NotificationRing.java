@@ -0,0 +1,174 @@
+package com.flicktekltd.clip.protocol;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Preallocated ring of notifications between one producer thread and one consumer thread, without locks.
+ * <p>
+ * The Binder thread receiving the notifications copies each one in with {@link #offer(byte[], int, int)} and
+ * returns straight away; the decoder thread takes them out in order with {@link #poll(byte[])}. Records are
+ * a two bytes length followed by the data, wrapping around the end of the array. Nothing is allocated after
+ * the constructor. When the consumer falls behind and a notification doesn't fit it is dropped and counted,
+ * the stream decoder resynchronises on the next block.
+ * </p>
+ * <p>
+ * Only the producer moves the tail and only the consumer moves the head, so each side only has to publish
+ * its own counter.
+ * </p>
+ */
+public class NotificationRing {
+    private static final int HEADER_SIZE = 2;
+    // Largest length the header can hold
+    public static final int MAX_RECORD_SIZE = 0xFFFF;
+
+    private final byte[] mBuffer;
+    private final int mMask;
+    private final int mMaxRecordSize;
+
+    // Bytes written and read since the ring was created
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mHead = new AtomicLong();
+
+    // Consumer parked in await(), woken by the producer
+    private volatile Thread mWaiter;
+
+    // Written by the producer only
+    private volatile int mDropped;
+    private volatile long mDroppedBytes;
+    private volatile int mOffered;
+
+    /**
+     * @param capacity      bytes in the ring, rounded up to a power of two
+     * @param maxRecordSize largest notification accepted, the consumer buffer must hold it
+     */
+    public NotificationRing(int capacity, int maxRecordSize) {
+        if (maxRecordSize <= 0 || maxRecordSize > MAX_RECORD_SIZE)
+            throw new IllegalArgumentException("Record size " + maxRecordSize);
+
+        int size = Integer.highestOneBit(Math.max(capacity, (maxRecordSize + HEADER_SIZE) * 2) - 1) << 1;
+        mBuffer = new byte[size];
+        mMask = size - 1;
+        mMaxRecordSize = maxRecordSize;
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    public int getMaxRecordSize() {
+        return mMaxRecordSize;
+    }
+
+    //---------- Producer ------------------------------------------------------------
+
+    /**
+     * Copies a notification into the ring and wakes the consumer.
+     *
+     * @return false if it didn't fit, it has been counted as dropped
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+        mOffered++;
+
+        final long tail = mTail.get();
+        final int size = HEADER_SIZE + length;
+        if (length > mMaxRecordSize || size > mBuffer.length - (int) (tail - mHead.get())) {
+            mDropped++;
+            mDroppedBytes += length;
+            return false;
+        }
+
+        final int index = (int) tail & mMask;
+        mBuffer[index] = (byte) (length >> 8);
+        mBuffer[(index + 1) & mMask] = (byte) length;
+        copyIn(data, offset, length, (index + HEADER_SIZE) & mMask);
+
+        // A full volatile write, the read of mWaiter below can't move above it
+        mTail.set(tail + size);
+
+        final Thread waiter = mWaiter;
+        if (waiter != null)
+            LockSupport.unpark(waiter);
+        return true;
+    }
+
+    //---------- Consumer ------------------------------------------------------------
+
+    /**
+     * Takes the oldest notification out of the ring.
+     *
+     * @param out receives the data, at least {@link #getMaxRecordSize()} long
+     * @return the length of the notification, or -1 if the ring is empty
+     */
+    public int poll(byte[] out) {
+        if (out.length < mMaxRecordSize)
+            throw new IllegalArgumentException("Buffer smaller than " + mMaxRecordSize);
+
+        final long head = mHead.get();
+        if (head == mTail.get())
+            return -1;
+
+        final int index = (int) head & mMask;
+        final int length = ((mBuffer[index] & 0xFF) << 8) | (mBuffer[(index + 1) & mMask] & 0xFF);
+        copyOut((index + HEADER_SIZE) & mMask, out, length);
+
+        // The producer can reuse the space once it sees the new head
+        mHead.lazySet(head + HEADER_SIZE + length);
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return mHead.get() == mTail.get();
+    }
+
+    /**
+     * Parks the consumer until a notification arrives or the timeout expires. Returns straight away
+     * if the ring isn't empty.
+     */
+    public void await(long timeoutNanos) {
+        mWaiter = Thread.currentThread();
+        try {
+            // Checked after publishing mWaiter, a notification offered in between unparks us
+            if (isEmpty())
+                LockSupport.parkNanos(this, timeoutNanos);
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    // Drops everything waiting, only from the consumer thread
+    public void clear() {
+        mHead.lazySet(mTail.get());
+    }
+
+    //---------- Statistics ----------------------------------------------------------
+
+    // Bytes waiting to be decoded, headers included
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getOfferedCount() {
+        return mOffered;
+    }
+
+    public int getDroppedCount() {
+        return mDropped;
+    }
+
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+
+    private void copyIn(byte[] data, int offset, int length, int index) {
+        final int first = Math.min(length, mBuffer.length - index);
+        System.arraycopy(data, offset, mBuffer, index, first);
+        System.arraycopy(data, offset + first, mBuffer, 0, length - first);
+    }
+
+    private void copyOut(int index, byte[] out, int length) {
+        final int first = Math.min(length, mBuffer.length - index);
+        System.arraycopy(mBuffer, index, out, 0, first);
+        System.arraycopy(mBuffer, 0, out, first, length - first);
+    }
+}
@@ -0,0 +1,45 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Receives everything {@link ClipProtocol} decodes from the clip.
+ * <p>
+ * Calls are made synchronously on the thread feeding the notifications. On Android FlicktekCommands
+ * turns them into EventBus events, on a plain JVM they can go anywhere (replay tools, benchmarks).
+ * </p>
+ */
+public interface ProtocolSink {
+    /**
+     * Single value command <code>{Cv}</code>, the value is the raw byte.
+     */
+    void onCommand(byte command, byte value);
+
+    /**
+     * <code>[ACK:Cv]</code> or <code>[NAK:Cv]</code>, the clip accepted or refused command C with value v.
+     */
+    void onAcknowledge(boolean ack, byte command, byte value);
+
+    // [BT:v]
+    void onButton(String value);
+
+    // [STK:n]
+    void onStreamingTicks(int ticks);
+
+    // [GIT:revision]
+    void onRevision(String revision);
+
+    // [VER:version]
+    void onVersion(String version);
+
+    // [STS_DATA:n], a capture of n samples is about to be streamed
+    void onCaptureStarted(int samples);
+
+    /**
+     * The capture has finished, see {@link ClipProtocol#getCaptureFrame()} for the ownership of the frame.
+     *
+     * @param complete false if the stream ended before all the samples arrived
+     */
+    void onCaptureEnded(CaptureFrame frame, boolean complete);
+
+    // Diagnostics, nothing here is needed to drive the clip
+    void onLog(String message);
+}
@@ -0,0 +1,137 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Table of {@link ReportHandler} keyed on the raw command bytes of a <code>[CMD:DATA]</code> report.
+ * <p>
+ * The lookup hashes the command range of the frame and probes an open addressed table, it doesn't
+ * create Strings and costs the same whatever the number of registered reports.
+ * The table is replaced as a whole on every change, so handlers can be registered from any thread
+ * while {@link #dispatch(byte[], int, int, int, int)} runs without locking.
+ * </p>
+ */
+public class ReportDispatcher {
+
+    private static final int INITIAL_SIZE = 16;
+
+    private static final class Table {
+        final byte[][] keys;
+        final ReportHandler[] handlers;
+        final int count;
+
+        Table(int size, int count) {
+            keys = new byte[size][];
+            handlers = new ReportHandler[size];
+            this.count = count;
+        }
+    }
+
+    private volatile Table mTable = new Table(INITIAL_SIZE, 0);
+
+    /**
+     * Registers a handler, replacing any previous handler for the same command.
+     *
+     * @param command report name, for example "ACK" for [ACK:W2]
+     */
+    public void register(String command, ReportHandler handler) {
+        register(AsciiBytes.of(command), handler);
+    }
+
+    public synchronized void register(byte[] command, ReportHandler handler) {
+        if (command.length == 0)
+            throw new IllegalArgumentException("Empty report command");
+
+        if (handler == null) {
+            unregister(command);
+            return;
+        }
+
+        final Table table = mTable;
+        final boolean replacing = find(table, command, 0, command.length) >= 0;
+        final int count = replacing ? table.count : table.count + 1;
+
+        // Keep the table at most half full so probing stays short
+        int size = table.keys.length;
+        while (count * 2 > size) {
+            size <<= 1;
+        }
+
+        final Table updated = new Table(size, count);
+        for (int t = 0; t < table.keys.length; t++) {
+            if (table.keys[t] != null && !AsciiBytes.equals(table.keys[t], 0, table.keys[t].length, command))
+                insert(updated, table.keys[t], table.handlers[t]);
+        }
+        insert(updated, command.clone(), handler);
+        mTable = updated;
+    }
+
+    public void unregister(String command) {
+        unregister(AsciiBytes.of(command));
+    }
+
+    public synchronized void unregister(byte[] command) {
+        final Table table = mTable;
+        if (find(table, command, 0, command.length) < 0)
+            return;
+
+        final Table updated = new Table(table.keys.length, table.count - 1);
+        for (int t = 0; t < table.keys.length; t++) {
+            if (table.keys[t] != null && !AsciiBytes.equals(table.keys[t], 0, table.keys[t].length, command))
+                insert(updated, table.keys[t], table.handlers[t]);
+        }
+        mTable = updated;
+    }
+
+    public boolean isRegistered(String command) {
+        final byte[] key = AsciiBytes.of(command);
+        return find(mTable, key, 0, key.length) >= 0;
+    }
+
+    /**
+     * Hands the report to the handler registered for its command.
+     *
+     * @return false if nobody handles this command
+     */
+    public boolean dispatch(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength) {
+        final Table table = mTable;
+        final int index = find(table, frame, cmdOffset, cmdLength);
+        if (index < 0)
+            return false;
+
+        table.handlers[index].onReport(frame, dataOffset, dataLength);
+        return true;
+    }
+
+    private static int find(Table table, byte[] buf, int offset, int length) {
+        final int mask = table.keys.length - 1;
+        int index = hash(buf, offset, length) & mask;
+        while (true) {
+            final byte[] key = table.keys[index];
+            if (key == null)
+                return -1;
+
+            if (AsciiBytes.equals(buf, offset, length, key))
+                return index;
+
+            index = (index + 1) & mask;
+        }
+    }
+
+    private static void insert(Table table, byte[] key, ReportHandler handler) {
+        final int mask = table.keys.length - 1;
+        int index = hash(key, 0, key.length) & mask;
+        while (table.keys[index] != null) {
+            index = (index + 1) & mask;
+        }
+        table.keys[index] = key;
+        table.handlers[index] = handler;
+    }
+
+    private static int hash(byte[] buf, int offset, int length) {
+        int h = length;
+        final int end = offset + length;
+        for (int t = offset; t < end; t++) {
+            h = 31 * h + buf[t];
+        }
+        return h ^ (h >>> 16);
+    }
+}
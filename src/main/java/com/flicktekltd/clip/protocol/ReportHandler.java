@@ -0,0 +1,12 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Handles one type of <code>[CMD:DATA]</code> report, see {@link ReportDispatcher}.
+ * <p>
+ * Called on the thread parsing the notifications. The frame buffer is reused once the call
+ * returns, use {@link AsciiBytes} to parse the data in place and copy anything you need to keep.
+ * </p>
+ */
+public interface ReportHandler {
+    void onReport(byte[] frame, int dataOffset, int dataLength);
+}
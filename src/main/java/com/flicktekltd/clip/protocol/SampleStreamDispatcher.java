@@ -0,0 +1,73 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Forwards decoded sample blocks to a bounded set of {@link SampleStreamListener}.
+ * Listeners are kept in a copy on write array so dispatching does not lock or allocate.
+ */
+public class SampleStreamDispatcher {
+    public static final int MAX_LISTENERS = 4;
+
+    private static final SampleStreamListener[] EMPTY = new SampleStreamListener[0];
+
+    private volatile SampleStreamListener[] mListeners = EMPTY;
+
+    /**
+     * @return false if the listener was already registered or there is no room for more listeners
+     */
+    public synchronized boolean addListener(SampleStreamListener listener) {
+        final SampleStreamListener[] listeners = mListeners;
+        if (listeners.length == MAX_LISTENERS)
+            return false;
+
+        for (SampleStreamListener l : listeners) {
+            if (l == listener)
+                return false;
+        }
+
+        final SampleStreamListener[] updated = new SampleStreamListener[listeners.length + 1];
+        System.arraycopy(listeners, 0, updated, 0, listeners.length);
+        updated[listeners.length] = listener;
+        mListeners = updated;
+        return true;
+    }
+
+    public synchronized boolean removeListener(SampleStreamListener listener) {
+        final SampleStreamListener[] listeners = mListeners;
+        for (int t = 0; t < listeners.length; t++) {
+            if (listeners[t] != listener)
+                continue;
+
+            final SampleStreamListener[] updated = new SampleStreamListener[listeners.length - 1];
+            System.arraycopy(listeners, 0, updated, 0, t);
+            System.arraycopy(listeners, t + 1, updated, t, listeners.length - t - 1);
+            mListeners = updated;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean hasListeners() {
+        return mListeners.length != 0;
+    }
+
+    public void started(int samples) {
+        for (SampleStreamListener listener : mListeners) {
+            listener.onStreamStarted(samples);
+        }
+    }
+
+    public void samples(int[] data, int start, int count) {
+        if (count <= 0)
+            return;
+
+        for (SampleStreamListener listener : mListeners) {
+            listener.onSamples(data, start, count);
+        }
+    }
+
+    public void ended(int decoded, boolean complete) {
+        for (SampleStreamListener listener : mListeners) {
+            listener.onStreamEnded(decoded, complete);
+        }
+    }
+}
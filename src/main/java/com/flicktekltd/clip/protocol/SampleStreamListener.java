@@ -0,0 +1,34 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Receives the decoded sensor samples while a capture is still arriving.
+ * <p>
+ * Callbacks run synchronously on the thread decoding the notifications, so they have to be quick
+ * and must not block. Arrays are only valid during the call, copy what you need to keep.
+ * </p>
+ */
+public interface SampleStreamListener {
+    /**
+     * A new capture has started.
+     *
+     * @param samples number of samples announced by the clip
+     */
+    void onStreamStarted(int samples);
+
+    /**
+     * New samples have been decoded.
+     *
+     * @param data  decoded values, 4 channels interleaved
+     * @param start index of the first new sample, its channels are at data[start * 4 ... start * 4 + 3]
+     * @param count number of new samples
+     */
+    void onSamples(int[] data, int start, int count);
+
+    /**
+     * The capture has finished.
+     *
+     * @param decoded  number of samples decoded
+     * @param complete false if the stream ended before all the samples arrived
+     */
+    void onStreamEnded(int decoded, boolean complete);
+}
@@ -0,0 +1,417 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Decoder for the raw sensor stream sent by the clip after a [STS_DATA:n] report.
+ * <p>
+ * The stream is a sequence of blocks, each one starting with a header byte at a sample boundary:
+ * <ul>
+ * <li>{@link #PAYLOAD_16BITS}: absolute values, two bytes big endian per channel</li>
+ * <li>{@link #PAYLOAD_8BITS}: signed deltas against the previous sample, one byte per channel</li>
+ * <li>{@link #PAYLOAD_SIGNAL}: one byte with the number of samples at rest (centre signal)</li>
+ * </ul>
+ * Samples have 4 channels and are written interleaved into the output array.
+ * </p>
+ * <p>
+ * The whole decoder state lives in a handful of int fields. {@link #decode(byte[], int, int, int[], int)}
+ * takes a complete notification and decodes runs of the same block type in tight loops,
+ * {@link #decodeByte(byte, int[], int)} is the original byte by byte state machine. Both give the same values,
+ * position and completion for the same input as long as the samples fit in the output array and, with
+ * resynchronisation enabled, the stream stays in step. They differ in the corner cases:
+ * <ul>
+ * <li>Output array full: decode() counts one overflow and ignores the rest of the notification, decodeByte()
+ * counts one for every byte that doesn't fit and keeps going. A signal count past the end is one overflow for
+ * decode() and one for every sample that doesn't fit for decodeByte().</li>
+ * <li>8 bits delta before the first sample: decodeByte() counts an overflow and drops the byte, so does decode()
+ * with resynchronisation disabled. With it enabled decode() counts a resync instead and waits for a 16 bits
+ * block.</li>
+ * <li>Only decode() checks the values against the plausible range.</li>
+ * </ul>
+ * </p>
+ * <p>
+ * If a notification is lost the decoder goes out of step with the stream and every following
+ * value would be garbage. With resynchronisation enabled (default) {@link #decode(byte[], int, int, int[], int)}
+ * checks every value against a plausible range; a value outside of it, which is what we get when a header
+ * or half a 16 bits value lands in the middle of a sample, drops the partial sample and skips data until the
+ * next 16 bits absolute block. The position where that happened is recorded as a gap, see
+ * {@link #getGapPosition(int)}: decoding continues from there, so the samples after a gap are early by the
+ * samples lost in it until the caller moves them, ClipProtocol does it once the clip has told how many
+ * samples it sent.
+ * </p>
+ * <p>
+ * A 0xFD data byte looks like the header we are waiting for, a delta of -3 or the low byte of a 16 bits value.
+ * It is only taken as one if the next byte could start a 16 bits value, and if the samples read from it go out
+ * of range straight away we go back to waiting at the same position. A notification lost in the middle of
+ * 8 bits deltas can go unnoticed, the deltas make sense whatever they are added to.
+ * </p>
+ */
+public class StreamDecoder {
+    public static final int PAYLOAD_SIGNAL = 0xFF;
+    public static final int PAYLOAD_8BITS = 0xFE;
+    public static final int PAYLOAD_16BITS = 0xFD;
+
+    public static final int STREAM_FULL_16BITS = 0;
+    public static final int STREAM_SIGNAL_COUNT = 1;
+    public static final int STREAM_INC_8BITS = 2;
+    // Out of step, waiting for the next 16 bits block
+    public static final int STREAM_RESYNC = 3;
+
+    public static final int CHANNELS = 4;
+
+    // Value of every channel when the sensor is at rest
+    public static final int CENTRE_SIGNAL = 5488;
+
+    // The sensors are 14 bits, anything outside is the decoder being out of step.
+    public static final int DEFAULT_MIN_VALUE = 0;
+    public static final int DEFAULT_MAX_VALUE = 0x3FFF;
+
+    // Samples after a resync that have to be in range before we trust the header we found
+    private static final int ANCHOR_SAMPLES = 2;
+
+    private boolean mResyncEnabled = true;
+    private int mMinValue = DEFAULT_MIN_VALUE;
+    private int mMaxValue = DEFAULT_MAX_VALUE;
+
+    private int mState = STREAM_FULL_16BITS;
+    private int mPosition = 0;
+    private int mPending16 = -1;
+    private int mSensor = 0;
+    private int mTotalBytes = 0;
+    private int mOverflows = 0;
+    private int mResyncs = 0;
+    private int mDiscardedBytes = 0;
+
+    // Positions where we went out of step, in order
+    private int[] mGaps = new int[4];
+    private int mGapCount = 0;
+    // Position of the last header found while resynchronising, -1 if none
+    private int mAnchor = -1;
+
+    public void setResyncEnabled(boolean enabled) {
+        mResyncEnabled = enabled;
+    }
+
+    public boolean isResyncEnabled() {
+        return mResyncEnabled;
+    }
+
+    // Values outside this range make the decoder resynchronise
+    public void setPlausibleRange(int min, int max) {
+        mMinValue = min;
+        mMaxValue = max;
+    }
+
+    public void reset() {
+        mState = STREAM_FULL_16BITS;
+        mPosition = 0;
+        mPending16 = -1;
+        mSensor = 0;
+        mTotalBytes = 0;
+        mOverflows = 0;
+        mResyncs = 0;
+        mDiscardedBytes = 0;
+        mGapCount = 0;
+        mAnchor = -1;
+    }
+
+    // Number of complete samples decoded so far
+    public int getPosition() {
+        return mPosition;
+    }
+
+    public int getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    // Times the stream didn't fit in the output array, see the class comment for how each decoder counts them
+    public int getOverflows() {
+        return mOverflows;
+    }
+
+    // Times we went out of step and had to wait for a 16 bits block
+    public int getResyncCount() {
+        return mResyncs;
+    }
+
+    // Bytes skipped while waiting for a 16 bits block
+    public int getDiscardedBytes() {
+        return mDiscardedBytes;
+    }
+
+    // Places where samples are missing, at most one for every resync
+    public int getGapCount() {
+        return mGapCount;
+    }
+
+    /**
+     * Returns the position of a gap, the samples decoded from there on were sent later than their position says.
+     *
+     * @param index from 0 to {@link #getGapCount()}, gaps are in position order
+     */
+    public int getGapPosition(int index) {
+        return mGaps[index];
+    }
+
+    /**
+     * Decodes a block of the stream.
+     *
+     * @param buf     received data
+     * @param offset  first byte to decode
+     * @param length  number of bytes to decode
+     * @param out     decoded values, 4 channels per sample
+     * @param samples number of samples announced by the clip
+     * @return true if the last sample has been decoded, the rest of the block is ignored
+     */
+    public boolean decode(byte[] buf, int offset, int length, int[] out, int samples) {
+        final int end = offset + length;
+        final int outLength = out.length;
+
+        int state = mState;
+        int pos = mPosition;
+        int pending = mPending16;
+        int sensor = mSensor;
+        int i = offset;
+        boolean complete = false;
+
+        final boolean resync = mResyncEnabled;
+        final int min = mMinValue;
+        final int max = mMaxValue;
+
+        mTotalBytes += length;
+
+        decoding:
+        while (i < end) {
+            if (state == STREAM_RESYNC) {
+                // The byte after the header has to be the high byte of a plausible value
+                while (i < end && ((buf[i] & 0xFF) != PAYLOAD_16BITS || (i + 1 < end && (buf[i + 1] & 0xFF) << 8 > max))) {
+                    i++;
+                    mDiscardedBytes++;
+                }
+
+                if (i == end)
+                    break;
+
+                // The header is handled below and takes us back to 16 bits
+                mAnchor = pos;
+            }
+
+            // Headers can only be found at the start of a sample
+            if (sensor == 0 && pending == -1) {
+                final int header = buf[i] & 0xFF;
+                if (header >= PAYLOAD_16BITS) {
+                    if (header == PAYLOAD_SIGNAL) {
+                        state = STREAM_SIGNAL_COUNT;
+                    } else if (header == PAYLOAD_8BITS) {
+                        state = STREAM_INC_8BITS;
+                    } else {
+                        state = STREAM_FULL_16BITS;
+                    }
+                    i++;
+                    continue;
+                }
+            }
+
+            int idx = pos * CHANNELS + sensor;
+
+            switch (state) {
+                case STREAM_SIGNAL_COUNT: {
+                    int count = buf[i++] & 0xFF;
+                    int fill = Math.min(count, (outLength - idx) / CHANNELS);
+                    if (fill < count)
+                        mOverflows++;
+
+                    final int fillEnd = idx + Math.max(fill, 0) * CHANNELS;
+                    while (idx < fillEnd) {
+                        out[idx++] = CENTRE_SIGNAL;
+                    }
+                    pos += count;
+                    sensor = 0;
+                    break;
+                }
+
+                case STREAM_INC_8BITS:
+                    if (pos == 0) {
+                        // Nothing to add the delta to
+                        if (resync) {
+                            state = STREAM_RESYNC;
+                            pos = outOfStep(pos);
+                            continue;
+                        }
+
+                        mOverflows++;
+                        i++;
+                        break;
+                    }
+
+                    while (i < end) {
+                        if (idx >= outLength) {
+                            mOverflows++;
+                            break decoding;
+                        }
+
+                        final int value = out[idx - CHANNELS] + buf[i++];
+                        if (resync && (value < min || value > max)) {
+                            state = STREAM_RESYNC;
+                            sensor = 0;
+                            pos = outOfStep(pos);
+                            continue decoding;
+                        }
+
+                        out[idx++] = value;
+
+                        if (++sensor == CHANNELS) {
+                            sensor = 0;
+                            if (++pos == samples) {
+                                complete = true;
+                                break decoding;
+                            }
+
+                            // Next byte could be a new header
+                            if (i < end && (buf[i] & 0xFF) >= PAYLOAD_16BITS)
+                                break;
+                        }
+                    }
+                    break;
+
+                case STREAM_FULL_16BITS:
+                default:
+                    while (i < end) {
+                        if (pending == -1) {
+                            pending = (buf[i++] & 0xFF) << 8;
+                            if (i == end)
+                                break;
+                        }
+
+                        final int value = pending + (buf[i++] & 0xFF);
+                        pending = -1;
+
+                        if (idx >= outLength) {
+                            mOverflows++;
+                            break decoding;
+                        }
+
+                        if (resync && (value < min || value > max)) {
+                            state = STREAM_RESYNC;
+                            sensor = 0;
+                            pos = outOfStep(pos);
+                            continue decoding;
+                        }
+
+                        out[idx++] = value;
+
+                        if (++sensor == CHANNELS) {
+                            sensor = 0;
+                            if (++pos == samples) {
+                                complete = true;
+                                break decoding;
+                            }
+
+                            if (i < end && (buf[i] & 0xFF) >= PAYLOAD_16BITS)
+                                break;
+                        }
+                    }
+                    break;
+            }
+        }
+
+        mState = state;
+        mPosition = pos;
+        mPending16 = pending;
+        mSensor = sensor;
+        return complete;
+    }
+
+    // Records the gap and returns the position to continue from
+    private int outOfStep(int pos) {
+        mResyncs++;
+
+        // The header we resynchronised on was a data byte, what we decoded from it is garbage
+        final int anchor = mAnchor;
+        mAnchor = -1;
+        if (anchor >= 0 && pos - anchor < ANCHOR_SAMPLES)
+            return anchor;
+
+        if (mGapCount > 0 && mGaps[mGapCount - 1] == pos)
+            return pos;
+
+        if (mGapCount == mGaps.length) {
+            final int[] gaps = new int[mGapCount * 2];
+            System.arraycopy(mGaps, 0, gaps, 0, mGapCount);
+            mGaps = gaps;
+        }
+        mGaps[mGapCount++] = pos;
+        return pos;
+    }
+
+    /**
+     * Decodes a single byte of the stream.
+     *
+     * @return true if the last sample has been decoded
+     */
+    public boolean decodeByte(byte data_byte, int[] out, int samples) {
+        int unsigned_value = data_byte & 0xFF;
+        mTotalBytes++;
+
+        if (mSensor == 0 && mPending16 == -1) {
+            switch (unsigned_value) {
+                case PAYLOAD_SIGNAL:
+                    mState = STREAM_SIGNAL_COUNT;
+                    return false;
+                case PAYLOAD_8BITS:
+                    mState = STREAM_INC_8BITS;
+                    return false;
+                case PAYLOAD_16BITS:
+                    mState = STREAM_FULL_16BITS;
+                    return false;
+            }
+        }
+
+        switch (mState) {
+            case STREAM_FULL_16BITS:
+                if (mPending16 == -1) {
+                    mPending16 = unsigned_value << 8;
+                    return false;
+                }
+
+                unsigned_value += mPending16;
+                mPending16 = -1;
+                break;
+            case STREAM_INC_8BITS:
+                if (mPosition == 0 || mPosition * CHANNELS + mSensor >= out.length) {
+                    mOverflows++;
+                    return false;
+                }
+                unsigned_value = out[(mPosition - 1) * CHANNELS + mSensor] + data_byte;
+                break;
+            case STREAM_SIGNAL_COUNT:
+                int pos = mPosition * CHANNELS;
+                for (int t = 0; t < unsigned_value; t++) {
+                    if (pos + CHANNELS > out.length) {
+                        mOverflows++;
+                    } else {
+                        for (int c = 0; c < CHANNELS; c++) {
+                            out[pos + c] = CENTRE_SIGNAL;
+                        }
+                    }
+                    pos += CHANNELS;
+                    mPosition++;
+                }
+                mSensor = 0;
+                return false;
+        }
+
+        int pos = mPosition * CHANNELS + mSensor;
+        if (pos >= out.length) {
+            mOverflows++;
+            return false;
+        }
+
+        out[pos] = unsigned_value;
+        mSensor++;
+        if (mSensor == CHANNELS) {
+            mSensor = 0;
+            mPosition++;
+            return mPosition == samples;
+        }
+        return false;
+    }
+}
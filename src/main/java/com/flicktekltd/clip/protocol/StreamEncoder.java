@@ -0,0 +1,108 @@
+package com.flicktekltd.clip.protocol;
+
+/**
+ * Encodes samples the way the clip streams them, the reverse of {@link StreamDecoder}.
+ * <p>
+ * Samples at rest become {@link StreamDecoder#PAYLOAD_SIGNAL} counts, samples close to the previous one
+ * {@link StreamDecoder#PAYLOAD_8BITS} deltas and everything else {@link StreamDecoder#PAYLOAD_16BITS}
+ * absolute values. A header is only written when the block type changes. The first delta of a sample can't
+ * look like a header, those samples go out as 16 bits.
+ * </p>
+ * <p>
+ * The output decodes back to the same values with {@link StreamDecoder#decode(byte[], int, int, int[], int)}.
+ * </p>
+ */
+public final class StreamEncoder {
+    // Largest count in a single byte, anything above would be read as a header
+    private static final int MAX_SIGNAL_COUNT = StreamDecoder.PAYLOAD_16BITS - 1;
+
+    private StreamEncoder() {
+    }
+
+    /**
+     * Appends the encoded samples to the buffer.
+     *
+     * @param samples values, 4 channels interleaved
+     * @param count   number of samples to encode
+     * @return number of bytes written
+     */
+    public static int encode(int[] samples, int count, GrowableByteBuffer out) {
+        final int start = out.length();
+        final int channels = StreamDecoder.CHANNELS;
+
+        int state = -1;
+        int run = 0;
+
+        for (int pos = 0; pos < count; pos++) {
+            final int idx = pos * channels;
+
+            // The decoder only sees the end of the capture on a value, the last sample is never a count
+            if (pos < count - 1 && isAtRest(samples, idx)) {
+                run++;
+                continue;
+            }
+
+            if (run > 0) {
+                writeSignal(run, out, state != StreamDecoder.STREAM_SIGNAL_COUNT);
+                state = StreamDecoder.STREAM_SIGNAL_COUNT;
+                run = 0;
+            }
+
+            // Deltas are added to the previous sample, the centre signal after a run
+            if (pos > 0 && fitsDeltas(samples, idx)) {
+                if (state != StreamDecoder.STREAM_INC_8BITS)
+                    out.append((byte) StreamDecoder.PAYLOAD_8BITS);
+                state = StreamDecoder.STREAM_INC_8BITS;
+
+                for (int c = 0; c < channels; c++) {
+                    out.append((byte) (samples[idx + c] - samples[idx - channels + c]));
+                }
+                continue;
+            }
+
+            if (state != StreamDecoder.STREAM_FULL_16BITS)
+                out.append((byte) StreamDecoder.PAYLOAD_16BITS);
+            state = StreamDecoder.STREAM_FULL_16BITS;
+
+            for (int c = 0; c < channels; c++) {
+                final int value = samples[idx + c] & 0x3FFF;
+                out.append((byte) (value >> 8));
+                out.append((byte) value);
+            }
+        }
+
+        return out.length() - start;
+    }
+
+    private static boolean isAtRest(int[] samples, int idx) {
+        for (int c = 0; c < StreamDecoder.CHANNELS; c++) {
+            if (samples[idx + c] != StreamDecoder.CENTRE_SIGNAL)
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean fitsDeltas(int[] samples, int idx) {
+        for (int c = 0; c < StreamDecoder.CHANNELS; c++) {
+            final int delta = samples[idx + c] - samples[idx - StreamDecoder.CHANNELS + c];
+            if (delta < Byte.MIN_VALUE || delta > Byte.MAX_VALUE)
+                return false;
+
+            // The first byte of a sample is checked for a header
+            if (c == 0 && (delta & 0xFF) >= StreamDecoder.PAYLOAD_16BITS)
+                return false;
+        }
+        return true;
+    }
+
+    private static void writeSignal(int run, GrowableByteBuffer out, boolean header) {
+        if (header)
+            out.append((byte) StreamDecoder.PAYLOAD_SIGNAL);
+
+        while (run > 0) {
+            final int count = Math.min(run, MAX_SIGNAL_COUNT);
+            out.append((byte) count);
+            run -= count;
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package com.flicktekltd.clip.uart;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.flicktekltd.clip.FlicktekCommands;
+import com.flicktekltd.clip.ble.ConnectionTimeline;
+import com.flicktekltd.clip.ble.LinkPolicy;
+import com.flicktekltd.clip.protocol.ClipSession;
+import com.flicktekltd.clip.protocol.ClipSimulator;
+
+/**
+ * Connects FlicktekCommands to a {@link ClipSimulator} instead of a clip, to run the application without hardware.
+ * <p>
+ * Everything above the UART works as with a real clip: the handshake, the commands, the gestures and the
+ * captures, decoded on a thread of its own like the UART profile does. The simulator clock follows the real one,
+ * optionally faster. Configure {@link #getSimulator()} before {@link #start()}, afterwards it belongs to
+ * the simulator thread.
+ * </p>
+ */
+public class SimulatedUART implements FlicktekCommands.UARTLinkInterface {
+    private static final String TAG = "SimulatedUART";
+
+    private final FlicktekCommands mCommands;
+    private final ClipSimulator mSimulator;
+    private final ConnectionTimeline mTimeline = new ConnectionTimeline();
+
+    private HandlerThread mThread;
+    private volatile Handler mHandler;
+
+    // Simulated milliseconds per real millisecond
+    private double mSpeed = 1;
+    private long mStartTime;
+    private int mLinkMode = LinkPolicy.MODE_BALANCED;
+
+    public SimulatedUART(FlicktekCommands commands) {
+        mCommands = commands;
+        mSimulator = new ClipSimulator(new ClipSimulator.Listener() {
+            @Override
+            public void onNotification(byte[] data) {
+                mCommands.onCommandArrived(data);
+            }
+        });
+    }
+
+    public ClipSimulator getSimulator() {
+        return mSimulator;
+    }
+
+    public void setSpeed(double speed) {
+        mSpeed = Math.max(0.01, speed);
+    }
+
+    /**
+     * Plays a recorded session through the commands, call it after {@link #start()}.
+     */
+    public void replay(final ClipSession session) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mSimulator.advanceTo(now());
+                mSimulator.replay(session);
+                schedule();
+            }
+        });
+    }
+
+    // Handshake and phase timings of the simulated connections
+    public ConnectionTimeline getConnectionTimeline() {
+        return mTimeline;
+    }
+
+    // Last LinkPolicy mode the commands asked for
+    public int getLinkMode() {
+        return mLinkMode;
+    }
+
+    /**
+     * Connects the simulated clip, the commands start the handshake as if the notifications had just been enabled.
+     */
+    public void start() {
+        if (mThread != null)
+            return;
+
+        mThread = new HandlerThread("SimulatedClip");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mStartTime = SystemClock.elapsedRealtime();
+
+        mTimeline.start();
+        mCommands.registerDataChannel(this);
+        mCommands.setConnectionTimeline(mTimeline);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mTimeline.mark(ConnectionTimeline.PHASE_NOTIFICATIONS_ENABLED);
+                mCommands.onReadyToSendData(true);
+                schedule();
+            }
+        });
+        Log.v(TAG, "Simulated clip connected, speed " + mSpeed);
+    }
+
+    public void stop() {
+        if (mThread == null)
+            return;
+
+        mHandler.removeCallbacksAndMessages(null);
+        mThread.quitSafely();
+        mThread = null;
+        mHandler = null;
+
+        mTimeline.abort();
+        mCommands.registerDataChannel(null);
+        mCommands.setConnectionTimeline(null);
+        mCommands.onRelease();
+        Log.v(TAG, "Simulated clip disconnected");
+    }
+
+    @Override
+    public void sendString(final String data) {
+        sendDataBuffer(data.getBytes());
+    }
+
+    @Override
+    public void sendDataBuffer(final byte[] data) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                mSimulator.advanceTo(now());
+                mSimulator.write(data);
+                schedule();
+            }
+        });
+    }
+
+    @Override
+    public int getMaxPacketSize() {
+        return mSimulator.getMaxPacketSize();
+    }
+
+    @Override
+    public void setConnectionPriority(int priority) {
+        mLinkMode = priority;
+    }
+
+    private final Runnable mAdvance = new Runnable() {
+        @Override
+        public void run() {
+            mSimulator.advanceTo(now());
+            schedule();
+        }
+    };
+
+    // Sleeps until the next thing the simulated clip does
+    private void schedule() {
+        // Stopped in the meantime
+        final Handler handler = mHandler;
+        if (handler == null)
+            return;
+
+        handler.removeCallbacks(mAdvance);
+
+        final long next = mSimulator.getNextEventTime();
+        if (next == Long.MAX_VALUE)
+            return;
+
+        final long delay = (long) Math.ceil((next - mSimulator.getTime()) / mSpeed);
+        handler.postDelayed(mAdvance, Math.max(0, delay));
+    }
+
+    private void post(Runnable runnable) {
+        final Handler handler = mHandler;
+        if (handler != null)
+            handler.post(runnable);
+    }
+
+    // Simulated time
+    private long now() {
+        return (long) ((SystemClock.elapsedRealtime() - mStartTime) * mSpeed);
+    }
+}
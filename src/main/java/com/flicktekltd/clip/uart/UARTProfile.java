@@ -22,31 +22,41 @@
 
 package com.flicktekltd.clip.uart;
 
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.flicktekltd.clip.FlicktekCommands;
-import com.flicktekltd.clip.FlicktekManager;
 import com.flicktekltd.clip.ble.BleManager;
 import com.flicktekltd.clip.ble.BleProfile;
 import com.flicktekltd.clip.ble.BleProfileApi;
+import com.flicktekltd.clip.ble.ConnectionTimeline;
+import com.flicktekltd.clip.ble.LinkPolicy;
+import com.flicktekltd.clip.protocol.NotificationRing;
 
 import java.util.Deque;
 import java.util.LinkedList;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
-public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInterface {
+public class UARTProfile extends BleProfile implements FlicktekCommands.UARTLinkInterface {
     private static final String TAG = "UARTProfile";
 
+    // Commands of the clip we are connected to, set in initGatt(..)
+    private FlicktekCommands mCommands = FlicktekCommands.getInstance();
+
     public UARTProfile() {
         super();
-        FlicktekCommands.getInstance().registerDataChannel(this);
     }
 
     /**
@@ -71,9 +81,21 @@ public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInte
      */
     private static final UUID UART_TX_CHARACTERISTIC_UUID = UUID.fromString("6E400003-B5A3-F393-E0A9-E50E24DCCA9E");
     /**
-     * The maximum packet size is 20 bytes.
+     * The maximum packet size is 20 bytes until a larger MTU has been negotiated.
+     */
+    private static final int MAX_PACKET_SIZE = BleProfileApi.DEFAULT_MTU - BleProfileApi.ATT_HEADER_SIZE;
+    /**
+     * MTU we ask for, 247 fills a 251 bytes link layer packet (data length extension) without fragmentation.
+     */
+    private static final int PREFERRED_MTU = 247;
+    /**
+     * Bytes of notifications waiting for the decoder, about 3000 of them at the default MTU.
+     */
+    private static final int NOTIFICATION_RING_SIZE = 64 * 1024;
+    /**
+     * How long the decoder thread sleeps without notifications before checking whether it has been stopped.
      */
-    private static final int MAX_PACKET_SIZE = 20;
+    private static final long DECODER_IDLE_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(100);
 
     /**
      * This method should return true if the profile matches the given device. That means if the device has the required services.
@@ -88,8 +110,37 @@ public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInte
 
     public BluetoothGattCharacteristic mTXCharacteristic;
     public BluetoothGattCharacteristic mRXCharacteristic;
+    /**
+     * Writes without response we keep queued in the BleManager at the same time.
+     */
+    public static final int DEFAULT_WRITE_CREDITS = 4;
+
+    // Buffers waiting to be sent, commands go ahead of the data.
+    // The current buffer is being split into packets and always finishes first.
+    private final Deque<byte[]> mCommandQueue = new LinkedList<>();
+    private final Deque<byte[]> mOutgoingQueue = new LinkedList<>();
     private byte[] mOutgoingBuffer;
     private int mBufferOffset;
+    private BleProfileApi.Request.Priority mBufferPriority = BleProfileApi.Request.Priority.BULK;
+
+    // Writes enqueued and not finished yet, at most getMaxCredits() of them.
+    // Acknowledged writes always run with a single credit.
+    private int mMaxCredits = DEFAULT_WRITE_CREDITS;
+    private int mInFlight;
+    private boolean mPipelined;
+
+    // The Binder thread copies the TX notifications in, the decoder thread feeds them to the commands
+    private final NotificationRing mRing = new NotificationRing(NOTIFICATION_RING_SIZE,
+            BleProfileApi.MAX_MTU - BleProfileApi.ATT_HEADER_SIZE);
+    private DecoderThread mDecoder;
+
+    private final BleProfileApi.DirectNotificationListener mNotificationListener = new BleProfileApi.DirectNotificationListener() {
+        @Override
+        public void onNotification(final byte[] value) {
+            // Nothing but a copy here, a full ring drops the notification and the stream decoder resynchronises
+            mRing.offer(value, 0, value.length);
+        }
+    };
 
     @Override
     protected Deque<BleManager.Request> initGatt(final BluetoothGatt gatt) {
@@ -97,90 +148,310 @@ public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInte
         mTXCharacteristic = service.getCharacteristic(UART_TX_CHARACTERISTIC_UUID);
         mRXCharacteristic = service.getCharacteristic(UART_RX_CHARACTERISTIC_UUID);
 
+        // Each clip has its own commands, the primary one keeps the singleton
+        mCommands = FlicktekCommands.getInstance(gatt.getDevice().getAddress());
+        mCommands.registerDataChannel(this);
+        mCommands.setConnectionTimeline(getApi().getConnectionTimeline());
+
         final int rxProperties = mRXCharacteristic.getProperties();
         boolean writeRequest = (rxProperties & BluetoothGattCharacteristic.PROPERTY_WRITE) > 0;
 
-        // Set the WRITE REQUEST type when the characteristic supports it. This will allow to send long write (also if the characteristic support it).
-        // In case there is no WRITE REQUEST property, this manager will divide texts longer then 20 bytes into up to 20 bytes chunks.
-        if (writeRequest)
+        boolean writeNoResponse = (rxProperties & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) > 0;
+
+        // Prefer writes without response, the stack takes the next packet as soon as the previous one is queued
+        // instead of waiting for the clip to confirm it, so we can keep several in flight.
+        // Otherwise set the WRITE REQUEST type when the characteristic supports it. This will allow to send long write (also if the characteristic support it).
+        // In case there is no WRITE REQUEST property, this manager will divide texts longer than a packet into MTU sized chunks.
+        mPipelined = writeNoResponse;
+        if (writeNoResponse)
+            mRXCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+        else if (writeRequest)
             mRXCharacteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
 
+        mInFlight = 0;
+
+        // Start decoding before the notifications are enabled
+        startDecoder();
+        getApi().setDirectNotificationListener(UART_TX_CHARACTERISTIC_UUID, mNotificationListener);
+
         // We don't want to enable notifications on TX characteristic as we are not showing them here. A watch may be just used to send data. At least now.
         final LinkedList<BleProfileApi.Request> requests = new LinkedList<>();
+
+        // Negotiate the MTU first so the clip can use bigger notifications as soon as they are enabled
+        requests.add(BleProfileApi.Request.newMtuRequest(PREFERRED_MTU));
+
+        // A new connection starts with the default parameters, apply whatever the SDK is doing now
+        final int linkMode = mCommands.getLinkPolicy().getMode();
+        requests.add(BleProfileApi.Request.newConnectionPriorityRequest(linkMode));
+        requests.add(BleProfileApi.Request.newPreferredPhyRequest(getPreferredPhy(linkMode)));
+
         requests.add(BleProfileApi.Request.newEnableNotificationsRequest(mTXCharacteristic));
 
         return requests;
     }
 
+    /**
+     * Largest chunk we can send in a single write with the current MTU.
+     */
+    @Override
+    public int getMaxPacketSize() {
+        final BleProfileApi api = getApi();
+        if (api == null)
+            return MAX_PACKET_SIZE;
+
+        return Math.max(MAX_PACKET_SIZE, api.getMtu() - BleProfileApi.ATT_HEADER_SIZE);
+    }
+
+    /**
+     * Sets how many writes without response can be in flight. 1 sends a packet at a time,
+     * like acknowledged writes do.
+     */
+    public void setWriteCredits(final int credits) {
+        mMaxCredits = Math.max(1, credits);
+    }
+
+    private int getMaxCredits() {
+        return mPipelined ? mMaxCredits : 1;
+    }
+
+    /**
+     * Applies a {@link LinkPolicy} mode to the connection.
+     */
+    @Override
+    public void setConnectionPriority(final int priority) {
+        final BleProfileApi api = getApi();
+        if (api == null || mRXCharacteristic == null)
+            return;
+
+        api.requestConnectionPriority(priority);
+        api.setPreferredPhy(getPreferredPhy(priority));
+    }
+
+    // 2M halves the air time of the stream, otherwise we keep 1M for its range
+    private static int getPreferredPhy(final int linkMode) {
+        return linkMode == LinkPolicy.MODE_HIGH ? BluetoothDevice.PHY_LE_2M_MASK : BluetoothDevice.PHY_LE_1M_MASK;
+    }
+
+    @Override
+    protected void onMtuChanged(final BluetoothGatt gatt, final int mtu) {
+        Log.v(TAG, "Packet size " + getMaxPacketSize());
+    }
+
     @Override
     protected void release() {
+        // Released already, or never initialised
+        if (mTXCharacteristic == null)
+            return;
+
+        getApi().setDirectNotificationListener(null, null);
+        stopDecoder();
+
         mTXCharacteristic = null;
         mRXCharacteristic = null;
-        FlicktekManager.getInstance().onRelease();
+        mCommandQueue.clear();
+        mOutgoingQueue.clear();
+        mOutgoingBuffer = null;
+        mPipelined = false;
+        mInFlight = 0;
+        mCommands.onRelease();
     }
 
-    protected void onDataArrived(byte[] buffer) {
-        FlicktekCommands.getInstance().onCommandArrived(buffer);
+    /**
+     * Notifications dropped because the decoder thread fell behind and the ring was full.
+     */
+    public int getDroppedNotificationCount() {
+        return mRing.getDroppedCount();
     }
 
-    @Override
-    protected void onCharacteristicNotified(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-        // This method will not be called as notifications were not enabled in initGatt(..).
-
+    // Called on the decoder thread, the buffer is reused for the next notification
+    protected void onDataArrived(byte[] buffer, int length) {
         final Intent intent = new Intent(BROADCAST_DATA_RECEIVED);
-        intent.putExtra(EXTRA_DATA, characteristic.getStringValue(0));
+        intent.putExtra(EXTRA_DATA, new String(buffer, 0, length));
         LocalBroadcastManager.getInstance(getContext()).sendBroadcast(intent);
 
-        // Singleton capture
-        onDataArrived(characteristic.getValue());
+        // FlicktekCommands hands the results to the main thread
+        mCommands.onCommandArrived(buffer, 0, length);
     }
 
-    @Override
-    protected void onCharacteristicWrite(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
-        if (mOutgoingBuffer == null) {
-            // We don't have any more buffers left
+    private void startDecoder() {
+        if (mDecoder != null)
+            return;
+
+        mDecoder = new DecoderThread();
+        mDecoder.start();
+    }
+
+    // Returns once the decoder has stopped, nothing reaches the commands after this
+    private void stopDecoder() {
+        if (mDecoder == null)
             return;
+
+        mDecoder.quit();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mDecoder.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
         }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        mDecoder = null;
+    }
 
-        // When the whole buffer has been sent
-        final byte[] buffer = mOutgoingBuffer;
-        if (mBufferOffset == buffer.length) {
-            mOutgoingBuffer = null;
-        } else { // Otherwise...
-            final int length = Math.min(buffer.length - mBufferOffset, MAX_PACKET_SIZE);
-            getApi().enqueue(BleProfileApi.Request.newWriteRequest(mRXCharacteristic, buffer, mBufferOffset, length));
-            mBufferOffset += length;
+    /**
+     * Drains the ring, one notification at a time in the order they arrived.
+     */
+    private class DecoderThread extends Thread {
+        private final byte[] mBuffer = new byte[mRing.getMaxRecordSize()];
+        private volatile boolean mRunning = true;
+        private int mDropped;
+
+        DecoderThread() {
+            super("ClipDecoder");
+            setDaemon(true);
+        }
+
+        void quit() {
+            mRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_FOREGROUND);
+
+            while (mRunning) {
+                final int length = mRing.poll(mBuffer);
+                if (length < 0) {
+                    final int dropped = mRing.getDroppedCount();
+                    if (dropped != mDropped) {
+                        Log.w(TAG, "Decoder too slow, " + (dropped - mDropped) + " notifications dropped");
+                        mDropped = dropped;
+                    }
+                    mRing.await(DECODER_IDLE_TIMEOUT);
+                    continue;
+                }
+
+                onDataArrived(mBuffer, length);
+            }
+
+            // Only the consumer may move the head, the next decoder starts with an empty ring
+            mRing.clear();
         }
     }
 
+    // Every write we enqueued ends here, written, failed or dropped
+    private final BleProfileApi.Request.Callback mWriteCallback = new BleProfileApi.Request.Callback() {
+        @Override
+        public void onRequestFinished(final BleProfileApi.Request request, final boolean success) {
+            // The packet has left the queue, we can send another one.
+            // Requests still finishing after release() have been forgotten already.
+            if (mInFlight > 0)
+                mInFlight--;
+
+            // The clip would get the rest of the buffer with a hole in it, drop it and go on with the next one
+            if (!success && request.getValue() == mOutgoingBuffer)
+                abortCurrentBuffer();
+
+            sendNextPackets();
+        }
+    };
+
+    private void abortCurrentBuffer() {
+        Log.w(TAG, "Write failed, " + (mOutgoingBuffer.length - mBufferOffset) + " bytes of the buffer dropped");
+        mOutgoingBuffer = null;
+        mBufferOffset = 0;
+    }
+
+    @Override
+    public void onError(final String message, final int errorCode) {
+        // A failed or timed out write is finished by the manager and gives its credit back through mWriteCallback,
+        // the credits of the writes still queued stay taken until they finish too
+        sendNextPackets();
+    }
+
     /**
      * Sends the given text to RX characteristic.
      *
      * @param text the text to be sent
      */
     public void send(final byte[] buffer) {
+        send(buffer, BleProfileApi.Request.Priority.BULK);
+    }
+
+    /**
+     * Sends the buffer to RX characteristic, {@link BleProfileApi.Request.Priority#CONTROL} buffers are sent
+     * before any data waiting in the queue. The packets are written straight from the buffer, it must not
+     * be modified afterwards.
+     */
+    public void send(final byte[] buffer, final BleProfileApi.Request.Priority priority) {
         // Are we connected?
         if (mRXCharacteristic == null)
             return;
 
-        if (mOutgoingBuffer == null) {
-            mOutgoingBuffer = buffer;
-            mBufferOffset = 0;
-
-            // Depending on whether the characteristic has the WRITE REQUEST property or not, we will either send it as it is (hoping the long write is implemented),
-            // or divide it into up to 20 bytes chunks and send them one by one.
-            final boolean writeRequest = (mRXCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) > 0;
-
-            if (!writeRequest) { // no WRITE REQUEST property
-                final int length = Math.min(buffer.length, MAX_PACKET_SIZE);
-                mBufferOffset += length;
-                getApi().enqueue(BleProfileApi.Request.newWriteRequest(mRXCharacteristic, buffer, 0, length));
-            } else { // there is WRITE REQUEST property, let's try Long Write
-                mBufferOffset = buffer.length;
-                getApi().enqueue(BleProfileApi.Request.newWriteRequest(mRXCharacteristic, buffer, 0, buffer.length));
+        // The queues and the credits belong to the BLE thread
+        final Handler handler = getApi().getHandler();
+        if (Looper.myLooper() != handler.getLooper()) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    send(buffer, priority);
+                }
+            });
+            return;
+        }
+
+        if (priority == BleProfileApi.Request.Priority.CONTROL)
+            mCommandQueue.add(buffer);
+        else
+            mOutgoingQueue.add(buffer);
+        sendNextPackets();
+    }
+
+    // Enqueues packets while we have credits, buffers are sent in order and never interleaved
+    private void sendNextPackets() {
+        if (mRXCharacteristic == null)
+            return;
+
+        // Depending on whether the characteristic has the WRITE REQUEST property or not, we will either send it as it is (hoping the long write is implemented),
+        // or divide it into MTU sized chunks and send them one by one.
+        final boolean longWrite = !mPipelined && (mRXCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) > 0;
+        final int writeType = mRXCharacteristic.getWriteType();
+
+        while (mInFlight < getMaxCredits()) {
+            if (mOutgoingBuffer == null || mBufferOffset == mOutgoingBuffer.length) {
+                final Deque<byte[]> queue = mCommandQueue.isEmpty() ? mOutgoingQueue : mCommandQueue;
+                if (queue.isEmpty()) {
+                    mOutgoingBuffer = null;
+                    return;
+                }
+
+                // The manager runs the lanes out of order, don't let this buffer overtake
+                // packets of the previous one that are still queued in the other lane.
+                final BleProfileApi.Request.Priority priority = queue == mCommandQueue ?
+                        BleProfileApi.Request.Priority.CONTROL : BleProfileApi.Request.Priority.BULK;
+                if (priority != mBufferPriority && mInFlight > 0)
+                    return;
+
+                mOutgoingBuffer = queue.poll();
+                mBufferOffset = 0;
+                mBufferPriority = priority;
             }
-        } else {
-            getApi().enqueue(BleProfileApi.Request.newWriteRequest(mRXCharacteristic, buffer, 0, buffer.length));
+
+            final byte[] buffer = mOutgoingBuffer;
+            final int remaining = buffer.length - mBufferOffset;
+            final int length = longWrite ? remaining : Math.min(remaining, getMaxPacketSize());
+
+            // The request points into the buffer, which stays ours until the last packet has been written.
+            // A request failing straight away calls us back from enqueue(), the state has to be updated before.
+            final int offset = mBufferOffset;
+            mBufferOffset += length;
+            mInFlight++;
+            getApi().enqueue(BleProfileApi.Request.obtainWriteRequest(mRXCharacteristic, buffer, offset, length, writeType,
+                    mBufferPriority, mWriteCallback));
         }
     }
 
@@ -195,12 +466,13 @@ public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInte
         if (uuid.equals(BleManager.CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR_UUID)) {
             if (value.equals(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE)) {
                 Log.v(TAG, "onDescriptorWrite " + BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-                FlicktekCommands.getInstance().onReadyToSendData(true);
+                getApi().getConnectionTimeline().mark(ConnectionTimeline.PHASE_NOTIFICATIONS_ENABLED);
+                mCommands.onReadyToSendData(true);
                 return;
             }
             if (value.equals(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
                 Log.v(TAG, "onDescriptorWrite " + BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-                FlicktekCommands.getInstance().onReadyToSendData(false);
+                mCommands.onReadyToSendData(false);
                 return;
             }
         }
@@ -212,7 +484,7 @@ public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInte
      * @param text the text to be sent
      */
     public void send(final String text) {
-        // An outgoing buffer may not be null if there is already another packet being sent. We do nothing in this case.
+        // If another buffer is being sent this one is queued behind it.
         if (!TextUtils.isEmpty(text)) {
             send(text.getBytes());
         }
@@ -225,6 +497,7 @@ public class UARTProfile extends BleProfile implements FlicktekCommands.UARTInte
 
     @Override
     public void sendDataBuffer(byte[] data) {
-        send(data);
+        // Only commands come through here
+        send(data, BleProfileApi.Request.Priority.CONTROL);
     }
 }
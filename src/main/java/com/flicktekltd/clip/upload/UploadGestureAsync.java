@@ -14,6 +14,7 @@ import org.json.JSONObject;
 import java.io.DataOutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.Arrays;
 
 public class UploadGestureAsync extends AsyncTask<String, Void, String> {
     private static final String TAG = "UploadGesture";
@@ -33,7 +34,9 @@ public class UploadGestureAsync extends AsyncTask<String, Void, String> {
         }
 
         filename += "_" + unixTime;
-        UploadGestureAsync upload = new UploadGestureAsync(gestureData.byte_array, filename);
+        // The capture buffers are recycled, take our own copy for the upload
+        byte[] raw = Arrays.copyOf(gestureData.byte_array, gestureData.byte_length);
+        UploadGestureAsync upload = new UploadGestureAsync(raw, filename);
         upload.putString("gesture", "" + gestureData.gesture);
         upload.putString("gesture_string", "" + FlicktekManager.getGestureString(gestureData.gesture));
         upload.putString("mac", "" + FlicktekManager.getInstance().getMacAddress());
@@ -0,0 +1,255 @@
+package com.flicktekltd.clip.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ClipProtocolTest {
+
+    private final List<String> mEvents = new ArrayList<>();
+    private final List<Boolean> mCaptures = new ArrayList<>();
+    private ClipProtocol mProtocol;
+    private ClipSimulator mSimulator;
+
+    @Before
+    public void setUp() {
+        mProtocol = new ClipProtocol(new ProtocolSink() {
+            @Override
+            public void onCommand(byte command, byte value) {
+                mEvents.add("{" + (char) command + (char) value + "}");
+            }
+
+            @Override
+            public void onAcknowledge(boolean ack, byte command, byte value) {
+                mEvents.add((ack ? "ACK " : "NAK ") + (char) command + (char) value);
+            }
+
+            @Override
+            public void onButton(String value) {
+                mEvents.add("BT " + value);
+            }
+
+            @Override
+            public void onStreamingTicks(int ticks) {
+                mEvents.add("STK " + ticks);
+            }
+
+            @Override
+            public void onRevision(String revision) {
+                mEvents.add("GIT " + revision);
+            }
+
+            @Override
+            public void onVersion(String version) {
+                mEvents.add("VER " + version);
+            }
+
+            @Override
+            public void onCaptureStarted(int samples) {
+                mEvents.add("STS " + samples);
+            }
+
+            @Override
+            public void onCaptureEnded(CaptureFrame frame, boolean complete) {
+                mCaptures.add(complete);
+            }
+
+            @Override
+            public void onLog(String message) {
+            }
+        });
+
+        mSimulator = new ClipSimulator(new ClipSimulator.Listener() {
+            @Override
+            public void onNotification(byte[] data) {
+                mProtocol.onNotification(data);
+            }
+        }, new Random(1));
+    }
+
+    private void write(String commands) {
+        mSimulator.write(commands.getBytes());
+        mSimulator.advanceBy(1000);
+    }
+
+    private void assertEvents(String... expected) {
+        assertEquals(Arrays.asList(expected), mEvents);
+    }
+
+    @Test
+    public void handshakeAndAcknowledgements() {
+        write("{O1}");
+        assertEvents("{OK}");
+
+        write("{V1}{V0}{r1}{W2}{C1}");
+        assertEvents("{OK}", "GIT " + ClipSimulator.DEFAULT_REVISION, "VER " + ClipSimulator.DEFAULT_VERSION,
+                "STK " + ClipSimulator.DEFAULT_STREAMING_TICKS, "ACK W2", "ACK C1");
+        assertEquals(2, mSimulator.getState());
+    }
+
+    @Test
+    public void gestureWithCapture() {
+        final Random random = new Random(3);
+        final int samples = 150;
+        final int[] values = StreamDecoderTest.randomCapture(random, samples);
+        mSimulator.setCapture(values);
+
+        write("{s1}");
+        mSimulator.performGesture(2);
+        mSimulator.advanceBy(5000);
+
+        assertEvents("ACK s1", "{G2}", "STS " + samples);
+        assertEquals(Arrays.asList(true), mCaptures);
+        assertFalse(mProtocol.isCapturing());
+        assertArrayEquals(values, mProtocol.getCaptureFrame().samples());
+        assertEquals(0, mProtocol.getLostSamples());
+    }
+
+    @Test
+    public void countsSamplesLostOnTheLink() {
+        final int samples = 400;
+        mSimulator.setCaptureSamples(samples);
+        mSimulator.setLossRate(0.1);
+
+        write("{s1}");
+        int lost = 0;
+        for (int t = 0; t < 20; t++) {
+            mSimulator.performGesture(1);
+            mSimulator.advanceBy(5000);
+
+            assertFalse(mProtocol.isCapturing());
+            assertTrue(mProtocol.getLostSamples() <= samples);
+            assertEquals(samples, mProtocol.getDecodedSamples() + mProtocol.getLostSamples());
+            lost += mProtocol.getLostSamples();
+        }
+
+        assertTrue(mSimulator.getLostCount() > 0);
+        assertTrue(lost > 0);
+    }
+
+    private static final int PACKET_SIZE = 20;
+    // Samples in every block of blockCapture()
+    private static final int BLOCK_SAMPLES = 10;
+
+    /**
+     * Blocks of 16 bits values and 8 bits deltas taking turns. No data byte can be taken for a 16 bits header:
+     * no delta of -3 and no value with 0xFD as low byte.
+     */
+    private static int[] blockCapture(Random random, int blocks) {
+        final int channels = StreamDecoder.CHANNELS;
+        final int[] values = new int[blocks * BLOCK_SAMPLES * channels];
+        for (int pos = 0; pos < blocks * BLOCK_SAMPLES; pos++) {
+            final boolean absolute = pos / BLOCK_SAMPLES % 2 == 0;
+            for (int c = 0; c < channels; c++) {
+                final int idx = pos * channels + c;
+                int value;
+                if (absolute) {
+                    // Far from the previous value so the encoder can't use a delta
+                    do {
+                        value = 1000 + random.nextInt(14000);
+                    } while ((value & 0xFF) == StreamDecoder.PAYLOAD_16BITS ||
+                            (c == 0 && pos > 0 && Math.abs(value - values[idx - channels]) < 200));
+                } else {
+                    int delta;
+                    do {
+                        delta = random.nextInt(201) - 100;
+                    } while (delta == -3);
+                    value = values[idx - channels] + delta;
+                }
+                values[idx] = value;
+            }
+        }
+        return values;
+    }
+
+    // Byte offset of every sample in the encoded stream, and the length of the stream at the end
+    private static int[] sampleOffsets(int[] values, int samples) {
+        final int[] offsets = new int[samples + 1];
+        for (int p = 0; p <= samples; p++) {
+            offsets[p] = StreamDecoderTest.encode(values, p).length;
+        }
+        return offsets;
+    }
+
+    // Streams the capture as the clip does, without one of its notifications
+    private void streamWithout(byte[] stream, int samples, int lostPacket) {
+        mProtocol.onNotification(("[" + ClipProtocol.REPORT_START_DATA + ":" + samples + "]").getBytes());
+        for (int offset = 0, packet = 0; offset < stream.length; offset += PACKET_SIZE, packet++) {
+            if (packet != lostPacket)
+                mProtocol.onNotification(Arrays.copyOfRange(stream, offset, Math.min(offset + PACKET_SIZE, stream.length)));
+        }
+        mProtocol.onNotification(("[" + ClipProtocol.REPORT_END_DATA + ":" + samples + "]").getBytes());
+    }
+
+    /**
+     * Checks the capture after losing a notification: what came before it is untouched and, from the first
+     * 16 bits block after it, every sample is back at its position.
+     */
+    private void assertLostPacketPlaced(int[] values, int[] offsets, int samples, int lostPacket) {
+        final int[] out = mProtocol.getCaptureFrame().samples();
+        final int channels = StreamDecoder.CHANNELS;
+        final int lostStart = lostPacket * PACKET_SIZE;
+        final int lostEnd = lostStart + PACKET_SIZE;
+
+        int pos = 0;
+        for (; offsets[pos + 1] <= lostStart; pos++) {
+            assertEquals("sample " + pos, values[pos * channels], out[pos * channels]);
+        }
+
+        // The decoder waits for the next 16 bits header
+        while (pos % (2 * BLOCK_SAMPLES) != 0 || offsets[pos] < lostEnd) {
+            pos++;
+        }
+
+        assertTrue(mProtocol.getGapCount() > 0);
+        assertEquals(samples, mProtocol.getDecodedSamples() + mProtocol.getLostSamples());
+        assertArrayEquals(Arrays.copyOfRange(values, pos * channels, samples * channels),
+                Arrays.copyOfRange(out, pos * channels, samples * channels));
+    }
+
+    @Test
+    public void placesSamplesLostInA16BitsBlock() {
+        final Random random = new Random(6);
+        final int samples = 16 * BLOCK_SAMPLES;
+        final int[] values = blockCapture(random, 16);
+        final byte[] stream = StreamDecoderTest.encode(values, samples);
+        final int[] offsets = sampleOffsets(values, samples);
+
+        int tested = 0;
+        for (int block = 0; block < 12; block += 2) {
+            final int start = offsets[block * BLOCK_SAMPLES];
+            final int end = offsets[(block + 1) * BLOCK_SAMPLES];
+            for (int packet = start / PACKET_SIZE + 1; (packet + 1) * PACKET_SIZE <= end; packet++) {
+                streamWithout(stream, samples, packet);
+                assertLostPacketPlaced(values, offsets, samples, packet);
+                tested++;
+            }
+        }
+        assertTrue(tested > 0);
+    }
+
+    @Test
+    public void placesSamplesLostInAn8BitsBlock() {
+        final Random random = new Random(7);
+        final int samples = 16 * BLOCK_SAMPLES;
+        final int[] values = blockCapture(random, 16);
+        final byte[] stream = StreamDecoderTest.encode(values, samples);
+        final int[] offsets = sampleOffsets(values, samples);
+
+        // The notification with the header of the block, the deltas after it are read as 16 bits values
+        for (int block = 1; block < 12; block += 2) {
+            final int packet = offsets[block * BLOCK_SAMPLES] / PACKET_SIZE;
+            streamWithout(stream, samples, packet);
+            assertLostPacketPlaced(values, offsets, samples, packet);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.flicktekltd.clip.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FrameParserTest {
+
+    private final List<String> mFrames = new ArrayList<>();
+    private FrameParser mParser;
+
+    @Before
+    public void setUp() {
+        mParser = new FrameParser(new FrameParser.Listener() {
+            @Override
+            public void onReport(byte[] frame, int cmdOffset, int cmdLength, int dataOffset, int dataLength) {
+                mFrames.add("[" + new String(frame, cmdOffset, cmdLength) + ":" + new String(frame, dataOffset, dataLength) + "]");
+            }
+
+            @Override
+            public void onCommand(byte command, byte value) {
+                mFrames.add("{" + (char) command + (char) value + "}");
+            }
+        });
+    }
+
+    private void parse(String... notifications) {
+        for (String notification : notifications) {
+            mParser.parse(notification.getBytes());
+        }
+    }
+
+    private void assertFrames(String... expected) {
+        assertEquals(Arrays.asList(expected), mFrames);
+    }
+
+    @Test
+    public void parsesCommandsAndReports() {
+        parse("{OK}[ACK:W2]{G1}");
+        assertFrames("{OK}", "[ACK:W2]", "{G1}");
+    }
+
+    @Test
+    public void ignoresBytesOutsideFrames() {
+        parse("xx{G1}yy\n[VER:v17]zz");
+        assertFrames("{G1}", "[VER:v17]");
+    }
+
+    @Test
+    public void joinsCommandSplitAcrossNotifications() {
+        parse("{G", "1}");
+        assertFrames("{G1}");
+    }
+
+    @Test
+    public void joinsReportSplitAcrossNotifications() {
+        parse("[AC", "K:W", "2]");
+        assertFrames("[ACK:W2]");
+    }
+
+    @Test
+    public void joinsReportSplitAtSeparator() {
+        parse("[STS_DATA", ":120]");
+        assertFrames("[STS_DATA:120]");
+    }
+
+    @Test
+    public void truncatedCommandDoesNotSwallowNextOne() {
+        parse("{G", "{G1}");
+        assertFrames("{G1}");
+    }
+
+    @Test
+    public void truncatedCommandBeforeReport() {
+        parse("{G", "[ACK:W2]");
+        assertFrames("[ACK:W2]");
+    }
+
+    @Test
+    public void truncatedReportDoesNotSwallowNextOne() {
+        parse("[VER:v17", "[ACK:W2]");
+        assertFrames("[ACK:W2]");
+    }
+
+    @Test
+    public void truncatedReportBeforeCommand() {
+        parse("[VER:v17", "{G1}");
+        assertFrames("{G1}");
+    }
+
+    @Test
+    public void truncatedReportNameBeforeCommand() {
+        parse("[VE", "{G1}");
+        assertFrames("{G1}");
+    }
+
+    @Test
+    public void dropsReportLongerThanFrame() {
+        final StringBuilder data = new StringBuilder();
+        for (int i = 0; i < FrameParser.MAX_FRAME_SIZE; i++) {
+            data.append('x');
+        }
+        parse("[LOG:" + data + "]", "{G1}");
+        assertFrames("{G1}");
+    }
+
+    @Test
+    public void dropsReportCutByNewLine() {
+        parse("[VER:v17\n", "]{OK}");
+        assertFrames("{OK}");
+    }
+
+    @Test
+    public void resetDropsPartialFrame() {
+        parse("[ACK:W");
+        mParser.reset();
+        parse("2]{OK}");
+        assertFrames("{OK}");
+    }
+}
@@ -0,0 +1,220 @@
+package com.flicktekltd.clip.protocol;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StreamDecoderTest {
+
+    private static final int PACKET_SIZE = 20;
+    private static final int EQUIVALENCE_RUNS = 20000;
+    // Largest signal count in the random streams, keeps the output arrays small
+    private static final int MAX_RANDOM_COUNT = 20;
+
+    // Rest, small movements and jumps, so the stream goes through the three block types
+    static int[] randomCapture(Random random, int samples) {
+        final int[] values = new int[samples * StreamDecoder.CHANNELS];
+        int pos = 0;
+        while (pos < samples) {
+            final int run = Math.min(samples - pos, 1 + random.nextInt(40));
+            final int kind = random.nextInt(3);
+            for (int t = 0; t < run; t++, pos++) {
+                for (int c = 0; c < StreamDecoder.CHANNELS; c++) {
+                    final int idx = pos * StreamDecoder.CHANNELS + c;
+                    int value;
+                    if (kind == 0) {
+                        value = StreamDecoder.CENTRE_SIGNAL;
+                    } else if (kind == 1 && pos > 0) {
+                        value = values[idx - StreamDecoder.CHANNELS] + random.nextInt(201) - 100;
+                    } else {
+                        value = random.nextInt(StreamDecoder.DEFAULT_MAX_VALUE + 1);
+                    }
+                    values[idx] = Math.max(0, Math.min(StreamDecoder.DEFAULT_MAX_VALUE, value));
+                }
+            }
+        }
+        return values;
+    }
+
+    static byte[] encode(int[] values, int samples) {
+        final GrowableByteBuffer encoded = new GrowableByteBuffer();
+        StreamEncoder.encode(values, samples, encoded);
+        return encoded.toByteArray();
+    }
+
+    // Feeds the stream in notifications of the given size, returns true if the last sample was decoded
+    static boolean decode(StreamDecoder decoder, byte[] stream, int packetSize, int[] out, int samples) {
+        boolean complete = false;
+        for (int offset = 0; offset < stream.length && !complete; offset += packetSize) {
+            complete = decoder.decode(stream, offset, Math.min(packetSize, stream.length - offset), out, samples);
+        }
+        return complete;
+    }
+
+    @Test
+    public void decodesWhatTheEncoderWrites() {
+        final Random random = new Random(1);
+        for (int run = 0; run < 500; run++) {
+            final int samples = 1 + random.nextInt(300);
+            final int[] values = randomCapture(random, samples);
+            final byte[] stream = encode(values, samples);
+
+            final StreamDecoder decoder = new StreamDecoder();
+            final int[] out = new int[values.length];
+            assertTrue(decode(decoder, stream, PACKET_SIZE, out, samples));
+            assertArrayEquals(values, out);
+            assertEquals(samples, decoder.getPosition());
+            assertEquals(0, decoder.getOverflows());
+            assertEquals(0, decoder.getResyncCount());
+        }
+    }
+
+    @Test
+    public void decodesTheSameWholeOrSplit() {
+        final Random random = new Random(2);
+        final int samples = 200;
+        final int[] values = randomCapture(random, samples);
+        final byte[] stream = encode(values, samples);
+
+        for (int packetSize = 1; packetSize <= 64; packetSize++) {
+            final int[] out = new int[values.length];
+            assertTrue(decode(new StreamDecoder(), stream, packetSize, out, samples));
+            assertArrayEquals(values, out);
+        }
+    }
+
+    // Any header, anywhere, with blocks cut in the middle of a sample. Never a count above MAX_RANDOM_COUNT.
+    private static byte[] randomStream(Random random) {
+        final GrowableByteBuffer stream = new GrowableByteBuffer();
+        final int length = 1 + random.nextInt(200);
+        int state = StreamDecoder.STREAM_FULL_16BITS;
+        while (stream.length() < length) {
+            if (random.nextInt(8) == 0) {
+                state = random.nextInt(3);
+                stream.append((byte) (state == StreamDecoder.STREAM_SIGNAL_COUNT ? StreamDecoder.PAYLOAD_SIGNAL :
+                        state == StreamDecoder.STREAM_INC_8BITS ? StreamDecoder.PAYLOAD_8BITS : StreamDecoder.PAYLOAD_16BITS));
+            } else if (state == StreamDecoder.STREAM_SIGNAL_COUNT) {
+                stream.append((byte) random.nextInt(MAX_RANDOM_COUNT + 1));
+            } else {
+                stream.append((byte) random.nextInt(StreamDecoder.PAYLOAD_16BITS));
+            }
+        }
+        return stream.toByteArray();
+    }
+
+    // Runs both decoders on the stream and checks they agree, the output array is never too small
+    private static void assertSameDecoding(byte[] stream, int samples, boolean resync, Random random) {
+        final int size = (stream.length * MAX_RANDOM_COUNT + 1) * StreamDecoder.CHANNELS;
+
+        final StreamDecoder byteDecoder = new StreamDecoder();
+        final int[] byteOut = new int[size];
+        Arrays.fill(byteOut, ClipProtocol.CAPTURE_FILL_VALUE);
+        boolean byteComplete = false;
+        for (int i = 0; i < stream.length && !byteComplete; i++) {
+            byteComplete = byteDecoder.decodeByte(stream[i], byteOut, samples);
+        }
+
+        final StreamDecoder decoder = new StreamDecoder();
+        decoder.setResyncEnabled(resync);
+        final int[] out = new int[size];
+        Arrays.fill(out, ClipProtocol.CAPTURE_FILL_VALUE);
+        final boolean complete = decode(decoder, stream, 1 + random.nextInt(40), out, samples);
+
+        assertEquals(byteComplete, complete);
+        assertEquals(byteDecoder.getPosition(), decoder.getPosition());
+        assertArrayEquals(byteOut, out);
+        if (!resync)
+            assertEquals(byteDecoder.getOverflows(), decoder.getOverflows());
+    }
+
+    @Test
+    public void decodeMatchesDecodeByteOnRandomStreams() {
+        final Random random = new Random(4);
+        for (int run = 0; run < EQUIVALENCE_RUNS; run++) {
+            final byte[] stream = randomStream(random);
+            // Half of them never complete, the others stop part of the way in
+            final int samples = random.nextBoolean() ? Integer.MAX_VALUE : 1 + random.nextInt(stream.length);
+            assertSameDecoding(stream, samples, false, random);
+        }
+    }
+
+    @Test
+    public void decodeMatchesDecodeByteOnEncodedStreams() {
+        final Random random = new Random(5);
+        for (int run = 0; run < EQUIVALENCE_RUNS; run++) {
+            final int samples = 1 + random.nextInt(100);
+            final byte[] stream = encode(randomCapture(random, samples), samples);
+            assertSameDecoding(stream, samples, true, random);
+        }
+    }
+
+    @Test
+    public void deltaBeforeFirstSample() {
+        final byte[] stream = {(byte) StreamDecoder.PAYLOAD_8BITS, 1, 2, 3, 4};
+        final int[] out = new int[4 * StreamDecoder.CHANNELS];
+
+        final StreamDecoder byteDecoder = new StreamDecoder();
+        for (byte b : stream) {
+            byteDecoder.decodeByte(b, out, 4);
+        }
+        assertEquals(4, byteDecoder.getOverflows());
+
+        final StreamDecoder decoder = new StreamDecoder();
+        decoder.setResyncEnabled(false);
+        decoder.decode(stream, 0, stream.length, out, 4);
+        assertEquals(4, decoder.getOverflows());
+        assertEquals(0, decoder.getResyncCount());
+
+        // Waits for a 16 bits block instead
+        final StreamDecoder resyncDecoder = new StreamDecoder();
+        resyncDecoder.decode(stream, 0, stream.length, out, 4);
+        assertEquals(0, resyncDecoder.getOverflows());
+        assertEquals(1, resyncDecoder.getResyncCount());
+        assertEquals(0, resyncDecoder.getPosition());
+    }
+
+    private static final byte HEADER_16BITS = (byte) StreamDecoder.PAYLOAD_16BITS;
+
+    @Test
+    public void resynchronisesOnTheNextHeader() {
+        final byte[] stream = {
+                HEADER_16BITS, 0x10, 0x00, 0x10, 0x01, 0x10, 0x02, 0x10, 0x03,
+                // Out of step, waiting for a header
+                0x7F, (byte) 0xFF, 0x01, 0x02,
+                // A delta of -3 followed by a byte that can't start a 16 bits value is not one
+                HEADER_16BITS, (byte) 0xF0,
+                HEADER_16BITS, 0x20, 0x00, 0x20, 0x01, 0x20, 0x02, 0x20, 0x03};
+        final int[] out = new int[4 * StreamDecoder.CHANNELS];
+
+        final StreamDecoder decoder = new StreamDecoder();
+        decoder.decode(stream, 0, stream.length, out, 4);
+        assertEquals(2, decoder.getPosition());
+        assertEquals(1, decoder.getResyncCount());
+        assertEquals(1, decoder.getGapCount());
+        assertEquals(1, decoder.getGapPosition(0));
+        assertArrayEquals(new int[]{0x2000, 0x2001, 0x2002, 0x2003}, Arrays.copyOfRange(out, 4, 8));
+    }
+
+    @Test
+    public void dropsSamplesDecodedFromAFalseHeader() {
+        final byte[] stream = {
+                HEADER_16BITS, 0x10, 0x00, 0x10, 0x01, 0x10, 0x02, 0x10, 0x03,
+                0x7F, (byte) 0xFF,
+                // Taken for a header, the second value gives it away
+                HEADER_16BITS, 0x01, 0x02, (byte) 0x90, 0x00,
+                HEADER_16BITS, 0x20, 0x00, 0x20, 0x01, 0x20, 0x02, 0x20, 0x03};
+        final int[] out = new int[4 * StreamDecoder.CHANNELS];
+
+        final StreamDecoder decoder = new StreamDecoder();
+        decoder.decode(stream, 0, stream.length, out, 4);
+        assertEquals(2, decoder.getPosition());
+        assertEquals(2, decoder.getResyncCount());
+        assertEquals(1, decoder.getGapCount());
+        assertArrayEquals(new int[]{0x2000, 0x2001, 0x2002, 0x2003}, Arrays.copyOfRange(out, 4, 8));
+    }
+}